@@ -0,0 +1,250 @@
+package javamachinelearning.utils;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// kernels that use the vector api
+// only loaded through SIMD, so this is the only class that needs the jdk.incubator.vector module
+// it is in its own source folder, so the rest of the library builds without the module
+class SIMDKernels implements SIMD.Kernels{
+	private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+	// doubles with the same total size as the float vectors, for accumulating floats with doubles
+	private static final VectorSpecies<Double> FD = VectorSpecies.of(double.class, F.vectorShape());
+	// one row of the 4x4 GEMM micro kernel
+	private static final VectorSpecies<Double> D4 = DoubleVector.SPECIES_256;
+	
+	@Override
+	public void binary(int op, double[] a, int ao, double[] b, int bo, double[] o, int oo, int n){
+		int i = 0;
+		for(int bound = D.loopBound(n); i < bound; i += D.length()){
+			DoubleVector x = DoubleVector.fromArray(D, a, ao + i);
+			DoubleVector y = DoubleVector.fromArray(D, b, bo + i);
+			switch(op){
+				case Tensor.ADD: x.add(y).intoArray(o, oo + i); break;
+				case Tensor.SUB: x.sub(y).intoArray(o, oo + i); break;
+				case Tensor.MUL: x.mul(y).intoArray(o, oo + i); break;
+				case Tensor.DIV: x.div(y).intoArray(o, oo + i); break;
+			}
+		}
+		for(; i < n; i++){
+			o[oo + i] = Tensor.apply(op, a[ao + i], b[bo + i]);
+		}
+	}
+	
+	@Override
+	public void binary(int op, float[] a, int ao, float[] b, int bo, float[] o, int oo, int n){
+		int i = 0;
+		for(int bound = F.loopBound(n); i < bound; i += F.length()){
+			FloatVector x = FloatVector.fromArray(F, a, ao + i);
+			FloatVector y = FloatVector.fromArray(F, b, bo + i);
+			switch(op){
+				case Tensor.ADD: x.add(y).intoArray(o, oo + i); break;
+				case Tensor.SUB: x.sub(y).intoArray(o, oo + i); break;
+				case Tensor.MUL: x.mul(y).intoArray(o, oo + i); break;
+				case Tensor.DIV: x.div(y).intoArray(o, oo + i); break;
+			}
+		}
+		for(; i < n; i++){
+			o[oo + i] = (float)Tensor.apply(op, a[ao + i], b[bo + i]);
+		}
+	}
+	
+	@Override
+	public void scalar(int op, double[] a, int ao, double d, double[] o, int oo, int n){
+		int i = 0;
+		for(int bound = D.loopBound(n); i < bound; i += D.length()){
+			DoubleVector x = DoubleVector.fromArray(D, a, ao + i);
+			switch(op){
+				case Tensor.ADD: x.add(d).intoArray(o, oo + i); break;
+				case Tensor.MUL: x.mul(d).intoArray(o, oo + i); break;
+				case Tensor.DIV: x.div(d).intoArray(o, oo + i); break;
+			}
+		}
+		for(; i < n; i++){
+			o[oo + i] = Tensor.apply(op, a[ao + i], d);
+		}
+	}
+	
+	@Override
+	public void scalar(int op, float[] a, int ao, float d, float[] o, int oo, int n){
+		int i = 0;
+		for(int bound = F.loopBound(n); i < bound; i += F.length()){
+			FloatVector x = FloatVector.fromArray(F, a, ao + i);
+			switch(op){
+				case Tensor.ADD: x.add(d).intoArray(o, oo + i); break;
+				case Tensor.MUL: x.mul(d).intoArray(o, oo + i); break;
+				case Tensor.DIV: x.div(d).intoArray(o, oo + i); break;
+			}
+		}
+		for(; i < n; i++){
+			switch(op){
+				case Tensor.ADD: o[oo + i] = a[ao + i] + d; break;
+				case Tensor.MUL: o[oo + i] = a[ao + i] * d; break;
+				case Tensor.DIV: o[oo + i] = a[ao + i] / d; break;
+			}
+		}
+	}
+	
+	@Override
+	public void axpy(double alpha, double[] x, int xo, double[] y, int yo, int n){
+		int i = 0;
+		for(int bound = D.loopBound(n); i < bound; i += D.length()){
+			DoubleVector.fromArray(D, x, xo + i).mul(alpha)
+					.add(DoubleVector.fromArray(D, y, yo + i)).intoArray(y, yo + i);
+		}
+		for(; i < n; i++){
+			y[yo + i] += alpha * x[xo + i];
+		}
+	}
+	
+	@Override
+	public void axpy(float alpha, float[] x, int xo, float[] y, int yo, int n){
+		int i = 0;
+		for(int bound = F.loopBound(n); i < bound; i += F.length()){
+			FloatVector.fromArray(F, x, xo + i).mul(alpha)
+					.add(FloatVector.fromArray(F, y, yo + i)).intoArray(y, yo + i);
+		}
+		for(; i < n; i++){
+			y[yo + i] += alpha * x[xo + i];
+		}
+	}
+	
+	@Override
+	public void fma(double alpha, double[] a, int ao, double[] b, int bo, double[] y, int yo, int n){
+		int i = 0;
+		for(int bound = D.loopBound(n); i < bound; i += D.length()){
+			DoubleVector.fromArray(D, a, ao + i).mul(alpha).mul(DoubleVector.fromArray(D, b, bo + i))
+					.add(DoubleVector.fromArray(D, y, yo + i)).intoArray(y, yo + i);
+		}
+		for(; i < n; i++){
+			y[yo + i] += alpha * a[ao + i] * b[bo + i];
+		}
+	}
+	
+	@Override
+	public void fma(float alpha, float[] a, int ao, float[] b, int bo, float[] y, int yo, int n){
+		int i = 0;
+		for(int bound = F.loopBound(n); i < bound; i += F.length()){
+			FloatVector.fromArray(F, a, ao + i).mul(alpha).mul(FloatVector.fromArray(F, b, bo + i))
+					.add(FloatVector.fromArray(F, y, yo + i)).intoArray(y, yo + i);
+		}
+		for(; i < n; i++){
+			y[yo + i] += alpha * a[ao + i] * b[bo + i];
+		}
+	}
+	
+	@Override
+	public double sum(double[] a, int ao, int n){
+		DoubleVector acc = DoubleVector.zero(D);
+		int i = 0;
+		for(int bound = D.loopBound(n); i < bound; i += D.length()){
+			acc = acc.add(DoubleVector.fromArray(D, a, ao + i));
+		}
+		double res = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++){
+			res += a[ao + i];
+		}
+		return res;
+	}
+	
+	@Override
+	public double sum(float[] a, int ao, int n){
+		// accumulate with doubles, like the scalar loops
+		DoubleVector acc = DoubleVector.zero(FD);
+		int i = 0;
+		for(int bound = F.loopBound(n); i < bound; i += F.length()){
+			FloatVector x = FloatVector.fromArray(F, a, ao + i);
+			acc = acc.add(low(x)).add(high(x));
+		}
+		double res = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++){
+			res += a[ao + i];
+		}
+		return res;
+	}
+	
+	@Override
+	public double dot(double[] a, int ao, double[] b, int bo, int n){
+		DoubleVector acc = DoubleVector.zero(D);
+		int i = 0;
+		for(int bound = D.loopBound(n); i < bound; i += D.length()){
+			acc = DoubleVector.fromArray(D, a, ao + i).fma(DoubleVector.fromArray(D, b, bo + i), acc);
+		}
+		double res = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++){
+			res += a[ao + i] * b[bo + i];
+		}
+		return res;
+	}
+	
+	@Override
+	public double dot(float[] a, int ao, float[] b, int bo, int n){
+		DoubleVector acc = DoubleVector.zero(FD);
+		int i = 0;
+		for(int bound = F.loopBound(n); i < bound; i += F.length()){
+			FloatVector x = FloatVector.fromArray(F, a, ao + i);
+			FloatVector y = FloatVector.fromArray(F, b, bo + i);
+			acc = low(x).fma(low(y), acc);
+			acc = high(x).fma(high(y), acc);
+		}
+		double res = acc.reduceLanes(VectorOperators.ADD);
+		for(; i < n; i++){
+			res += (double)a[ao + i] * b[bo + i];
+		}
+		return res;
+	}
+	
+	@Override
+	public void kernel(int kc, double[] ap, int ai, double[] bp, int bi, double[] c, int ci, int ldc, int mr, int nr){
+		// each vector is one row of the tile
+		DoubleVector c0 = DoubleVector.zero(D4);
+		DoubleVector c1 = DoubleVector.zero(D4);
+		DoubleVector c2 = DoubleVector.zero(D4);
+		DoubleVector c3 = DoubleVector.zero(D4);
+		
+		for(int p = 0; p < kc; p++){
+			DoubleVector b = DoubleVector.fromArray(D4, bp, bi);
+			c0 = b.fma(DoubleVector.broadcast(D4, ap[ai]), c0);
+			c1 = b.fma(DoubleVector.broadcast(D4, ap[ai + 1]), c1);
+			c2 = b.fma(DoubleVector.broadcast(D4, ap[ai + 2]), c2);
+			c3 = b.fma(DoubleVector.broadcast(D4, ap[ai + 3]), c3);
+			
+			ai += 4;
+			bi += 4;
+		}
+		
+		if(mr == 4 && nr == 4){
+			c0.add(DoubleVector.fromArray(D4, c, ci)).intoArray(c, ci);
+			ci += ldc;
+			c1.add(DoubleVector.fromArray(D4, c, ci)).intoArray(c, ci);
+			ci += ldc;
+			c2.add(DoubleVector.fromArray(D4, c, ci)).intoArray(c, ci);
+			ci += ldc;
+			c3.add(DoubleVector.fromArray(D4, c, ci)).intoArray(c, ci);
+		}else{
+			// partial tile on the edges of C
+			double[] tile = new double[16];
+			c0.intoArray(tile, 0);
+			c1.intoArray(tile, 4);
+			c2.intoArray(tile, 8);
+			c3.intoArray(tile, 12);
+			for(int i = 0; i < mr; i++){
+				for(int j = 0; j < nr; j++){
+					c[ci + i * ldc + j] += tile[i * 4 + j];
+				}
+			}
+		}
+	}
+	
+	// the two halves of a float vector, converted to doubles
+	private static DoubleVector low(FloatVector x){
+		return (DoubleVector)x.convertShape(VectorOperators.F2D, FD, 0);
+	}
+	
+	private static DoubleVector high(FloatVector x){
+		return (DoubleVector)x.convertShape(VectorOperators.F2D, FD, 1);
+	}
+}
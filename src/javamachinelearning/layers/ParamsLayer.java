@@ -8,6 +8,11 @@ import javamachinelearning.regularizers.Regularizer;
 public interface ParamsLayer extends Layer{
 	// if biases shouldn't be used
 	public ParamsLayer noBias();
+	// keep the weights, gradients, and optimizer state outside of the java heap
+	// their total size is limited by -XX:MaxDirectMemorySize, which is the maximum heap size unless it is set
+	public ParamsLayer offHeap();
+	// release the off heap memory of the layer, which cannot be used after this
+	public void free();
 	
 	public void update(Optimizer optimizer, Regularizer regularizer);
 	public int byteSize();
@@ -33,7 +33,7 @@ public class ActivationLayer implements FeedForwardLayer{
 	
 	@Override
 	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
-		return error.mul(activation.derivative(output));
+		return activation.backPropagate(output, error);
 	}
 	
 	@Override
@@ -87,7 +87,7 @@ public class AvgPoolingLayer implements FeedForwardLayer{
 			}
 		}
 		
-		return new Tensor(outputShape, res);
+		return new Tensor(outputShape, res).to(input.dtype());
 	}
 	
 	@Override
@@ -114,7 +114,27 @@ public class AvgPoolingLayer implements FeedForwardLayer{
 			}
 		}
 		
-		return new Tensor(inputShape, res);
+		return new Tensor(inputShape, res).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		int batchSize = input.shape()[0];
+		Tensor res = new Tensor(new int[]{batchSize, outputShape[0], outputShape[1], outputShape[2]}, input.dtype(), false);
+		for(int i = 0; i < batchSize; i++){
+			res.get(i).set(forwardPropagate(input.get(i), training));
+		}
+		return res;
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		int batchSize = input.shape()[0];
+		Tensor res = new Tensor(input.shape(), input.dtype(), false);
+		for(int i = 0; i < batchSize; i++){
+			res.get(i).set(backPropagate(input.get(i), null, error.get(i)));
+		}
+		return res;
 	}
 	
 	@Override
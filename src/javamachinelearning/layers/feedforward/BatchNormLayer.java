@@ -0,0 +1,390 @@
+package javamachinelearning.layers.feedforward;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javamachinelearning.layers.Layer;
+import javamachinelearning.optimizers.Optimizer;
+import javamachinelearning.regularizers.Regularizer;
+import javamachinelearning.utils.Activation;
+import javamachinelearning.utils.Tensor;
+
+// normalizes each slice of the last dimension (the features or the depth slices) to a mean of 0 and a variance of 1,
+// and then scales and shifts it by learned amounts
+// when training, the mean and variance are over every other dimension, including the samples in a batch
+// so it works best with mini-batches
+// running averages of the mean and variance are used for inference, and can be folded into the layer before
+public class BatchNormLayer implements FeedForwardParamsLayer{
+	// scale
+	private Tensor weights;
+	private Tensor gradWeights;
+	private Tensor[] weightExtraParams;
+	
+	// shift
+	private Tensor bias;
+	private Tensor gradBias;
+	private Tensor[] biasExtraParams;
+	
+	private Tensor runningMean;
+	private Tensor runningVar;
+	
+	private int[] shape;
+	private int channels;
+	private double momentum = 0.9;
+	private double epsilon = 1e-5;
+	private int changeCount;
+	private boolean alreadyInit = false;
+	private boolean useBias = true;
+	private boolean offHeap = false;
+	
+	// the normalized values and 1 / standard deviations of the last training input, which are reused for backpropagation
+	private double[] normalized;
+	private double[] invStd;
+	private Tensor normalizedInput;
+	
+	// how much of the running averages is kept at each training step
+	public BatchNormLayer momentum(double momentum){
+		this.momentum = momentum;
+		return this;
+	}
+	
+	// added to the variance so it is never divided by 0
+	public BatchNormLayer epsilon(double epsilon){
+		this.epsilon = epsilon;
+		return this;
+	}
+	
+	@Override
+	public int[] outputShape(){
+		return shape;
+	}
+	
+	@Override
+	public int[] inputShape(){
+		return shape;
+	}
+	
+	@Override
+	public void init(int[] inputShape){
+		shape = inputShape;
+		channels = inputShape[inputShape.length - 1];
+		
+		if(!alreadyInit){
+			weights = tensor(new int[]{1, channels}).fill(1.0);
+			if(useBias)
+				bias = tensor(new int[]{1, channels});
+		}
+		runningMean = tensor(new int[]{1, channels});
+		runningVar = tensor(new int[]{1, channels}).fill(1.0);
+		gradWeights = tensor(new int[]{1, channels});
+		if(useBias)
+			gradBias = tensor(new int[]{1, channels});
+	}
+	
+	private Tensor tensor(int[] shape){
+		return offHeap ? Tensor.offHeap(shape, false) : new Tensor(shape, false);
+	}
+	
+	@Override
+	public FeedForwardParamsLayer withParams(Tensor w, Tensor b){
+		weights = w;
+		if(useBias)
+			bias = b;
+		alreadyInit = true;
+		return this;
+	}
+	
+	@Override
+	public FeedForwardParamsLayer noBias(){
+		useBias = false;
+		return this;
+	}
+	
+	@Override
+	public FeedForwardParamsLayer offHeap(){
+		offHeap = true;
+		return this;
+	}
+	
+	@Override
+	public void free(){
+		Tensor.free(weights, gradWeights, bias, gradBias, runningMean, runningVar);
+		if(weightExtraParams != null)
+			Tensor.free(weightExtraParams);
+		if(biasExtraParams != null)
+			Tensor.free(biasExtraParams);
+	}
+	
+	@Override
+	public Tensor bias(){
+		return bias;
+	}
+	
+	@Override
+	public Tensor weights(){
+		return weights;
+	}
+	
+	@Override
+	public void setBias(Tensor b){
+		if(useBias)
+			bias = b;
+	}
+	
+	@Override
+	public void setWeights(Tensor w){
+		weights = w;
+	}
+	
+	public Tensor runningMean(){
+		return runningMean;
+	}
+	
+	public Tensor runningVar(){
+		return runningVar;
+	}
+	
+	@Override
+	public Tensor forwardPropagate(Tensor input, boolean training){
+		double[] x = input.asDoubles();
+		int n = x.length / channels;
+		double[] res = new double[x.length];
+		
+		if(training){
+			// the variance of a single value is 0, so everything would be normalized to 0 and there would be no gradients
+			// this happens when the values of one sample are propagated alone, like when the batch size is 1,
+			// or when the network is not propagated in mini batches
+			if(n < 2)
+				throw new IllegalArgumentException("Bad sizes for batch normalization, training needs more than one value for each channel!");
+			
+			double[] mean = new double[channels];
+			double[] var = new double[channels];
+			normalized = normalize(x, mean, var);
+			normalizedInput = input;
+			
+			// the variance is unbiased for the running average
+			for(int c = 0; c < channels; c++){
+				var[c] *= (double)n / (n - 1);
+			}
+			runningMean.muli(momentum).addi(new Tensor(new int[]{1, channels}, mean).muli(1.0 - momentum));
+			runningVar.muli(momentum).addi(new Tensor(new int[]{1, channels}, var).muli(1.0 - momentum));
+			
+			double[] w = weights.asDoubles();
+			double[] b = useBias ? bias.asDoubles() : null;
+			for(int i = 0; i < x.length; i++){
+				int c = i % channels;
+				res[i] = normalized[i] * w[c] + (useBias ? b[c] : 0.0);
+			}
+		}else{
+			// the running averages are combined with the scale and shift first, so each value is only multiplied and added once
+			double[] scale = new double[channels];
+			double[] shift = new double[channels];
+			scaleAndShift(scale, shift);
+			
+			for(int i = 0; i < x.length; i++){
+				int c = i % channels;
+				res[i] = x[i] * scale[c] + shift[c];
+			}
+		}
+		
+		return new Tensor(input.shape(), res).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
+		return backPropagate(input, error, 1);
+	}
+	
+	// the whole batch is normalized together, so the batch is just more values for each slice
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		return forwardPropagate(input, training);
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		return backPropagate(input, error, input.shape()[0]);
+	}
+	
+	private Tensor backPropagate(Tensor input, Tensor error, int samples){
+		if(input != normalizedInput){
+			invStd = null;
+			normalized = normalize(input.asDoubles(), new double[channels], new double[channels]);
+		}
+		
+		double[] e = error.asDoubles();
+		int n = e.length / channels;
+		
+		// gradients of the shift and scale
+		double[] sum = new double[channels];
+		double[] sumNormalized = new double[channels];
+		for(int i = 0; i < e.length; i++){
+			sum[i % channels] += e[i];
+			sumNormalized[i % channels] += e[i] * normalized[i];
+		}
+		
+		gradWeights.addi(new Tensor(new int[]{1, channels}, sumNormalized));
+		if(useBias)
+			gradBias.addi(new Tensor(new int[]{1, channels}, sum));
+		
+		// every value in a slice changes the mean and variance, so the gradient of each input depends on the whole slice
+		// the factor in front only depends on the channel
+		double[] w = weights.asDoubles();
+		double[] factor = new double[channels];
+		for(int c = 0; c < channels; c++){
+			factor[c] = w[c] * invStd[c] / n;
+		}
+		
+		double[] res = new double[e.length];
+		for(int i = 0; i < e.length; i++){
+			int c = i % channels;
+			res[i] = factor[c] * (n * e[i] - sum[c] - normalized[i] * sumNormalized[c]);
+		}
+		
+		normalized = null;
+		normalizedInput = null;
+		changeCount += samples;
+		
+		return new Tensor(input.shape(), res).to(input.dtype());
+	}
+	
+	// (x - mean) / sqrt(var + epsilon), with the mean and variance of each slice
+	// also saves 1 / sqrt(var + epsilon)
+	private double[] normalize(double[] x, double[] mean, double[] var){
+		int n = x.length / channels;
+		for(int i = 0; i < x.length; i++){
+			mean[i % channels] += x[i];
+		}
+		for(int c = 0; c < channels; c++){
+			mean[c] /= n;
+		}
+		
+		for(int i = 0; i < x.length; i++){
+			double d = x[i] - mean[i % channels];
+			var[i % channels] += d * d;
+		}
+		
+		invStd = new double[channels];
+		for(int c = 0; c < channels; c++){
+			var[c] /= n;
+			invStd[c] = 1.0 / Math.sqrt(var[c] + epsilon);
+		}
+		
+		double[] res = new double[x.length];
+		for(int i = 0; i < x.length; i++){
+			res[i] = (x[i] - mean[i % channels]) * invStd[i % channels];
+		}
+		return res;
+	}
+	
+	// the inference output is x * scale + shift for each slice
+	private void scaleAndShift(double[] scale, double[] shift){
+		double[] w = weights.asDoubles();
+		double[] b = useBias ? bias.asDoubles() : null;
+		double[] mean = runningMean.asDoubles();
+		double[] var = runningVar.asDoubles();
+		for(int c = 0; c < channels; c++){
+			scale[c] = w[c] / Math.sqrt(var[c] + epsilon);
+			shift[c] = (useBias ? b[c] : 0.0) - mean[c] * scale[c];
+		}
+	}
+	
+	// whether this can be folded into a layer
+	// the outputs of the layer must be the last dimension of its weights, and it needs a bias and no activation
+	public boolean canFoldInto(Layer layer){
+		if(layer instanceof FCLayer)
+			return layer.outputShape()[1] == channels && ((FCLayer)layer).activation() == Activation.linear && ((FCLayer)layer).bias() != null;
+		if(layer instanceof ConvLayer)
+			return ((ConvLayer)layer).activation() == Activation.linear && ((ConvLayer)layer).bias() != null;
+		if(layer instanceof DepthwiseSeparableConvLayer)
+			return ((DepthwiseSeparableConvLayer)layer).activation() == Activation.linear && ((DepthwiseSeparableConvLayer)layer).bias() != null;
+		return false;
+	}
+	
+	// folds the inference normalization into the weights and bias of the layer before this one,
+	// so this layer is not needed for inference
+	// gamma * (w * x + b - mean) / sqrt(var + epsilon) + beta = (w * scale) * x + (b * scale + shift)
+	public void foldInto(Layer layer){
+		if(!canFoldInto(layer))
+			throw new IllegalArgumentException("Bad layer for folding batch normalization!");
+		
+		FeedForwardParamsLayer l = (FeedForwardParamsLayer)layer;
+		double[] scale = new double[channels];
+		double[] shift = new double[channels];
+		scaleAndShift(scale, shift);
+		
+		Tensor w = l.weights();
+		for(int i = 0; i < w.size(); i++){
+			w.flatSet(i, w.flatGet(i) * scale[i % channels]);
+		}
+		
+		Tensor b = l.bias();
+		for(int c = 0; c < channels; c++){
+			b.flatSet(c, b.flatGet(c) * scale[c] + shift[c]);
+		}
+	}
+	
+	// the scale and shift are not regularized
+	@Override
+	public void update(Optimizer optimizer, Regularizer regularizer){
+		if(weightExtraParams == null){
+			weightExtraParams = new Tensor[optimizer.extraParams()];
+			for(int i = 0; i < weightExtraParams.length; i++){
+				weightExtraParams[i] = weights.zerosLike();
+			}
+			
+			if(useBias){
+				biasExtraParams = new Tensor[optimizer.extraParams()];
+				for(int i = 0; i < biasExtraParams.length; i++){
+					biasExtraParams[i] = bias.zerosLike();
+				}
+			}
+		}
+		
+		gradWeights.divi(Math.max(changeCount, 1));
+		weights.subi(optimizer.optimizeInPlace(gradWeights, weightExtraParams));
+		gradWeights.fill(0.0);
+		
+		if(useBias){
+			gradBias.divi(Math.max(changeCount, 1));
+			bias.subi(optimizer.optimizeInPlace(gradBias, biasExtraParams));
+			gradBias.fill(0.0);
+		}
+		changeCount = 0;
+	}
+	
+	// the running averages are saved too, because they are needed for inference
+	@Override
+	public int byteSize(){
+		return Double.BYTES * channels * (useBias ? 4 : 3);
+	}
+	
+	@Override
+	public ByteBuffer bytes(){
+		ByteBuffer bb = ByteBuffer.allocate(byteSize());
+		for(Tensor t : useBias ? new Tensor[]{weights, bias, runningMean, runningVar} : new Tensor[]{weights, runningMean, runningVar}){
+			for(int i = 0; i < t.size(); i++){
+				bb.putDouble(t.flatGet(i));
+			}
+		}
+		bb.flip();
+		return bb;
+	}
+	
+	@Override
+	public void readBytes(ByteBuffer bb){
+		// copied in place, which keeps the type and storage of the tensors
+		for(Tensor t : useBias ? new Tensor[]{weights, bias, runningMean, runningVar} : new Tensor[]{weights, runningMean, runningVar}){
+			double[] arr = new double[t.size()];
+			for(int i = 0; i < arr.length; i++){
+				arr[i] = bb.getDouble();
+			}
+			t.set(new Tensor(t.shape(), arr));
+		}
+	}
+	
+	@Override
+	public String toString(){
+		return "Batch Normalization\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape());
+	}
+}
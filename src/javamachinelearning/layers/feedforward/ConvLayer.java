@@ -5,9 +5,18 @@ import java.util.Arrays;
 
 import javamachinelearning.optimizers.Optimizer;
 import javamachinelearning.regularizers.Regularizer;
+import javamachinelearning.utils.Activation;
+import javamachinelearning.utils.BufferPool;
+import javamachinelearning.utils.DType;
+import javamachinelearning.utils.FFT;
+import javamachinelearning.utils.Parallel;
 import javamachinelearning.utils.Tensor;
 
 public class ConvLayer implements FeedForwardParamsLayer{
+	// windows with at least this many values use FFT when the algorithm is chosen automatically
+	// smaller windows are faster with im2col, because the matrix multiplies are faster than the transforms
+	private static final int FFT_WINDOW = 11 * 11;
+	
 	private Tensor weights;
 	private Tensor gradWeights;
 	private Tensor[] weightExtraParams;
@@ -25,6 +34,14 @@ public class ConvLayer implements FeedForwardParamsLayer{
 	private int changeCount;
 	private boolean alreadyInit = false;
 	private boolean useBias = true;
+	private boolean offHeap = false;
+	private Algorithm algorithm = Algorithm.AUTO;
+	private Activation activation = Activation.linear;
+	
+	// the column matrix of the last training input, which is reused for backpropagation
+	// it is only kept until the buffer pool scope of the training step is closed, or the next forward propagation
+	private Tensor cols;
+	private Tensor colsInput;
 	
 	public ConvLayer(int winWidth, int winHeight, int strideX, int strideY, int filterCount, int paddingX, int paddingY){
 		this.winWidth = winWidth;
@@ -105,15 +122,20 @@ public class ConvLayer implements FeedForwardParamsLayer{
 		int h = temp / strideY + 1;
 		
 		outputShape = new int[]{w, h, filterCount};
+		checkAlgorithm();
 		
 		if(!alreadyInit){
-			weights = new Tensor(new int[]{winWidth, winHeight, inputShape[2], filterCount}, true);
+			weights = tensor(new int[]{winWidth, winHeight, inputShape[2], filterCount}, true);
 			if(useBias)
-				bias = new Tensor(new int[]{1, 1, filterCount}, false);
+				bias = tensor(new int[]{1, 1, filterCount}, false);
 		}
-		gradWeights = new Tensor(new int[]{winWidth, winHeight, inputShape[2], filterCount}, false);
+		gradWeights = tensor(new int[]{winWidth, winHeight, inputShape[2], filterCount}, false);
 		if(useBias)
-			gradBias = new Tensor(new int[]{1, 1, filterCount}, false);
+			gradBias = tensor(new int[]{1, 1, filterCount}, false);
+	}
+	
+	private Tensor tensor(int[] shape, boolean rand){
+		return offHeap ? Tensor.offHeap(shape, rand) : new Tensor(shape, rand);
 	}
 	
 	@Override
@@ -131,6 +153,69 @@ public class ConvLayer implements FeedForwardParamsLayer{
 		return this;
 	}
 	
+	@Override
+	public FeedForwardParamsLayer offHeap(){
+		offHeap = true;
+		return this;
+	}
+	
+	// the activation is applied in the same pass as the bias, and its derivative is multiplied
+	// in the same pass as the error, instead of in a separate activation layer
+	public ConvLayer activation(Activation activation){
+		this.activation = activation;
+		return this;
+	}
+	
+	public Activation activation(){
+		return activation;
+	}
+	
+	// whether to convolve with matrix multiplies (im2col)
+	// otherwise, the windows are looped through directly, which uses less memory
+	public ConvLayer im2col(boolean im2col){
+		return algorithm(im2col ? Algorithm.IM2COL : Algorithm.DIRECT);
+	}
+	
+	public ConvLayer algorithm(Algorithm algorithm){
+		this.algorithm = algorithm;
+		if(inputShape != null)
+			checkAlgorithm();
+		return this;
+	}
+	
+	private void checkAlgorithm(){
+		if((algorithm == Algorithm.WINOGRAD_2X2 || algorithm == Algorithm.WINOGRAD_4X4) &&
+				(winWidth != 3 || winHeight != 3 || strideX != 1 || strideY != 1))
+			throw new IllegalArgumentException("Bad sizes for Winograd convolution!");
+	}
+	
+	// the algorithm that is used when it is chosen automatically
+	// when training, the column matrix from im2col is needed for the gradients anyways
+	// otherwise, 3x3 windows use Winograd, and very large windows use FFT
+	// small outputs use the smaller Winograd tiles, so less of the last tiles is wasted
+	private Algorithm algorithm(boolean training){
+		if(algorithm != Algorithm.AUTO)
+			return algorithm;
+		if(training || strideX != 1 || strideY != 1)
+			return Algorithm.IM2COL;
+		
+		if(winWidth == 3 && winHeight == 3)
+			return Math.min(outputShape[0], outputShape[1]) >= 8 ? Algorithm.WINOGRAD_4X4 : Algorithm.WINOGRAD_2X2;
+		if(winWidth * winHeight >= FFT_WINDOW)
+			return Algorithm.FFT;
+		return Algorithm.IM2COL;
+	}
+	
+	@Override
+	public void free(){
+		dropCols();
+		Tensor.free(weights, gradWeights, bias, gradBias);
+		if(weightExtraParams != null)
+			Tensor.free(weightExtraParams);
+		if(biasExtraParams != null)
+			Tensor.free(biasExtraParams);
+	}
+	
 	@Override
 	public Tensor bias(){
 		return bias;
@@ -154,14 +239,261 @@ public class ConvLayer implements FeedForwardParamsLayer{
 	
 	@Override
 	public Tensor forwardPropagate(Tensor input, boolean training){
+		Algorithm a = algorithm(training);
+		if(a == Algorithm.DIRECT)
+			return forwardDirect(input);
+		else
+			return forward(a, input, 1, training).reshape(outputShape).to(input.dtype());
+	}
+	
+	// the gradients are always computed with im2col, unless the direct loops are chosen
+	@Override
+	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
+		error = activation.backPropagate(output, error);
+		if(algorithm == Algorithm.DIRECT)
+			return backPropagateDirect(input, error);
+		else
+			return backPropagateIm2col(input, error, 1).reshape(inputShape).to(input.dtype());
+	}
+	
+	private Tensor forward(Algorithm a, Tensor input, int batchSize, boolean training){
+		dropCols();
+		
+		switch(a){
+			case WINOGRAD_2X2:
+			case WINOGRAD_4X4:
+				double[] res = new Winograd(a == Algorithm.WINOGRAD_2X2 ? 2 : 4).convolve(
+						input.asDoubles(), batchSize, inputShape[0], inputShape[1], inputShape[2],
+						weights.asDoubles(), filterCount, outputShape[0], outputShape[1], paddingX, paddingY);
+				return activate(new Tensor(new int[]{batchSize * outputShape[0] * outputShape[1], filterCount}, res));
+			case FFT:
+				return forwardFFT(input, batchSize);
+			default:
+				return forwardIm2col(input, batchSize, training);
+		}
+	}
+	
+	// adds the bias and applies the activation in the same pass
+	private Tensor activate(Tensor res){
+		return activation.activateBias(res, useBias ? bias : null);
+	}
+	
+	// the output at each position is the dot product of the window of the input at that position and the weights
+	// so if each window is a row of a matrix, then the whole convolution is one matrix multiply with the weights
+	// the windows of every sample in a batch are rows of the same matrix
+	private Tensor forwardIm2col(Tensor input, int batchSize, boolean training){
+		Tensor c = im2colMatrix(input, batchSize);
+		if(training){
+			cols = c;
+			colsInput = input;
+			// outside of a scope, it is dropped right away, and backpropagation makes the matrix again
+			BufferPool.onClose(this::dropCols);
+		}
+		
+		return activate(weightsMatrix(weights).dot(c));
+	}
+	
+	// convolution is multiplication after a Fourier transform, so each depth slice of the input is transformed once,
+	// and each window is transformed once, no matter how large they are
+	// the input is zero padded to a power of 2, which is large enough that the transforms do not wrap around
+	private Tensor forwardFFT(Tensor input, int batchSize){
+		int width = inputShape[0] + paddingX * 2;
+		int height = inputShape[1] + paddingY * 2;
+		int n0 = FFT.size(width);
+		int n1 = FFT.size(height);
+		int n = n0 * n1;
+		int depth = inputShape[2];
+		double[] in = input.asDoubles();
+		double[] w = weights.asDoubles();
+		
+		// transform each depth slice of each sample, in parallel
+		double[] inRe = new double[batchSize * depth * n];
+		double[] inIm = new double[batchSize * depth * n];
+		Parallel.forRange(0, batchSize * depth, (long)n * 32, (start, end) -> {
+			for(int k = start; k < end; k++){
+				int b = k / depth;
+				int c = k % depth;
+				int off = k * n;
+				for(int x = 0; x < inputShape[0]; x++){
+					for(int y = 0; y < inputShape[1]; y++){
+						inRe[off + (x + paddingX) * n1 + y + paddingY] = in[((b * inputShape[0] + x) * inputShape[1] + y) * depth + c];
+					}
+				}
+				FFT.fft2(inRe, inIm, off, n0, n1, false);
+			}
+		});
+		
+		// the filters are done in parallel, and each range of filters has its own buffers
+		double[] res = new double[batchSize * outputShape[0] * outputShape[1] * filterCount];
+		Parallel.forRange(0, filterCount, (long)(batchSize + 32) * depth * n, (start, end) -> {
+			double[] wRe = new double[n];
+			double[] wIm = new double[n];
+			double[] sumRe = new double[batchSize * n];
+			double[] sumIm = new double[batchSize * n];
+			
+			for(int f = start; f < end; f++){
+				Arrays.fill(sumRe, 0.0);
+				Arrays.fill(sumIm, 0.0);
+				
+				for(int c = 0; c < depth; c++){
+					Arrays.fill(wRe, 0.0);
+					Arrays.fill(wIm, 0.0);
+					for(int rx = 0; rx < winWidth; rx++){
+						for(int ry = 0; ry < winHeight; ry++){
+							wRe[rx * n1 + ry] = w[((rx * winHeight + ry) * depth + c) * filterCount + f];
+						}
+					}
+					FFT.fft2(wRe, wIm, 0, n0, n1, false);
+					
+					// sliding the window over the input is multiplying by the conjugate of the window
+					for(int b = 0; b < batchSize; b++){
+						int off = (b * depth + c) * n;
+						for(int i = 0; i < n; i++){
+							sumRe[b * n + i] += inRe[off + i] * wRe[i] + inIm[off + i] * wIm[i];
+							sumIm[b * n + i] += inIm[off + i] * wRe[i] - inRe[off + i] * wIm[i];
+						}
+					}
+				}
+				
+				// only every stride-th value of the result is kept
+				for(int b = 0; b < batchSize; b++){
+					FFT.fft2(sumRe, sumIm, b * n, n0, n1, true);
+					for(int i = 0; i < outputShape[0]; i++){
+						for(int j = 0; j < outputShape[1]; j++){
+							res[((b * outputShape[0] + i) * outputShape[1] + j) * filterCount + f] = sumRe[b * n + i * strideX * n1 + j * strideY];
+						}
+					}
+				}
+			}
+		});
+		
+		return activate(new Tensor(new int[]{batchSize * outputShape[0] * outputShape[1], filterCount}, res));
+	}
+	
+	private Tensor backPropagateIm2col(Tensor input, Tensor error, int batchSize){
+		Tensor c = input == colsInput ? cols : im2colMatrix(input, batchSize);
+		Tensor e = error.reshape(batchSize * outputShape[0] * outputShape[1], filterCount);
+		
+		// the same as a fully connected layer, with the windows as the inputs
+		Tensor.dot(e, c, false, true, weightsMatrix(gradWeights), true);
+		if(useBias)
+			gradBias.addiSumFirst(e);
+		
+		// the gradient of each window is added back to where the window is in the input
+		Tensor gradCols = weightsMatrix(weights).dot(e, true, false);
+		
+		dropCols();
+		changeCount += batchSize;
+		
+		return col2im(gradCols, batchSize);
+	}
+	
+	private void dropCols(){
+		cols = null;
+		colsInput = null;
+	}
+	
+	// the weights as a (window size) x (filter count) matrix
+	private Tensor weightsMatrix(Tensor w){
+		return w.reshape(winWidth * winHeight * inputShape[2], filterCount);
+	}
+	
+	// each row is the window of the input at one output position, in the same order as the weights
+	// windows that go past the edges are zero padded
+	private Tensor im2colMatrix(Tensor input, int batchSize){
+		int depth = inputShape[2];
+		int inSize = inputShape[0] * inputShape[1] * depth;
+		int rowSize = winWidth * winHeight * depth;
+		double[] in = input.asDoubles();
+		
+		Tensor res = new Tensor(new int[]{batchSize * outputShape[0] * outputShape[1], rowSize}, DType.FLOAT64, false);
+		double[] c = res.storage().doubles();
+		
+		// each output row of each sample is filled in parallel
+		Parallel.forRange(0, batchSize * outputShape[0], (long)outputShape[1] * rowSize, (start, end) -> {
+			for(int k = start; k < end; k++){
+				int b = k / outputShape[0];
+				int i = k % outputShape[0] * strideX;
+				int idx = k * outputShape[1] * rowSize;
+				
+				for(int j = 0; j < outputShape[1] * strideY; j += strideY){
+					for(int rx = 0; rx < winWidth; rx++){
+						int x = i - paddingX + rx;
+						
+						for(int ry = 0; ry < winHeight; ry++){
+							int y = j - paddingY + ry;
+							
+							// the depth slice at each location is contiguous in both matrices
+							if(x >= 0 && x < inputShape[0] && y >= 0 && y < inputShape[1])
+								System.arraycopy(in, b * inSize + (x * inputShape[1] + y) * depth, c, idx, depth);
+							
+							idx += depth;
+						}
+					}
+				}
+			}
+		});
+		
+		return res.to(weights.dtype());
+	}
+	
+	// adds each row back to the window of the input that it came from
+	// each input row collects the rows of the windows that cover it, so the input rows are done in parallel
+	private Tensor col2im(Tensor gradCols, int batchSize){
+		int depth = inputShape[2];
+		int inSize = inputShape[0] * inputShape[1] * depth;
+		int rowSize = winWidth * winHeight * depth;
+		double[] c = gradCols.asDoubles();
+		
+		double[] res = new double[batchSize * inSize];
+		
+		Parallel.forRange(0, batchSize * inputShape[0], (long)outputShape[0] * outputShape[1] * rowSize / inputShape[0], (start, end) -> {
+			for(int k = start; k < end; k++){
+				int b = k / inputShape[0];
+				int x = k % inputShape[0];
+				
+				for(int oi = 0; oi < outputShape[0]; oi++){
+					// the row of the window that is over this input row
+					int rx = x + paddingX - oi * strideX;
+					if(rx < 0 || rx >= winWidth)
+						continue;
+					
+					for(int oj = 0; oj < outputShape[1]; oj++){
+						int idx = ((b * outputShape[0] + oi) * outputShape[1] + oj) * rowSize + rx * winHeight * depth;
+						
+						for(int ry = 0; ry < winHeight; ry++){
+							int y = oj * strideY - paddingY + ry;
+							
+							if(y >= 0 && y < inputShape[1]){
+								int inIdx = b * inSize + (x * inputShape[1] + y) * depth;
+								for(int d = 0; d < depth; d++){
+									res[inIdx + d] += c[idx + d];
+								}
+							}
+							
+							idx += depth;
+						}
+					}
+				}
+			}
+		});
+		
+		return new Tensor(new int[]{batchSize, inSize}, res);
+	}
+	
+	private Tensor forwardDirect(Tensor input){
 		double[] res = new double[outputShape[0] * outputShape[1] * filterCount];
 		int[] inMult = input.mult(); // equals the mult for inputShape because input shape equals inputShape
 		int[] wMult = weights.mult();
-		int idx = 0;
 		
-		for(int i = 0; i < outputShape[0] * strideX; i += strideX){
-			for(int j = 0; j < outputShape[1] * strideY; j += strideY){
-				for(int filter = 0; filter < filterCount; filter++){
+		// each output row of each filter is computed in parallel
+		Parallel.forRange(0, outputShape[0] * filterCount, (long)outputShape[1] * winWidth * winHeight * inputShape[2], (start, end) -> {
+			for(int k = start; k < end; k++){
+				int i = k / filterCount * strideX;
+				int filter = k % filterCount;
+				int idx = k / filterCount * outputShape[1] * filterCount + filter;
+				
+				for(int j = 0; j < outputShape[1] * strideY; j += strideY){
 					// relative to each filter
 					for(int rx = 0; rx < winWidth; rx++){
 						for(int ry = 0; ry < winHeight; ry++){
@@ -185,100 +517,129 @@ public class ConvLayer implements FeedForwardParamsLayer{
 					if(useBias)
 						res[idx] += bias.flatGet(filter);
 					
-					idx++;
+					idx += filterCount;
 				}
 			}
-		}
+		});
 		
-		return new Tensor(outputShape, res);
+		return activation.activateBias(new Tensor(outputShape, res), null).to(input.dtype());
 	}
 	
-	@Override
-	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
+	private Tensor backPropagateDirect(Tensor input, Tensor error){
 		// calculate weight gradients and bias gradients
-		double[] deltaW = new double[weights.size()];
-		double[] deltaB = new double[bias.size()];
+		// they are accumulated directly into the gradient tensors
+		// each filter only has its own weights, so the filters are done in parallel
 		int[] inMult = input.mult();
 		int[] wMult = weights.mult();
-		int gradIdx = 0;
+		long work = (long)outputShape[0] * outputShape[1] * winWidth * winHeight * inputShape[2];
 		
-		for(int i = 0; i < outputShape[0] * strideX; i += strideX){
-			for(int j = 0; j < outputShape[1] * strideY; j += strideY){
-				for(int filter = 0; filter < filterCount; filter++){
-					// relative to each filter
-					for(int rx = 0; rx < winWidth; rx++){
-						for(int ry = 0; ry < winHeight; ry++){
-							for(int depth = 0; depth < inputShape[2]; depth++){
-								// absolute positions
-								int x = i - paddingX + rx;
-								int y = j - paddingY + ry;
-								
-								// handle zero padding
-								if(x < 0 || x >= inputShape[0] || y < 0 || y >= inputShape[1])
-									continue;
-								
-								int wIdx = rx * wMult[0] + ry * wMult[1] + depth * wMult[2] + filter;
-								
-								// multiply gradients by previous layer's output
-								// accumulate gradients for each weight
-								deltaW[wIdx] += error.flatGet(gradIdx) *
-										input.flatGet(x * inMult[0] + y * inMult[1] + depth);
+		Parallel.forRange(0, filterCount, work, (start, end) -> {
+			for(int filter = start; filter < end; filter++){
+				int gradIdx = filter;
+				
+				for(int i = 0; i < outputShape[0] * strideX; i += strideX){
+					for(int j = 0; j < outputShape[1] * strideY; j += strideY){
+						// relative to each filter
+						for(int rx = 0; rx < winWidth; rx++){
+							for(int ry = 0; ry < winHeight; ry++){
+								for(int depth = 0; depth < inputShape[2]; depth++){
+									// absolute positions
+									int x = i - paddingX + rx;
+									int y = j - paddingY + ry;
+									
+									// handle zero padding
+									if(x < 0 || x >= inputShape[0] || y < 0 || y >= inputShape[1])
+										continue;
+									
+									int wIdx = rx * wMult[0] + ry * wMult[1] + depth * wMult[2] + filter;
+									
+									// multiply gradients by previous layer's output
+									// accumulate gradients for each weight
+									gradWeights.flatSet(wIdx, gradWeights.flatGet(wIdx) + error.flatGet(gradIdx) *
+											input.flatGet(x * inMult[0] + y * inMult[1] + depth));
+								}
 							}
 						}
+						
+						// accumulate gradients for the biases
+						// one bias per filter!
+						if(useBias)
+							gradBias.flatSet(filter, gradBias.flatGet(filter) + error.flatGet(gradIdx));
+						
+						gradIdx += filterCount;
 					}
-					
-					// accumulate gradients for the biases
-					// one bias per filter!
-					if(useBias)
-						deltaB[filter] += error.flatGet(gradIdx);
-					
-					gradIdx++;
 				}
 			}
-		}
-		
-		gradWeights = gradWeights.add(new Tensor(weights.shape(), deltaW));
-		
-		if(useBias)
-			gradBias = gradBias.add(new Tensor(bias.shape(), deltaB));
+		});
 		
 		// calculate the gradients wrt input
+		// each input row collects the gradients from the windows that cover it, so the rows are done in parallel
 		double[] gradInputs = new double[input.size()];
-		gradIdx = 0;
 		
-		for(int i = 0; i < outputShape[0] * strideX; i += strideX){
-			for(int j = 0; j < outputShape[1] * strideY; j += strideY){
-				for(int filter = 0; filter < filterCount; filter++){
-					// relative to each filter
-					for(int rx = 0; rx < winWidth; rx++){
+		Parallel.forRange(0, inputShape[0], work * filterCount / inputShape[0], (start, end) -> {
+			for(int x = start; x < end; x++){
+				for(int oi = 0; oi < outputShape[0]; oi++){
+					// the row of the window that is over this input row
+					int rx = x + paddingX - oi * strideX;
+					if(rx < 0 || rx >= winWidth)
+						continue;
+					
+					for(int oj = 0; oj < outputShape[1]; oj++){
 						for(int ry = 0; ry < winHeight; ry++){
-							for(int depth = 0; depth < inputShape[2]; depth++){
-								// absolute positions
-								int x = i - paddingX + rx;
-								int y = j - paddingY + ry;
-								
-								// handle zero padding
-								if(x < 0 || x >= inputShape[0] || y < 0 || y >= inputShape[1])
-									continue;
+							int y = oj * strideY - paddingY + ry;
+							
+							// handle zero padding
+							if(y < 0 || y >= inputShape[1])
+								continue;
+							
+							for(int filter = 0; filter < filterCount; filter++){
+								double e = error.flatGet((oi * outputShape[1] + oj) * filterCount + filter);
 								
-								int inIdx = x * inMult[0] + y * inMult[1] + depth;
-								
-								// multiply gradients by each weight
-								// accumulate gradients for each input
-								gradInputs[inIdx] += error.flatGet(gradIdx) *
-										weights.flatGet(rx * wMult[0] + ry * wMult[1] + depth * wMult[2] + filter);
+								for(int depth = 0; depth < inputShape[2]; depth++){
+									// multiply gradients by each weight
+									// accumulate gradients for each input
+									gradInputs[x * inMult[0] + y * inMult[1] + depth] += e *
+											weights.flatGet(rx * wMult[0] + ry * wMult[1] + depth * wMult[2] + filter);
+								}
 							}
 						}
 					}
-					
-					gradIdx++;
 				}
 			}
-		}
+		});
 		
 		changeCount++;
 		
-		return new Tensor(inputShape, gradInputs);
+		return new Tensor(inputShape, gradInputs).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		int batchSize = input.shape()[0];
+		Algorithm a = algorithm(training);
+		if(a != Algorithm.DIRECT)
+			return forward(a, input, batchSize, training).reshape(batchSize, outputShape[0], outputShape[1], filterCount).to(input.dtype());
+		
+		// the samples are convolved one at a time, into the slices of the result
+		Tensor res = new Tensor(new int[]{batchSize, outputShape[0], outputShape[1], outputShape[2]}, input.dtype(), false);
+		for(int i = 0; i < batchSize; i++){
+			res.get(i).set(forwardPropagate(input.get(i), training));
+		}
+		return res;
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		int batchSize = input.shape()[0];
+		error = activation.backPropagate(output, error);
+		if(algorithm != Algorithm.DIRECT)
+			return backPropagateIm2col(input, error, batchSize).reshape(input.shape()).to(input.dtype());
+		
+		Tensor res = new Tensor(input.shape(), input.dtype(), false);
+		for(int i = 0; i < batchSize; i++){
+			res.get(i).set(backPropagateDirect(input.get(i), error.get(i)));
+		}
+		return res;
 	}
 	
 	@Override
@@ -286,34 +647,27 @@ public class ConvLayer implements FeedForwardParamsLayer{
 		if(weightExtraParams == null){
 			weightExtraParams = new Tensor[optimizer.extraParams()];
 			for(int i = 0; i < weightExtraParams.length; i++){
-				weightExtraParams[i] = new Tensor(weights.shape(), false);
+				weightExtraParams[i] = weights.zerosLike();
 			}
 			
 			if(useBias){
 				biasExtraParams = new Tensor[optimizer.extraParams()];
 				for(int i = 0; i < biasExtraParams.length; i++){
-					biasExtraParams[i] = new Tensor(bias.shape(), false);
+					biasExtraParams[i] = bias.zerosLike();
 				}
 			}
 		}
 		
-		if(regularizer == null){
-			weights = weights.sub(
-					optimizer.optimize(
-							gradWeights.div(Math.max(changeCount, 1)), weightExtraParams));
-		}else{
-			weights = weights.sub(
-					optimizer.optimize(
-							gradWeights.div(Math.max(changeCount, 1)).add(
-									regularizer.derivative(weights)), weightExtraParams));
-		}
-		gradWeights = new Tensor(gradWeights.shape(), false);
+		gradWeights.divi(Math.max(changeCount, 1));
+		if(regularizer != null)
+			regularizer.addDerivative(weights, gradWeights);
+		weights.subi(optimizer.optimizeInPlace(gradWeights, weightExtraParams));
+		gradWeights.fill(0.0);
 		
 		if(useBias){
-			bias = bias.sub(
-					optimizer.optimize(
-							gradBias.div(Math.max(changeCount, 1)), biasExtraParams));
-			gradBias = new Tensor(gradBias.shape(), false);
+			gradBias.divi(Math.max(changeCount, 1));
+			bias.subi(optimizer.optimizeInPlace(gradBias, biasExtraParams));
+			gradBias.fill(0.0);
 		}
 		changeCount = 0;
 	}
@@ -344,23 +698,31 @@ public class ConvLayer implements FeedForwardParamsLayer{
 		for(int i = 0; i < w.length; i++){
 			w[i] = bb.getDouble();
 		}
-		weights = new Tensor(weights.shape(), w);
+		// copied in place, which keeps the type and storage of the weights
+		weights.set(new Tensor(weights.shape(), w));
 		
 		if(useBias){
 			double[] b = new double[bias.size()];
 			for(int i = 0; i < b.length; i++){
 				b[i] = bb.getDouble();
 			}
-			bias = new Tensor(bias.shape(), b);
+			bias.set(new Tensor(bias.shape(), b));
 		}
 	}
 	
 	@Override
 	public String toString(){
-		return "Convolutional\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape());
+		return "Convolutional\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape())
+				+ (activation == Activation.linear ? "" : "\tActivation: " + activation.toString());
 	}
 	
 	public enum PaddingType{
 		VALID, SAME;
 	}
+	
+	// Winograd only works with 3x3 windows and a stride of 1
+	// the results of Winograd and FFT can differ from the others by rounding errors
+	public enum Algorithm{
+		AUTO, DIRECT, IM2COL, WINOGRAD_2X2, WINOGRAD_4X4, FFT;
+	}
 }
@@ -0,0 +1,460 @@
+package javamachinelearning.layers.feedforward;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javamachinelearning.layers.feedforward.ConvLayer.PaddingType;
+import javamachinelearning.optimizers.Optimizer;
+import javamachinelearning.regularizers.Regularizer;
+import javamachinelearning.utils.Activation;
+import javamachinelearning.utils.Parallel;
+import javamachinelearning.utils.Tensor;
+
+// a convolution that is split into two steps
+// the depthwise step convolves each depth slice of the input with its own window
+// the pointwise step is a 1x1 convolution that mixes the depth slices into the filters
+// this needs about (window size) + (filter count) multiplies for each input value and output position,
+// instead of (window size) * (filter count) for a normal convolution
+public class DepthwiseSeparableConvLayer implements FeedForwardParamsLayer{
+	// depthwise weights, one window for each depth slice
+	private Tensor depthWeights;
+	private Tensor gradDepthWeights;
+	private Tensor[] depthExtraParams;
+	
+	// pointwise weights, a (input depth) x (filter count) matrix
+	private Tensor weights;
+	private Tensor gradWeights;
+	private Tensor[] weightExtraParams;
+	
+	private Tensor bias;
+	private Tensor gradBias;
+	private Tensor[] biasExtraParams;
+	
+	private int[] inputShape;
+	private int[] outputShape;
+	private int winWidth, winHeight;
+	private int strideX, strideY;
+	private int paddingX, paddingY;
+	private int filterCount;
+	private int changeCount;
+	private boolean alreadyInit = false;
+	private boolean useBias = true;
+	private boolean offHeap = false;
+	private Activation activation = Activation.linear;
+	
+	// the output of the depthwise step for the last training input, which is reused for backpropagation
+	private double[] depthOutput;
+	private Tensor depthInput;
+	
+	public DepthwiseSeparableConvLayer(int winWidth, int winHeight, int strideX, int strideY, int filterCount, int paddingX, int paddingY){
+		this.winWidth = winWidth;
+		this.winHeight = winHeight;
+		this.strideX = strideX;
+		this.strideY = strideY;
+		this.filterCount = filterCount;
+		this.paddingX = paddingX;
+		this.paddingY = paddingY;
+	}
+	
+	public DepthwiseSeparableConvLayer(int winSize, int stride, int filterCount, int padding){
+		this(winSize, winSize, stride, stride, filterCount, padding, padding);
+	}
+	
+	public DepthwiseSeparableConvLayer(int winSize, int filterCount, int padding){
+		this(winSize, 1, filterCount, padding);
+	}
+	
+	public DepthwiseSeparableConvLayer(int winSize, int stride, int filterCount, PaddingType type){
+		this(winSize, winSize, stride, stride, filterCount, 0, 0);
+		if(type == PaddingType.SAME){
+			if((winSize - 1) % 2 != 0)
+				throw new IllegalArgumentException("Bad sizes for convolution!");
+			this.paddingX = (winSize - 1) / 2;
+			this.paddingY = (winSize - 1) / 2;
+		}
+	}
+	
+	public DepthwiseSeparableConvLayer(int winSize, int filterCount, PaddingType type){
+		this(winSize, 1, filterCount, type);
+	}
+	
+	public DepthwiseSeparableConvLayer(int winSize, int filterCount){
+		this(winSize, filterCount, PaddingType.VALID);
+	}
+	
+	@Override
+	public int[] outputShape(){
+		return outputShape;
+	}
+	
+	@Override
+	public int[] inputShape(){
+		return inputShape;
+	}
+	
+	@Override
+	public void init(int[] inputShape){
+		this.inputShape = inputShape;
+		
+		int temp = inputShape[0] - winWidth + paddingX * 2;
+		if(temp % strideX != 0)
+			throw new IllegalArgumentException("Bad sizes for convolution!");
+		int w = temp / strideX + 1;
+		
+		temp = inputShape[1] - winHeight + paddingY * 2;
+		if(temp % strideY != 0)
+			throw new IllegalArgumentException("Bad sizes for convolution!");
+		int h = temp / strideY + 1;
+		
+		outputShape = new int[]{w, h, filterCount};
+		
+		if(!alreadyInit){
+			depthWeights = tensor(new int[]{winWidth, winHeight, inputShape[2]}, true);
+			weights = tensor(new int[]{inputShape[2], filterCount}, true);
+			if(useBias)
+				bias = tensor(new int[]{1, 1, filterCount}, false);
+		}
+		gradDepthWeights = tensor(new int[]{winWidth, winHeight, inputShape[2]}, false);
+		gradWeights = tensor(new int[]{inputShape[2], filterCount}, false);
+		if(useBias)
+			gradBias = tensor(new int[]{1, 1, filterCount}, false);
+	}
+	
+	private Tensor tensor(int[] shape, boolean rand){
+		return offHeap ? Tensor.offHeap(shape, rand) : new Tensor(shape, rand);
+	}
+	
+	// the weights are the pointwise weights
+	@Override
+	public FeedForwardParamsLayer withParams(Tensor w, Tensor b){
+		weights = w;
+		if(useBias)
+			bias = b;
+		alreadyInit = true;
+		return this;
+	}
+	
+	public FeedForwardParamsLayer withParams(Tensor depthwise, Tensor w, Tensor b){
+		depthWeights = depthwise;
+		return withParams(w, b);
+	}
+	
+	@Override
+	public FeedForwardParamsLayer noBias(){
+		useBias = false;
+		return this;
+	}
+	
+	@Override
+	public FeedForwardParamsLayer offHeap(){
+		offHeap = true;
+		return this;
+	}
+	
+	// the activation is applied in the same pass as the bias, and its derivative is multiplied
+	// in the same pass as the error, instead of in a separate activation layer
+	public DepthwiseSeparableConvLayer activation(Activation activation){
+		this.activation = activation;
+		return this;
+	}
+	
+	public Activation activation(){
+		return activation;
+	}
+	
+	@Override
+	public void free(){
+		Tensor.free(depthWeights, gradDepthWeights, weights, gradWeights, bias, gradBias);
+		if(depthExtraParams != null)
+			Tensor.free(depthExtraParams);
+		if(weightExtraParams != null)
+			Tensor.free(weightExtraParams);
+		if(biasExtraParams != null)
+			Tensor.free(biasExtraParams);
+	}
+	
+	@Override
+	public Tensor bias(){
+		return bias;
+	}
+	
+	@Override
+	public Tensor weights(){
+		return weights;
+	}
+	
+	public Tensor depthwiseWeights(){
+		return depthWeights;
+	}
+	
+	@Override
+	public void setBias(Tensor b){
+		if(useBias)
+			bias = b;
+	}
+	
+	@Override
+	public void setWeights(Tensor w){
+		weights = w;
+	}
+	
+	public void setDepthwiseWeights(Tensor w){
+		depthWeights = w;
+	}
+	
+	@Override
+	public Tensor forwardPropagate(Tensor input, boolean training){
+		return forward(input, 1, training).reshape(outputShape).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
+		return backward(input, activation.backPropagate(output, error), 1).reshape(inputShape).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		int batchSize = input.shape()[0];
+		return forward(input, batchSize, training).reshape(batchSize, outputShape[0], outputShape[1], filterCount).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		return backward(input, activation.backPropagate(output, error), input.shape()[0]).reshape(input.shape()).to(input.dtype());
+	}
+	
+	// the pointwise step is a matrix multiply, with each output position of each sample as a row
+	private Tensor forward(Tensor input, int batchSize, boolean training){
+		double[] d = depthwise(input.asDoubles(), batchSize);
+		if(training){
+			depthOutput = d;
+			depthInput = input;
+		}
+		
+		Tensor res = weights.dot(new Tensor(new int[]{batchSize * outputShape[0] * outputShape[1], inputShape[2]}, d));
+		return activation.activateBias(res, useBias ? bias : null);
+	}
+	
+	private Tensor backward(Tensor input, Tensor error, int batchSize){
+		double[] in = input.asDoubles();
+		double[] d = input == depthInput ? depthOutput : depthwise(in, batchSize);
+		Tensor depth = new Tensor(new int[]{batchSize * outputShape[0] * outputShape[1], inputShape[2]}, d);
+		Tensor e = error.reshape(batchSize * outputShape[0] * outputShape[1], filterCount);
+		
+		// the pointwise step is the same as a fully connected layer
+		Tensor.dot(e, depth, false, true, gradWeights, true);
+		if(useBias)
+			gradBias.addiSumFirst(e);
+		double[] gradDepth = weights.dot(e, true, false).asDoubles();
+		
+		depthOutput = null;
+		depthInput = null;
+		changeCount += batchSize;
+		
+		gradDepthWeights.addi(new Tensor(depthWeights.shape(), depthwiseWeightGrads(in, gradDepth, batchSize)));
+		return new Tensor(new int[]{batchSize, inputShape[0] * inputShape[1] * inputShape[2]}, depthwiseInputGrads(gradDepth, batchSize));
+	}
+	
+	// each depth slice is convolved with its own window
+	// the depth is the last dimension, so whole depth vectors are multiplied at a time
+	private double[] depthwise(double[] in, int batchSize){
+		int depth = inputShape[2];
+		int inSize = inputShape[0] * inputShape[1] * depth;
+		double[] w = depthWeights.asDoubles();
+		double[] res = new double[batchSize * outputShape[0] * outputShape[1] * depth];
+		
+		// each output row of each sample is computed in parallel
+		Parallel.forRange(0, batchSize * outputShape[0], (long)outputShape[1] * winWidth * winHeight * depth, (start, end) -> {
+			for(int k = start; k < end; k++){
+				int b = k / outputShape[0];
+				int i = k % outputShape[0] * strideX;
+				int idx = k * outputShape[1] * depth;
+				
+				for(int j = 0; j < outputShape[1] * strideY; j += strideY){
+					for(int rx = 0; rx < winWidth; rx++){
+						int x = i - paddingX + rx;
+						
+						for(int ry = 0; ry < winHeight; ry++){
+							int y = j - paddingY + ry;
+							
+							// handle zero padding
+							if(x < 0 || x >= inputShape[0] || y < 0 || y >= inputShape[1])
+								continue;
+							
+							int inIdx = b * inSize + (x * inputShape[1] + y) * depth;
+							int wIdx = (rx * winHeight + ry) * depth;
+							for(int c = 0; c < depth; c++){
+								res[idx + c] += in[inIdx + c] * w[wIdx + c];
+							}
+						}
+					}
+					
+					idx += depth;
+				}
+			}
+		});
+		
+		return res;
+	}
+	
+	// each position in the window only has its own weights, so the positions are done in parallel
+	private double[] depthwiseWeightGrads(double[] in, double[] gradDepth, int batchSize){
+		int depth = inputShape[2];
+		int inSize = inputShape[0] * inputShape[1] * depth;
+		double[] res = new double[winWidth * winHeight * depth];
+		
+		Parallel.forRange(0, winWidth * winHeight, (long)batchSize * outputShape[0] * outputShape[1] * depth, (start, end) -> {
+			for(int k = start; k < end; k++){
+				int rx = k / winHeight;
+				int ry = k % winHeight;
+				int wIdx = k * depth;
+				
+				for(int b = 0; b < batchSize; b++){
+					for(int oi = 0; oi < outputShape[0]; oi++){
+						int x = oi * strideX - paddingX + rx;
+						if(x < 0 || x >= inputShape[0])
+							continue;
+						
+						for(int oj = 0; oj < outputShape[1]; oj++){
+							int y = oj * strideY - paddingY + ry;
+							if(y < 0 || y >= inputShape[1])
+								continue;
+							
+							int inIdx = b * inSize + (x * inputShape[1] + y) * depth;
+							int gradIdx = ((b * outputShape[0] + oi) * outputShape[1] + oj) * depth;
+							for(int c = 0; c < depth; c++){
+								res[wIdx + c] += in[inIdx + c] * gradDepth[gradIdx + c];
+							}
+						}
+					}
+				}
+			}
+		});
+		
+		return res;
+	}
+	
+	// each input row collects the gradients from the windows that cover it, so the rows are done in parallel
+	private double[] depthwiseInputGrads(double[] gradDepth, int batchSize){
+		int depth = inputShape[2];
+		int inSize = inputShape[0] * inputShape[1] * depth;
+		double[] w = depthWeights.asDoubles();
+		double[] res = new double[batchSize * inSize];
+		
+		Parallel.forRange(0, batchSize * inputShape[0], (long)outputShape[0] * outputShape[1] * winHeight * depth / inputShape[0], (start, end) -> {
+			for(int k = start; k < end; k++){
+				int b = k / inputShape[0];
+				int x = k % inputShape[0];
+				
+				for(int oi = 0; oi < outputShape[0]; oi++){
+					// the row of the window that is over this input row
+					int rx = x + paddingX - oi * strideX;
+					if(rx < 0 || rx >= winWidth)
+						continue;
+					
+					for(int oj = 0; oj < outputShape[1]; oj++){
+						int gradIdx = ((b * outputShape[0] + oi) * outputShape[1] + oj) * depth;
+						
+						for(int ry = 0; ry < winHeight; ry++){
+							int y = oj * strideY - paddingY + ry;
+							if(y < 0 || y >= inputShape[1])
+								continue;
+							
+							int inIdx = b * inSize + (x * inputShape[1] + y) * depth;
+							int wIdx = (rx * winHeight + ry) * depth;
+							for(int c = 0; c < depth; c++){
+								res[inIdx + c] += gradDepth[gradIdx + c] * w[wIdx + c];
+							}
+						}
+					}
+				}
+			}
+		});
+		
+		return res;
+	}
+	
+	@Override
+	public void update(Optimizer optimizer, Regularizer regularizer){
+		if(weightExtraParams == null){
+			depthExtraParams = new Tensor[optimizer.extraParams()];
+			weightExtraParams = new Tensor[optimizer.extraParams()];
+			for(int i = 0; i < weightExtraParams.length; i++){
+				depthExtraParams[i] = depthWeights.zerosLike();
+				weightExtraParams[i] = weights.zerosLike();
+			}
+			
+			if(useBias){
+				biasExtraParams = new Tensor[optimizer.extraParams()];
+				for(int i = 0; i < biasExtraParams.length; i++){
+					biasExtraParams[i] = bias.zerosLike();
+				}
+			}
+		}
+		
+		gradDepthWeights.divi(Math.max(changeCount, 1));
+		if(regularizer != null)
+			regularizer.addDerivative(depthWeights, gradDepthWeights);
+		depthWeights.subi(optimizer.optimizeInPlace(gradDepthWeights, depthExtraParams));
+		gradDepthWeights.fill(0.0);
+		
+		gradWeights.divi(Math.max(changeCount, 1));
+		if(regularizer != null)
+			regularizer.addDerivative(weights, gradWeights);
+		weights.subi(optimizer.optimizeInPlace(gradWeights, weightExtraParams));
+		gradWeights.fill(0.0);
+		
+		if(useBias){
+			gradBias.divi(Math.max(changeCount, 1));
+			bias.subi(optimizer.optimizeInPlace(gradBias, biasExtraParams));
+			gradBias.fill(0.0);
+		}
+		changeCount = 0;
+	}
+	
+	@Override
+	public int byteSize(){
+		return Double.BYTES * (depthWeights.size() + weights.size()) + (useBias ? Double.BYTES * bias.size() : 0);
+	}
+	
+	@Override
+	public ByteBuffer bytes(){
+		ByteBuffer bb = ByteBuffer.allocate(byteSize());
+		for(int i = 0; i < depthWeights.size(); i++){
+			bb.putDouble(depthWeights.flatGet(i));
+		}
+		for(int i = 0; i < weights.size(); i++){
+			bb.putDouble(weights.flatGet(i));
+		}
+		if(useBias){
+			for(int i = 0; i < bias.size(); i++){
+				bb.putDouble(bias.flatGet(i));
+			}
+		}
+		bb.flip();
+		return bb;
+	}
+	
+	@Override
+	public void readBytes(ByteBuffer bb){
+		// copied in place, which keeps the type and storage of the weights
+		read(bb, depthWeights);
+		read(bb, weights);
+		if(useBias)
+			read(bb, bias);
+	}
+	
+	private void read(ByteBuffer bb, Tensor t){
+		double[] arr = new double[t.size()];
+		for(int i = 0; i < arr.length; i++){
+			arr[i] = bb.getDouble();
+		}
+		t.set(new Tensor(t.shape(), arr));
+	}
+	
+	@Override
+	public String toString(){
+		return "Depthwise Separable Convolutional\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape())
+				+ (activation == Activation.linear ? "" : "\tActivation: " + activation.toString());
+	}
+}
@@ -1,13 +1,19 @@
 package javamachinelearning.layers.feedforward;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 
 import javamachinelearning.utils.Tensor;
 
 public class DropoutLayer implements FeedForwardLayer{
+	// each thread has its own generator, so threads do not wait on a shared seed
+	private static final ThreadLocal<SplittableRandom> randoms = ThreadLocal.withInitial(SplittableRandom::new);
+	
 	private double dropout;
 	private int[] shape;
-	private Tensor mask;
+	// one bit for each input, which is set if the input is kept
+	private long[] mask;
+	// generator for this layer if it was seeded, otherwise the generator of the current thread is used
+	private SplittableRandom random;
 	
 	public DropoutLayer(){
 		this.dropout = 0.5;
@@ -18,6 +24,12 @@ public class DropoutLayer implements FeedForwardLayer{
 		this.dropout = dropout;
 	}
 	
+	// makes the dropped inputs the same on every run
+	public DropoutLayer seed(long seed){
+		random = new SplittableRandom(seed);
+		return this;
+	}
+	
 	@Override
 	public int[] outputShape(){
 		return shape;
@@ -36,15 +48,27 @@ public class DropoutLayer implements FeedForwardLayer{
 	@Override
 	public Tensor forwardPropagate(Tensor input, boolean training){
 		if(training){
-			double[] arr = new double[input.size()];
-			Random r = new Random();
-			for(int i = 0; i < input.size(); i++){
-				// if not dropout, then scale the inputs
-				arr[i] = r.nextDouble() < dropout ? 0.0 : (1.0 / (1.0 - dropout));
+			SplittableRandom r = random == null ? randoms.get() : random;
+			int size = input.size();
+			if(mask == null || mask.length < (size + 63) / 64)
+				mask = new long[(size + 63) / 64];
+			
+			// if not dropout, then scale the inputs
+			// the mask is made and applied in the same pass
+			double scale = 1.0 / (1.0 - dropout);
+			double[] res = new double[size];
+			for(int i = 0; i < size; i += 64){
+				long bits = 0L;
+				for(int j = 0; j < 64 && i + j < size; j++){
+					if(r.nextDouble() >= dropout){
+						bits |= 1L << j;
+						res[i + j] = input.flatGet(i + j) * scale;
+					}
+				}
+				mask[i / 64] = bits;
 			}
-			mask = new Tensor(input.shape(), arr);
 			
-			return input.mul(mask);
+			return new Tensor(input.shape(), res).to(input.dtype());
 		}else{
 			// do not need to scale inputs
 			return input;
@@ -54,7 +78,14 @@ public class DropoutLayer implements FeedForwardLayer{
 	@Override
 	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
 		// scale the gradients during backpropagation
-		return error.mul(mask);
+		double scale = 1.0 / (1.0 - dropout);
+		double[] res = new double[error.size()];
+		for(int i = 0; i < res.length; i++){
+			if((mask[i / 64] & (1L << (i % 64))) != 0)
+				res[i] = error.flatGet(i) * scale;
+		}
+		
+		return new Tensor(error.shape(), res).to(error.dtype());
 	}
 	
 	@Override
@@ -0,0 +1,245 @@
+package javamachinelearning.layers.feedforward;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javamachinelearning.optimizers.Optimizer;
+import javamachinelearning.regularizers.Regularizer;
+import javamachinelearning.utils.Tensor;
+
+// looks up a row of a table of weights for each token index, instead of multiplying one hot vectors by the weights
+// the input has one token index in each row, like [time steps, 1], and the output is [time steps, size]
+// only the rows of the tokens that were used get gradients, and only those rows are changed when updating,
+// so large vocabularies only cost the memory of the table
+public class EmbeddingLayer implements FeedForwardParamsLayer{
+	private Tensor weights;
+	private Tensor[] weightExtraParams;
+	
+	private int[] inputShape;
+	private int[] outputShape;
+	private int vocabSize;
+	private int size;
+	private int changeCount;
+	private boolean alreadyInit = false;
+	private boolean offHeap = false;
+	
+	// the gradients of the rows that were used since the last update, one after another
+	// slots maps each token to its row in the gradients, or -1 if it was not used
+	private double[] grad;
+	private int[] slots;
+	private int[] touched;
+	private int touchedCount;
+	
+	public EmbeddingLayer(int vocabSize, int size){
+		this.vocabSize = vocabSize;
+		this.size = size;
+	}
+	
+	@Override
+	public int[] outputShape(){
+		return outputShape;
+	}
+	
+	@Override
+	public int[] inputShape(){
+		return inputShape;
+	}
+	
+	@Override
+	public void init(int[] inputShape){
+		this.inputShape = inputShape;
+		this.outputShape = new int[]{inputShape[0], size};
+		
+		if(!alreadyInit)
+			weights = offHeap ? Tensor.offHeap(new int[]{vocabSize, size}, true) : new Tensor(new int[]{vocabSize, size}, true);
+		
+		grad = new double[16 * size];
+		touched = new int[16];
+		slots = new int[vocabSize];
+		Arrays.fill(slots, -1);
+	}
+	
+	@Override
+	public FeedForwardParamsLayer withParams(Tensor w, Tensor b){
+		weights = w;
+		alreadyInit = true;
+		return this;
+	}
+	
+	// there is no bias
+	@Override
+	public FeedForwardParamsLayer noBias(){
+		return this;
+	}
+	
+	@Override
+	public FeedForwardParamsLayer offHeap(){
+		offHeap = true;
+		return this;
+	}
+	
+	@Override
+	public void free(){
+		Tensor.free(weights);
+		if(weightExtraParams != null)
+			Tensor.free(weightExtraParams);
+	}
+	
+	@Override
+	public Tensor bias(){
+		return null;
+	}
+	
+	@Override
+	public Tensor weights(){
+		return weights;
+	}
+	
+	@Override
+	public void setBias(Tensor b){
+		// nothing to do
+	}
+	
+	@Override
+	public void setWeights(Tensor w){
+		weights = w;
+	}
+	
+	@Override
+	public Tensor forwardPropagate(Tensor input, boolean training){
+		int rows = input.shape()[0];
+		Tensor res = new Tensor(new int[]{rows, size}, weights.dtype(), false);
+		for(int i = 0; i < rows; i++){
+			res.get(i).set(weights.get(index(input, i)));
+		}
+		return res;
+	}
+	
+	// the time steps of every sample are looked up together
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		int[] shape = input.shape();
+		return forwardPropagate(input.reshape(shape[0] * shape[1], 1), training).reshape(shape[0], shape[1], size);
+	}
+	
+	@Override
+	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
+		return backPropagate(input, error, 1);
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		int[] shape = input.shape();
+		return backPropagate(input.reshape(shape[0] * shape[1], 1), error.reshape(shape[0] * shape[1], size), shape[0]).reshape(shape);
+	}
+	
+	// the indices do not have gradients, so the input gradients are zeros
+	private Tensor backPropagate(Tensor input, Tensor error, int samples){
+		for(int i = 0; i < input.shape()[0]; i++){
+			Tensor e = error.get(i);
+			// rows without an error, like the padding of masked sequences, are not touched
+			boolean zero = true;
+			for(int j = 0; j < size && zero; j++){
+				zero = e.flatGet(j) == 0.0;
+			}
+			if(zero)
+				continue;
+			
+			int off = slot(index(input, i)) * size;
+			for(int j = 0; j < size; j++){
+				grad[off + j] += e.flatGet(j);
+			}
+		}
+		
+		changeCount += samples;
+		
+		return new Tensor(input.shape(), false);
+	}
+	
+	private int index(Tensor input, int i){
+		int idx = (int)input.flatGet(i);
+		if(idx < 0 || idx >= vocabSize)
+			throw new IllegalArgumentException("Bad index for embedding!");
+		return idx;
+	}
+	
+	// the row of the gradients for a token, which is added if the token was not used yet
+	private int slot(int idx){
+		if(slots[idx] < 0){
+			if(touchedCount == touched.length){
+				touched = Arrays.copyOf(touched, touched.length * 2);
+				grad = Arrays.copyOf(grad, grad.length * 2);
+			}
+			touched[touchedCount] = idx;
+			slots[idx] = touchedCount;
+			touchedCount++;
+		}
+		return slots[idx];
+	}
+	
+	// only the rows that were used are regularized and optimized
+	@Override
+	public void update(Optimizer optimizer, Regularizer regularizer){
+		if(weightExtraParams == null){
+			weightExtraParams = new Tensor[optimizer.extraParams()];
+			for(int i = 0; i < weightExtraParams.length; i++){
+				weightExtraParams[i] = weights.zerosLike();
+			}
+		}
+		
+		if(touchedCount > 0){
+			int[] rows = Arrays.copyOf(touched, touchedCount);
+			Tensor grads = new Tensor(new int[]{rows.length, size}, Arrays.copyOf(grad, rows.length * size));
+			grads.divi(Math.max(changeCount, 1));
+			
+			if(regularizer != null){
+				Tensor w = new Tensor(grads.shape(), false);
+				for(int i = 0; i < rows.length; i++){
+					w.get(i).set(weights.get(rows[i]));
+				}
+				regularizer.addDerivative(w, grads);
+			}
+			
+			Tensor updates = optimizer.optimizeRowsInPlace(grads, weightExtraParams, rows);
+			for(int i = 0; i < rows.length; i++){
+				weights.get(rows[i]).subi(updates.get(i));
+				slots[rows[i]] = -1;
+			}
+			Arrays.fill(grad, 0, rows.length * size, 0.0);
+			touchedCount = 0;
+		}
+		
+		changeCount = 0;
+	}
+	
+	@Override
+	public int byteSize(){
+		return Double.BYTES * weights.size();
+	}
+	
+	@Override
+	public ByteBuffer bytes(){
+		ByteBuffer bb = ByteBuffer.allocate(byteSize());
+		for(int i = 0; i < weights.size(); i++){
+			bb.putDouble(weights.flatGet(i));
+		}
+		bb.flip();
+		return bb;
+	}
+	
+	@Override
+	public void readBytes(ByteBuffer bb){
+		double[] w = new double[weights.size()];
+		for(int i = 0; i < w.length; i++){
+			w[i] = bb.getDouble();
+		}
+		// copied in place, which keeps the type and storage of the weights
+		weights.set(new Tensor(weights.shape(), w));
+	}
+	
+	@Override
+	public String toString(){
+		return "Embedding\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape())
+				+ "\tVocabulary Size: " + vocabSize;
+	}
+}
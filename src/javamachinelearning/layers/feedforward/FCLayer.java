@@ -5,6 +5,7 @@ import java.util.Arrays;
 
 import javamachinelearning.optimizers.Optimizer;
 import javamachinelearning.regularizers.Regularizer;
+import javamachinelearning.utils.Activation;
 import javamachinelearning.utils.Tensor;
 
 public class FCLayer implements FeedForwardParamsLayer{
@@ -21,6 +22,8 @@ public class FCLayer implements FeedForwardParamsLayer{
 	private int changeCount;
 	private boolean alreadyInit = false;
 	private boolean useBias = true;
+	private boolean offHeap = false;
+	private Activation activation = Activation.linear;
 	
 	public FCLayer(int nextSize){
 		this.outputShape = new int[]{-1, nextSize};
@@ -42,13 +45,17 @@ public class FCLayer implements FeedForwardParamsLayer{
 		this.outputShape[0] = inputShape[0];
 		
 		if(!alreadyInit){
-			this.weights = new Tensor(new int[]{this.inputShape[1], this.outputShape[1]}, true);
+			this.weights = tensor(new int[]{this.inputShape[1], this.outputShape[1]}, true);
 			if(useBias)
-				this.bias = new Tensor(new int[]{1, this.outputShape[1]}, false);
+				this.bias = tensor(new int[]{1, this.outputShape[1]}, false);
 		}
-		this.gradWeights = new Tensor(new int[]{this.inputShape[1], this.outputShape[1]}, false);
+		this.gradWeights = tensor(new int[]{this.inputShape[1], this.outputShape[1]}, false);
 		if(useBias)
-			this.gradBias = new Tensor(new int[]{1, this.outputShape[1]}, false);
+			this.gradBias = tensor(new int[]{1, this.outputShape[1]}, false);
+	}
+	
+	private Tensor tensor(int[] shape, boolean rand){
+		return offHeap ? Tensor.offHeap(shape, rand) : new Tensor(shape, rand);
 	}
 	
 	@Override
@@ -66,6 +73,32 @@ public class FCLayer implements FeedForwardParamsLayer{
 		return this;
 	}
 	
+	@Override
+	public FeedForwardParamsLayer offHeap(){
+		offHeap = true;
+		return this;
+	}
+	
+	// the activation is applied in the same pass as the bias, and its derivative is multiplied
+	// in the same pass as the error, instead of in a separate activation layer
+	public FCLayer activation(Activation activation){
+		this.activation = activation;
+		return this;
+	}
+	
+	public Activation activation(){
+		return activation;
+	}
+	
+	@Override
+	public void free(){
+		Tensor.free(weights, gradWeights, bias, gradBias);
+		if(weightExtraParams != null)
+			Tensor.free(weightExtraParams);
+		if(biasExtraParams != null)
+			Tensor.free(biasExtraParams);
+	}
+	
 	@Override
 	public Tensor bias(){
 		return bias;
@@ -89,31 +122,48 @@ public class FCLayer implements FeedForwardParamsLayer{
 	
 	@Override
 	public Tensor forwardPropagate(Tensor input, boolean training){
-		Tensor x = weights.dot(input);
-		if(useBias){
-			// duplicate bias for multiple time steps if needed
-			x = x.add(bias.dupFirst(x.shape()[0]));
-		}
-		return x;
+		// add bias for multiple time steps if needed
+		return activation.activateBias(weights.dot(input), useBias ? bias : null);
+	}
+	
+	// the samples are stacked as rows, so the whole batch is one matrix multiply
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		int[] shape = input.shape();
+		Tensor x = forwardPropagate(input.reshape(shape[0] * shape[1], shape[2]), training);
+		return x.reshape(shape[0], shape[1], outputShape[1]);
 	}
 	
 	@Override
 	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
+		return backPropagate(input, activation.backPropagate(output, error), 1);
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		int[] shape = input.shape();
+		Tensor gradOutputs = activation.backPropagate(output.reshape(shape[0] * shape[1], outputShape[1]),
+				error.reshape(shape[0] * shape[1], outputShape[1]));
+		Tensor gradInputs = backPropagate(input.reshape(shape[0] * shape[1], shape[2]), gradOutputs, shape[0]);
+		return gradInputs.reshape(shape);
+	}
+	
+	private Tensor backPropagate(Tensor input, Tensor error, int samples){
 		// error wrt weight
-		gradWeights = gradWeights.add(error.dot(input.T()));
+		Tensor.dot(error, input, false, true, gradWeights, true);
 		
 		// error wrt bias
 		// not multiplied by previous outputs!
 		if(useBias){
 			// if error contains multiple time steps
 			// then accumulate the gradients across the time steps
-			gradBias = gradBias.add(error.T().reduceLast(0, (a, b) -> a + b));
+			gradBias.addiSumFirst(error);
 		}
 		
 		// new error should be affected by weights
-		Tensor gradInputs = weights.T().dot(error);
+		Tensor gradInputs = weights.dot(error, true, false);
 		
-		changeCount++;
+		changeCount += samples;
 		
 		return gradInputs;
 	}
@@ -124,13 +174,13 @@ public class FCLayer implements FeedForwardParamsLayer{
 		if(weightExtraParams == null){
 			weightExtraParams = new Tensor[optimizer.extraParams()];
 			for(int i = 0; i < weightExtraParams.length; i++){
-				weightExtraParams[i] = new Tensor(weights.shape(), false);
+				weightExtraParams[i] = weights.zerosLike();
 			}
 			
 			if(useBias){
 				biasExtraParams = new Tensor[optimizer.extraParams()];
 				for(int i = 0; i < biasExtraParams.length; i++){
-					biasExtraParams[i] = new Tensor(bias.shape(), false);
+					biasExtraParams[i] = bias.zerosLike();
 				}
 			}
 		}
@@ -140,23 +190,17 @@ public class FCLayer implements FeedForwardParamsLayer{
 		
 		// note that averaging the weight gradients here is the same as
 		// averaging the loss gradients per mini-batch after forward propagation
-		if(regularizer == null){
-			weights = weights.sub(
-					optimizer.optimize(
-							gradWeights.div(Math.max(changeCount, 1)), weightExtraParams));
-		}else{
-			weights = weights.sub(
-					optimizer.optimize(
-							gradWeights.div(Math.max(changeCount, 1)).add(
-									regularizer.derivative(weights)), weightExtraParams));
-		}
-		gradWeights = new Tensor(gradWeights.shape(), false);
+		// everything is done in place, so the gradient accumulators are reused
+		gradWeights.divi(Math.max(changeCount, 1));
+		if(regularizer != null)
+			regularizer.addDerivative(weights, gradWeights);
+		weights.subi(optimizer.optimizeInPlace(gradWeights, weightExtraParams));
+		gradWeights.fill(0.0);
 		
 		if(useBias){
-			bias = bias.sub(
-					optimizer.optimize(
-							gradBias.div(Math.max(changeCount, 1)), biasExtraParams));
-			gradBias = new Tensor(gradBias.shape(), false);
+			gradBias.divi(Math.max(changeCount, 1));
+			bias.subi(optimizer.optimizeInPlace(gradBias, biasExtraParams));
+			gradBias.fill(0.0);
 		}
 		
 		changeCount = 0;
@@ -189,19 +233,21 @@ public class FCLayer implements FeedForwardParamsLayer{
 		for(int i = 0; i < w.length; i++){
 			w[i] = bb.getDouble();
 		}
-		weights = new Tensor(weights.shape(), w);
+		// copied in place, which keeps the type and storage of the weights
+		weights.set(new Tensor(weights.shape(), w));
 		
 		if(useBias){
 			double[] b = new double[bias.size()];
 			for(int i = 0; i < b.length; i++){
 				b[i] = bb.getDouble();
 			}
-			bias = new Tensor(bias.shape(), b);
+			bias.set(new Tensor(bias.shape(), b));
 		}
 	}
 	
 	@Override
 	public String toString(){
-		return "Fully Connected\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape());
+		return "Fully Connected\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape())
+				+ (activation == Activation.linear ? "" : "\tActivation: " + activation.toString());
 	}
 }
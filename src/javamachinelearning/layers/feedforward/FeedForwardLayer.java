@@ -1,7 +1,17 @@
 package javamachinelearning.layers.feedforward;
 
 import javamachinelearning.layers.Layer;
+import javamachinelearning.utils.Tensor;
 
 public interface FeedForwardLayer extends Layer{
-
+	// propagates a whole mini batch at once
+	// the tensors have an extra first dimension for the samples, so their shapes are [batch size, shape of one sample...]
+	// by default, the batch is treated like one sample, which only works for elementwise layers
+	public default Tensor forwardPropagateBatch(Tensor input, boolean training){
+		return forwardPropagate(input, training);
+	}
+	
+	public default Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		return backPropagate(input, output, error);
+	}
 }
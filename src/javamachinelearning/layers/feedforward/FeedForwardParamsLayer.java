@@ -7,6 +7,11 @@ public interface FeedForwardParamsLayer extends FeedForwardLayer, ParamsLayer{
 	// withParams should be used when initializing a layer
 	public FeedForwardParamsLayer withParams(Tensor w, Tensor b);
 	
+	// keep the weights, gradients, and optimizer state outside of the java heap
+	// start java with -XX:MaxDirectMemorySize set to more than the size of the layers, because it is the maximum heap size by default
+	@Override
+	public FeedForwardParamsLayer offHeap();
+	
 	public Tensor bias();
 	public Tensor weights();
 	public void setBias(Tensor b);
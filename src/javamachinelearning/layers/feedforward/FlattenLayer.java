@@ -41,6 +41,16 @@ public class FlattenLayer implements FeedForwardLayer{
 		return error.reshape(inputShape);
 	}
 	
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		return input.reshape(input.shape()[0], 1, outputSize);
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		return error.reshape(input.shape());
+	}
+	
 	@Override
 	public String toString(){
 		return "Flatten\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape());
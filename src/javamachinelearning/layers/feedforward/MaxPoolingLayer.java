@@ -9,7 +9,9 @@ public class MaxPoolingLayer implements FeedForwardLayer{
 	private int[] outputShape;
 	private int winWidth, winHeight;
 	private int strideX, strideY;
-	private int[][] maxIdx;
+	// flat index in the input of the max value for each output, for each sample in a batch
+	// only recorded when training
+	private int[] maxIdx;
 	
 	public MaxPoolingLayer(int winWidth, int winHeight, int strideX, int strideY){
 		this.winWidth = winWidth;
@@ -57,74 +59,85 @@ public class MaxPoolingLayer implements FeedForwardLayer{
 		int h = temp / strideY + 1;
 		
 		outputShape = new int[]{w, h, inputShape[2]};
-		maxIdx = new int[outputShape[0] * outputShape[1] * outputShape[2]][2];
 	}
 	
 	@Override
 	public Tensor forwardPropagate(Tensor input, boolean training){
-		double[] res = new double[outputShape[0] * outputShape[1] * outputShape[2]];
-		int[] shape = input.shape();
+		return new Tensor(outputShape, forward(input, 1, training)).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
+		return new Tensor(inputShape, backward(error, 1)).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor forwardPropagateBatch(Tensor input, boolean training){
+		int batchSize = input.shape()[0];
+		return new Tensor(new int[]{batchSize, outputShape[0], outputShape[1], outputShape[2]}, forward(input, batchSize, training)).to(input.dtype());
+	}
+	
+	@Override
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		return new Tensor(input.shape(), backward(error, input.shape()[0])).to(input.dtype());
+	}
+	
+	private double[] forward(Tensor input, int batchSize, boolean training){
+		int outSize = outputShape[0] * outputShape[1] * outputShape[2];
+		int inSize = inputShape[0] * inputShape[1] * inputShape[2];
+		double[] res = new double[batchSize * outSize];
+		if(training && (maxIdx == null || maxIdx.length < res.length))
+			maxIdx = new int[res.length];
+		
 		int idx = 0;
 		// slide through and computes the max for each location
 		// the output should have the same depth as the input
-		for(int i = 0; i < outputShape[0] * strideX; i += strideX){
-			for(int j = 0; j < outputShape[1] * strideY; j += strideY){
-				for(int k = 0; k < shape[2]; k++){ // for each depth slice
-					double max = Double.MIN_VALUE;
-					
-					for(int rx = 0; rx < winWidth; rx++){ // relative x position
-						for(int ry = 0; ry < winHeight; ry++){ // relative y position
-							// absolute positions
-							int x = i + rx;
-							int y = j + ry;
-							double val = input.flatGet(x * shape[1] * shape[2] + y * shape[2] + k);
-							
-							if(val > max){
-								max = val;
+		for(int b = 0; b < batchSize; b++){
+			for(int i = 0; i < outputShape[0] * strideX; i += strideX){
+				for(int j = 0; j < outputShape[1] * strideY; j += strideY){
+					for(int k = 0; k < inputShape[2]; k++){ // for each depth slice
+						double max = Double.NEGATIVE_INFINITY;
+						int maxInIdx = 0;
+						
+						for(int rx = 0; rx < winWidth; rx++){ // relative x position
+							for(int ry = 0; ry < winHeight; ry++){ // relative y position
+								// absolute positions
+								int x = i + rx;
+								int y = j + ry;
+								int inIdx = b * inSize + x * inputShape[1] * inputShape[2] + y * inputShape[2] + k;
+								double val = input.flatGet(inIdx);
 								
-								maxIdx[idx][0] = x;
-								maxIdx[idx][1] = y;
+								if(val > max){
+									max = val;
+									maxInIdx = inIdx;
+								}
 							}
 						}
+						
+						// max of all values
+						res[idx] = max;
+						// the location of the max is only needed for backpropagation
+						if(training)
+							maxIdx[idx] = maxInIdx;
+						idx++;
 					}
-					
-					// max of all values
-					res[idx] = max;
-					idx++;
 				}
 			}
 		}
 		
-		return new Tensor(outputShape, res);
+		return res;
 	}
 	
-	@Override
-	public Tensor backPropagate(Tensor input, Tensor output, Tensor error){
-		double[] res = new double[inputShape[0] * inputShape[1] * inputShape[2]];
-		int outIdx = 0;
+	// only the max value of each window gets the gradient
+	private double[] backward(Tensor error, int batchSize){
+		double[] res = new double[batchSize * inputShape[0] * inputShape[1] * inputShape[2]];
+		int outSize = batchSize * outputShape[0] * outputShape[1] * outputShape[2];
 		
-		for(int i = 0; i < outputShape[0] * strideX; i += strideX){
-			for(int j = 0; j < outputShape[1] * strideY; j += strideY){
-				for(int k = 0; k < inputShape[2]; k++){ // for each depth slice
-					for(int rx = 0; rx < winWidth; rx++){ // relative x position
-						for(int ry = 0; ry < winHeight; ry++){ // relative y position
-							// absolute positions
-							int x = i + rx;
-							int y = j + ry;
-							int inIdx = x * inputShape[1] * inputShape[2] + y * inputShape[2] + k;
-							
-							if(maxIdx[outIdx][0] == x && maxIdx[outIdx][1] == y){
-								res[inIdx] += error.flatGet(outIdx);
-							}
-						}
-					}
-					
-					outIdx++;
-				}
-			}
+		for(int i = 0; i < outSize; i++){
+			res[maxIdx[i]] += error.flatGet(i);
 		}
 		
-		return new Tensor(inputShape, res);
+		return res;
 	}
 	
 	@Override
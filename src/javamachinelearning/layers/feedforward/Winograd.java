@@ -0,0 +1,194 @@
+package javamachinelearning.layers.feedforward;
+
+import java.util.Arrays;
+
+import javamachinelearning.utils.Parallel;
+import javamachinelearning.utils.Tensor;
+
+// Winograd minimal filtering for 3x3 windows with a stride of 1
+// F(m x m, 3 x 3) computes an m x m tile of the output from an (m + 2) x (m + 2) tile of the input
+// the input tiles and the weights are transformed so that each tile only needs (m + 2)^2 multiplies
+// instead of 9 * m^2, and the multiplies at each point of the tiles are matrix multiplies over the depth
+class Winograd{
+	// transforms from "Fast Algorithms for Convolutional Neural Networks" (Lavin and Gray)
+	private static final double[][] BT2 = {
+			{1, 0, -1, 0},
+			{0, 1, 1, 0},
+			{0, -1, 1, 0},
+			{0, 1, 0, -1}
+	};
+	private static final double[][] G2 = {
+			{1, 0, 0},
+			{0.5, 0.5, 0.5},
+			{0.5, -0.5, 0.5},
+			{0, 0, 1}
+	};
+	private static final double[][] AT2 = {
+			{1, 1, 1, 0},
+			{0, 1, -1, -1}
+	};
+	
+	private static final double[][] BT4 = {
+			{4, 0, -5, 0, 1, 0},
+			{0, -4, -4, 1, 1, 0},
+			{0, 4, -4, -1, 1, 0},
+			{0, -2, -1, 2, 1, 0},
+			{0, 2, -1, -2, 1, 0},
+			{0, 4, 0, -5, 0, 1}
+	};
+	private static final double[][] G4 = {
+			{1.0 / 4, 0, 0},
+			{-1.0 / 6, -1.0 / 6, -1.0 / 6},
+			{-1.0 / 6, 1.0 / 6, -1.0 / 6},
+			{1.0 / 24, 1.0 / 12, 1.0 / 6},
+			{1.0 / 24, -1.0 / 12, 1.0 / 6},
+			{0, 0, 1}
+	};
+	private static final double[][] AT4 = {
+			{1, 1, 1, 1, 1, 0},
+			{0, 1, -1, 2, -2, 0},
+			{0, 1, 1, 4, 4, 0},
+			{0, 1, -1, 8, -8, 1}
+	};
+	
+	private final int m;
+	// size of the transformed tiles
+	private final int a;
+	private final double[][] bt, g, at;
+	
+	// output tiles are m x m, where m is 2 or 4
+	// larger tiles need fewer multiplies, but are less accurate
+	Winograd(int m){
+		if(m != 2 && m != 4)
+			throw new IllegalArgumentException("Bad sizes for Winograd convolution!");
+		
+		this.m = m;
+		this.a = m + 2;
+		this.bt = m == 2 ? BT2 : BT4;
+		this.g = m == 2 ? G2 : G4;
+		this.at = m == 2 ? AT2 : AT4;
+	}
+	
+	// the input is [batch, width, height, depth] and the weights are [3, 3, depth, filters]
+	// the result is [batch, outWidth, outHeight, filters], without the bias
+	// the depth and the filters are the last dimensions, so the transforms are done on whole vectors of them at a time
+	double[] convolve(double[] in, int batchSize, int width, int height, int depth,
+			double[] w, int filters, int outWidth, int outHeight, int paddingX, int paddingY){
+		int tilesX = (outWidth + m - 1) / m;
+		int tilesY = (outHeight + m - 1) / m;
+		int tiles = batchSize * tilesX * tilesY;
+		
+		// transformed weights, as a depth x filters matrix for each point of a tile
+		// the weights at each point of the window are already a depth x filters matrix
+		double[][] window = new double[9][];
+		for(int i = 0; i < 9; i++){
+			window[i] = Arrays.copyOfRange(w, i * depth * filters, (i + 1) * depth * filters);
+		}
+		double[][] u = new double[a * a][depth * filters];
+		transform(g, window, 3, depth * filters, new double[a * 3][depth * filters], u);
+		
+		// transformed input tiles, as a tiles x depth matrix for each point of a tile
+		// the tiles are transformed in parallel, and each range of tiles has its own buffers
+		double[][] v = new double[a * a][tiles * depth];
+		Parallel.forRange(0, tiles, (long)a * a * a * depth, (start, end) -> {
+			double[][] tile = new double[a * a][depth];
+			double[][] temp = new double[a * a][depth];
+			double[][] res = new double[a * a][depth];
+			
+			for(int t = start; t < end; t++){
+				int b = t / (tilesX * tilesY);
+				int tx = t / tilesY % tilesX;
+				int ty = t % tilesY;
+				
+				for(int i = 0; i < a; i++){
+					int x = tx * m + i - paddingX;
+					
+					for(int j = 0; j < a; j++){
+						int y = ty * m + j - paddingY;
+						
+						// tiles that go past the edges are zero padded
+						if(x >= 0 && x < width && y >= 0 && y < height)
+							System.arraycopy(in, ((b * width + x) * height + y) * depth, tile[i * a + j], 0, depth);
+						else
+							Arrays.fill(tile[i * a + j], 0.0);
+					}
+				}
+				transform(bt, tile, a, depth, temp, res);
+				for(int p = 0; p < a * a; p++){
+					System.arraycopy(res[p], 0, v[p], t * depth, depth);
+				}
+			}
+		});
+		
+		// the products at each point of a tile, summed over the depth
+		double[][] prod = new double[a * a][];
+		Parallel.forRange(0, a * a, (long)tiles * depth * filters, (start, end) -> {
+			for(int p = start; p < end; p++){
+				Tensor uTensor = new Tensor(new int[]{depth, filters}, u[p]);
+				Tensor vTensor = new Tensor(new int[]{tiles, depth}, v[p]);
+				prod[p] = uTensor.dot(vTensor).storage().doubles();
+			}
+		});
+		
+		// transform the products back to output tiles, in parallel
+		double[] out = new double[batchSize * outWidth * outHeight * filters];
+		Parallel.forRange(0, tiles, (long)a * a * a * filters, (start, end) -> {
+			double[][] tile = new double[a * a][filters];
+			double[][] temp = new double[a * a][filters];
+			double[][] res = new double[a * a][filters];
+			
+			for(int t = start; t < end; t++){
+				int b = t / (tilesX * tilesY);
+				int tx = t / tilesY % tilesX;
+				int ty = t % tilesY;
+				
+				for(int p = 0; p < a * a; p++){
+					System.arraycopy(prod[p], t * filters, tile[p], 0, filters);
+				}
+				transform(at, tile, a, filters, temp, res);
+				
+				// the last tiles can go past the edges of the output
+				for(int i = 0; i < m && tx * m + i < outWidth; i++){
+					for(int j = 0; j < m && ty * m + j < outHeight; j++){
+						System.arraycopy(res[i * m + j], 0, out, ((b * outWidth + tx * m + i) * outHeight + ty * m + j) * filters, filters);
+					}
+				}
+			}
+		});
+		
+		return out;
+	}
+	
+	// res = mat * x * mat^T, where x is n x n, in row major format
+	// each element is a vector of the given length
+	private static void transform(double[][] mat, double[][] x, int n, int len, double[][] temp, double[][] res){
+		int rows = mat.length;
+		for(int i = 0; i < rows; i++){
+			for(int j = 0; j < n; j++){
+				combine(mat[i], x, j, n, len, temp[i * n + j]);
+			}
+		}
+		
+		for(int i = 0; i < rows; i++){
+			for(int j = 0; j < rows; j++){
+				combine(mat[j], temp, i * n, 1, len, res[i * rows + j]);
+			}
+		}
+	}
+	
+	// res = the sum of coeffs[k] * x[off + k * stride]
+	private static void combine(double[] coeffs, double[][] x, int off, int stride, int len, double[] res){
+		Arrays.fill(res, 0, len, 0.0);
+		for(int k = 0; k < coeffs.length; k++){
+			// most of the values in the transforms are 0
+			if(coeffs[k] == 0.0)
+				continue;
+			
+			double c = coeffs[k];
+			double[] arr = x[off + k * stride];
+			for(int i = 0; i < len; i++){
+				res[i] += c * arr[i];
+			}
+		}
+	}
+}
@@ -1,33 +1,35 @@
 package javamachinelearning.layers.recurrent;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import javamachinelearning.optimizers.Optimizer;
 import javamachinelearning.regularizers.Regularizer;
 import javamachinelearning.utils.Activation;
+import javamachinelearning.utils.DType;
 import javamachinelearning.utils.Tensor;
 
-public class GRUCell implements RecurrentCell{
+public class GRUCell implements ProjectedRecurrentCell{
 	private int size;
 	private Activation activation;
 	private Activation gateActivation;
 	
-	private Tensor resetW, updateW, memoryW;
-	private Tensor resetU, updateU, memoryU;
-	private Tensor resetB, updateB, memoryB;
-	
-	private Tensor gradResetW, gradUpdateW, gradMemoryW;
-	private Tensor gradResetU, gradUpdateU, gradMemoryU;
-	private Tensor gradResetB, gradUpdateB, gradMemoryB;
-	
-	private Tensor[] resetWParams, updateWParams, memoryWParams;
-	private Tensor[] resetUParams, updateUParams, memoryUParams;
-	private Tensor[] resetBParams, updateBParams, memoryBParams;
+	// the weights of the gates are stacked, so each projection is one matrix multiply per time step
+	// the columns are in the order reset, update, memory
+	// weights = [size, 3 * size], for the inputs
+	// recurrent = [size, 2 * size], for the reset and update gates on the previous state
+	// memoryU = [size, size], which is separate because it is multiplied by the reset previous state
+	// bias = [1, 3 * size]
+	private Tensor weights, recurrent, memoryU, bias;
+	private Tensor gradWeights, gradRecurrent, gradMemoryU, gradBias;
+	private Tensor[] weightsParams, recurrentParams, memoryUParams, biasParams;
 	
 	// cached values for backpropagation
-	private Tensor[] reset, update, memory;
+	// the reset, update, and memory values of each time step, in the same order as the weights
+	private double[][] gates;
 	
 	private boolean useBias = true;
+	private boolean offHeap = false;
 	
 	public GRUCell(Activation activation, Activation gateActivation){
 		this.activation = activation;
@@ -40,15 +42,28 @@ public class GRUCell implements RecurrentCell{
 	
 	@Override
 	public void noBias(){
-		resetB = null;
-		updateB = null;
-		memoryB = null;
-		gradResetB = null;
-		gradUpdateB = null;
-		gradMemoryB = null;
+		bias = null;
+		gradBias = null;
 		useBias = false;
 	}
 	
+	// keep the weights, gradients, and optimizer state outside of the java heap
+	@Override
+	public void offHeap(){
+		offHeap = true;
+	}
+	
+	@Override
+	public void free(){
+		Tensor.free(weights, recurrent, memoryU, bias, gradWeights, gradRecurrent, gradMemoryU, gradBias);
+		
+		Tensor[][] params = {weightsParams, recurrentParams, memoryUParams, biasParams};
+		for(Tensor[] p : params){
+			if(p != null)
+				Tensor.free(p);
+		}
+	}
+	
 	@Override
 	public int[] outputShape(){
 		return new int[]{1, size};
@@ -64,38 +79,25 @@ public class GRUCell implements RecurrentCell{
 		size = inputSize;
 		
 		// initialize weights/biases and their gradient accumulators
-		resetW = new Tensor(new int[]{size, size}, true);
-		updateW = new Tensor(new int[]{size, size}, true);
-		memoryW = new Tensor(new int[]{size, size}, true);
-		
-		resetU = new Tensor(new int[]{size, size}, true);
-		updateU = new Tensor(new int[]{size, size}, true);
-		memoryU = new Tensor(new int[]{size, size}, true);
-		
-		if(useBias){
-			resetB = new Tensor(new int[]{1, size}, false);
-			updateB = new Tensor(new int[]{1, size}, false);
-			memoryB = new Tensor(new int[]{1, size}, false);
-		}
-		
-		gradResetW = new Tensor(new int[]{size, size}, false);
-		gradUpdateW = new Tensor(new int[]{size, size}, false);
-		gradMemoryW = new Tensor(new int[]{size, size}, false);
-		
-		gradResetU = new Tensor(new int[]{size, size}, false);
-		gradUpdateU = new Tensor(new int[]{size, size}, false);
-		gradMemoryU = new Tensor(new int[]{size, size}, false);
+		// each size x size gate is initialized with the same scale as before the gates were stacked
+		weights = tensor(new int[]{size, 3 * size}, false).randomize(size, size);
+		recurrent = tensor(new int[]{size, 2 * size}, false).randomize(size, size);
+		memoryU = tensor(new int[]{size, size}, true);
+		if(useBias)
+			bias = tensor(new int[]{1, 3 * size}, false);
 		
-		if(useBias){
-			gradResetB = new Tensor(new int[]{1, size}, false);
-			gradUpdateB = new Tensor(new int[]{1, size}, false);
-			gradMemoryB = new Tensor(new int[]{1, size}, false);
-		}
+		gradWeights = tensor(new int[]{size, 3 * size}, false);
+		gradRecurrent = tensor(new int[]{size, 2 * size}, false);
+		gradMemoryU = tensor(new int[]{size, size}, false);
+		if(useBias)
+			gradBias = tensor(new int[]{1, 3 * size}, false);
 		
 		// used to cache computed results
-		reset = new Tensor[numTimeSteps];
-		update = new Tensor[numTimeSteps];
-		memory = new Tensor[numTimeSteps];
+		gates = new double[numTimeSteps][];
+	}
+	
+	private Tensor tensor(int[] shape, boolean rand){
+		return offHeap ? Tensor.offHeap(shape, rand) : new Tensor(shape, rand);
 	}
 	
 	@Override
@@ -106,24 +108,62 @@ public class GRUCell implements RecurrentCell{
 		// update = sigmoid(input * updateW + prevState * updateU + updateB)
 		// memory = tanh(input * memoryW + (prevState * reset) * memoryU + memoryB)
 		// state = (1 - update) * memory + update * prevState
+		return forwardPropagateProjected(t, projectInputs(input), prevState, training);
+	}
+	
+	// the input products of all three gates, for every row of the inputs
+	@Override
+	public Tensor projectInputs(Tensor inputs){
+		return weights.dot(inputs);
+	}
+	
+	// the rows of the states can be separate sequences, which are propagated together
+	@Override
+	public Tensor forwardPropagateProjected(int t, Tensor projection, Tensor prevState, boolean training){
+		// the input products are already computed, and only the recurrent products are left
+		int rows = prevState.shape()[0];
+		double[] x = projection.asDoubles();
+		double[] h = prevState.asDoubles();
+		double[] hGates = recurrent.dot(prevState).asDoubles();
+		double[] b = useBias ? bias.asDoubles() : null;
+		
+		// the values of each row are in the same order as the weights
+		double[] g = new double[rows * 3 * size];
+		for(int r = 0; r < rows; r++){
+			for(int i = 0; i < 2 * size; i++){
+				g[r * 3 * size + i] = x[r * 3 * size + i] + hGates[r * 2 * size + i] + (useBias ? b[i] : 0.0);
+			}
+			activate(gateActivation, g, r * 3 * size, size);
+			activate(gateActivation, g, r * 3 * size + size, size);
+		}
 		
-		if(useBias)
-			reset[t] = gateActivation.activate(resetW.dot(input).add(resetU.dot(prevState)).add(resetB));
-		else
-			reset[t] = gateActivation.activate(resetW.dot(input).add(resetU.dot(prevState)));
-		
-		if(useBias)
-			update[t] = gateActivation.activate(updateW.dot(input).add(updateU.dot(prevState)).add(updateB));
-		else
-			update[t] = gateActivation.activate(updateW.dot(input).add(updateU.dot(prevState)));
+		// the reset gate has to be applied before the memory product
+		double[] resetState = new double[rows * size];
+		for(int r = 0; r < rows; r++){
+			for(int i = 0; i < size; i++){
+				resetState[r * size + i] = h[r * size + i] * g[r * 3 * size + i];
+			}
+		}
+		double[] m = memoryU.dot(new Tensor(new int[]{rows, size}, resetState)).asDoubles();
 		
-		// the activation here can be something other than tanh
-		if(useBias)
-			memory[t] = activation.activate(memoryW.dot(input).add(memoryU.dot(prevState.mul(reset[t]))).add(memoryB));
-		else
-			memory[t] = activation.activate(memoryW.dot(input).add(memoryU.dot(prevState.mul(reset[t]))));
+		double[] state = new double[rows * size];
+		for(int r = 0; r < rows; r++){
+			int off = r * 3 * size;
+			for(int i = 0; i < size; i++){
+				g[off + 2 * size + i] = x[off + 2 * size + i] + m[r * size + i] + (useBias ? b[2 * size + i] : 0.0);
+			}
+			// the activation here can be something other than tanh
+			activate(activation, g, off + 2 * size, size);
+			
+			// the gate math is fused into one pass
+			for(int i = 0; i < size; i++){
+				double u = g[off + size + i];
+				state[r * size + i] = (1.0 - u) * g[off + 2 * size + i] + u * h[r * size + i];
+			}
+		}
+		gates[t] = g;
 		
-		return update[t].map(x -> 1.0 - x).mul(memory[t]).add(update[t].mul(prevState));
+		return new Tensor(new int[]{rows, size}, state).to(weights.dtype());
 	}
 	
 	@Override
@@ -131,154 +171,234 @@ public class GRUCell implements RecurrentCell{
 		// first, gather gradients for the memory, reset, and update equations (multiplied by activation derivatives)
 		// second, calculate gradients wrt weights/biases
 		// third, accumulate gradients wrt prevState and inputs
+		Tensor[] grads = backPropagateProjected(t, prevState, error);
+		return new Tensor[]{backPropagateInputs(input, grads[0]), grads[1]};
+	}
+	
+	@Override
+	public Tensor[] backPropagateProjected(int t, Tensor prevState, Tensor error){
+		int rows = prevState.shape()[0];
+		double[] g = gates[t];
+		double[] h = prevState.asDoubles();
+		double[] e = error.asDoubles();
+		
+		// gradients before the activations, in the same order as the weights
+		double[] grad = new double[rows * 3 * size];
+		double[] gradMemory = new double[rows * size];
+		double[] gradGates = new double[rows * 2 * size];
+		double[] gateDerivative = new double[rows * 2 * size];
+		for(int r = 0; r < rows; r++){
+			int off = r * 3 * size;
+			double[] resetDerivative = derivative(gateActivation, g, off, size);
+			double[] updateDerivative = derivative(gateActivation, g, off + size, size);
+			double[] memoryDerivative = derivative(activation, g, off + 2 * size, size);
+			System.arraycopy(resetDerivative, 0, gateDerivative, r * 2 * size, size);
+			
+			for(int i = 0; i < size; i++){
+				int j = r * size + i;
+				double u = g[off + size + i];
+				double mem = g[off + 2 * size + i];
+				gradMemory[j] = e[j] * (1.0 - u) * memoryDerivative[i];
+				grad[off + 2 * size + i] = gradMemory[j];
+				grad[off + size + i] = e[j] * (h[j] - mem) * updateDerivative[i];
+			}
+		}
+		Tensor gradMemoryTensor = new Tensor(new int[]{rows, size}, gradMemory);
+		
+		// used by both the reset gradients and the previous state gradients
+		double[] gradResetState = memoryU.dot(gradMemoryTensor, true, false).asDoubles();
+		
+		double[] resetState = new double[rows * size];
+		for(int r = 0; r < rows; r++){
+			int off = r * 3 * size;
+			for(int i = 0; i < size; i++){
+				int j = r * size + i;
+				grad[off + i] = gradResetState[j] * h[j] * gateDerivative[r * 2 * size + i];
+				resetState[j] = h[j] * g[off + i];
+				gradGates[r * 2 * size + i] = grad[off + i];
+				gradGates[r * 2 * size + size + i] = grad[off + size + i];
+			}
+		}
+		Tensor gradAll = new Tensor(new int[]{rows, 3 * size}, grad);
+		Tensor gradGatesTensor = new Tensor(new int[]{rows, 2 * size}, gradGates);
 		
-		Tensor gradMemory = error.mul(update[t].map(x -> 1.0 - x)).mul(activation.derivative(memory[t]));
-		
-		Tensor gradUpdate = error.mul(prevState.sub(memory[t])).mul(gateActivation.derivative(update[t]));
-		
-		Tensor gradReset = memoryU.T().dot(gradMemory).mul(prevState).mul(gateActivation.derivative(reset[t]));
-		
-		gradResetW = gradResetW.add(gradReset.dot(input.T()));
-		gradResetU = gradResetU.add(gradReset.dot(prevState.T()));
-		
-		gradUpdateW = gradUpdateW.add(gradUpdate.dot(input.T()));
-		gradUpdateU = gradUpdateU.add(gradUpdate.dot(prevState.T()));
+		// accumulate the recurrent weight gradients in place
+		Tensor.dot(gradGatesTensor, prevState, false, true, gradRecurrent, true);
+		Tensor.dot(gradMemoryTensor, new Tensor(new int[]{rows, size}, resetState), false, true, gradMemoryU, true);
 		
-		gradMemoryW = gradMemoryW.add(gradMemory.dot(input.T()));
-		gradMemoryU = gradMemoryU.add(gradMemory.dot(prevState.mul(reset[t]).T()));
+		if(useBias)
+			gradBias.addiSumFirst(gradAll);
+		
+		double[] p = recurrent.dot(gradGatesTensor, true, false).asDoubles();
+		double[] gradPrevState = new double[rows * size];
+		for(int r = 0; r < rows; r++){
+			for(int i = 0; i < size; i++){
+				int j = r * size + i;
+				gradPrevState[j] = p[j] + gradResetState[j] * g[r * 3 * size + i] + e[j] * g[r * 3 * size + size + i];
+			}
+		}
 		
-		if(useBias){
-			gradResetB = gradResetB.add(gradReset);
-			gradUpdateB = gradUpdateB.add(gradUpdate);
-			gradMemoryB = gradMemoryB.add(gradMemory);
+		return new Tensor[]{gradAll, new Tensor(new int[]{rows, size}, gradPrevState).to(weights.dtype())};
+	}
+	
+	// the input weight gradients and the input gradients, for every row of the inputs
+	@Override
+	public Tensor backPropagateInputs(Tensor inputs, Tensor gradProjections){
+		Tensor.dot(gradProjections, inputs, false, true, gradWeights, true);
+		return weights.dot(gradProjections, true, false);
+	}
+	
+	// the states have the same type as the weights, like the states from forwardPropagate
+	@Override
+	public Tensor stepState(){
+		return new Tensor(outputShape(), weights.dtype(), false);
+	}
+	
+	// the input products, the recurrent products, the reset previous state, and the memory products
+	// they are doubles no matter the type of the weights, because the gate math is done with doubles
+	@Override
+	public Tensor[] stepBuffers(){
+		return new Tensor[]{
+				new Tensor(new int[]{1, 3 * size}, DType.FLOAT64, false),
+				new Tensor(new int[]{1, 2 * size}, DType.FLOAT64, false),
+				new Tensor(new int[]{1, size}, DType.FLOAT64, false),
+				new Tensor(new int[]{1, size}, DType.FLOAT64, false)};
+	}
+	
+	// same equations as forwardPropagate, but the products go into the buffers and the gates are not cached
+	@Override
+	public void step(Tensor input, Tensor prevState, Tensor state, Tensor[] buffers){
+		double[] x = Tensor.dot(weights, input, false, false, buffers[0], false).asDoubles();
+		double[] hGates = Tensor.dot(recurrent, prevState, false, false, buffers[1], false).asDoubles();
+		double[] h = prevState.asDoubles();
+		double[] b = useBias ? bias.asDoubles() : null;
+		
+		for(int i = 0; i < 2 * size; i++){
+			x[i] += hGates[i] + (useBias ? b[i] : 0.0);
 		}
+		activate(gateActivation, x, 0, size);
+		activate(gateActivation, x, size, size);
 		
-		Tensor gradInput = resetW.T().dot(gradReset).add(
-				updateW.T().dot(gradUpdate)).add(memoryW.T().dot(gradMemory));
+		double[] resetState = buffers[2].asDoubles();
+		for(int i = 0; i < size; i++){
+			resetState[i] = h[i] * x[i];
+		}
+		double[] m = Tensor.dot(memoryU, buffers[2], false, false, buffers[3], false).asDoubles();
 		
-		Tensor gradPrevState = resetU.T().dot(gradReset).add(
-				updateU.T().dot(gradUpdate)).add(memoryU.T().dot(gradMemory).mul(reset[t])).add(error.mul(update[t]));
+		for(int i = 0; i < size; i++){
+			x[2 * size + i] += m[i] + (useBias ? b[2 * size + i] : 0.0);
+		}
+		activate(activation, x, 2 * size, size);
 		
-		return new Tensor[]{gradInput, gradPrevState};
+		// the state can be the same tensor as the previous state, because each value is only read before it is written
+		double[] s = state.asDoubles();
+		for(int i = 0; i < size; i++){
+			double u = x[size + i];
+			s[i] = (1.0 - u) * x[2 * size + i] + u * h[i];
+		}
+		if(s != state.storage().doubles())
+			state.set(new Tensor(state.shape(), s));
+	}
+	
+	// applies the activation in place to len values from off
+	private static void activate(Activation a, double[] arr, int off, int len){
+		if(a instanceof Activation.Elementwise){
+			Activation.Elementwise e = (Activation.Elementwise)a;
+			for(int i = off; i < off + len; i++){
+				arr[i] = e.apply(arr[i]);
+			}
+		}else{
+			Tensor res = a.activate(new Tensor(new int[]{1, len}, Arrays.copyOfRange(arr, off, off + len)));
+			for(int i = 0; i < len; i++){
+				arr[off + i] = res.flatGet(i);
+			}
+		}
+	}
+	
+	// derivatives of len activated values from off
+	private static double[] derivative(Activation a, double[] arr, int off, int len){
+		double[] res = new double[len];
+		if(a instanceof Activation.Elementwise){
+			Activation.Elementwise e = (Activation.Elementwise)a;
+			for(int i = 0; i < len; i++){
+				res[i] = e.derivative(arr[off + i]);
+			}
+		}else{
+			Tensor d = a.derivative(new Tensor(new int[]{1, len}, Arrays.copyOfRange(arr, off, off + len)));
+			for(int i = 0; i < len; i++){
+				res[i] = d.flatGet(i);
+			}
+		}
+		return res;
 	}
 	
 	@Override
 	public void update(Optimizer optimizer, Regularizer regularizer, int changeCount){
 		// initialize all extra parameters that are used for optimization
-		if(resetWParams == null){
-			resetWParams = new Tensor[optimizer.extraParams()];
-			updateWParams = new Tensor[optimizer.extraParams()];
-			memoryWParams = new Tensor[optimizer.extraParams()];
-			
-			resetUParams = new Tensor[optimizer.extraParams()];
-			updateUParams = new Tensor[optimizer.extraParams()];
+		if(weightsParams == null){
+			weightsParams = new Tensor[optimizer.extraParams()];
+			recurrentParams = new Tensor[optimizer.extraParams()];
 			memoryUParams = new Tensor[optimizer.extraParams()];
 			
 			// use arrays to make initializing tensors take up less lines of code
-			Tensor[][] params = {resetWParams, updateWParams, memoryWParams, resetUParams, updateUParams, memoryUParams};
-			Tensor[] weights = {resetW, updateW, memoryW, resetU, updateU, memoryU};
+			Tensor[][] params = {weightsParams, recurrentParams, memoryUParams};
+			Tensor[] w = {weights, recurrent, memoryU};
 			
 			for(int i = 0; i < params.length; i++){
 				for(int j = 0; j < params[i].length; j++){
-					params[i][j] = new Tensor(weights[i].shape(), false);
+					params[i][j] = w[i].zerosLike();
 				}
 			}
 			
 			if(useBias){
-				resetBParams = new Tensor[optimizer.extraParams()];
-				updateBParams = new Tensor[optimizer.extraParams()];
-				memoryBParams = new Tensor[optimizer.extraParams()];
-				
-				params = new Tensor[][]{resetBParams, updateBParams, memoryBParams};
-				weights = new Tensor[]{resetB, updateB, memoryB};
-				
-				for(int i = 0; i < params.length; i++){
-					for(int j = 0; j < params[i].length; j++){
-						params[i][j] = new Tensor(weights[i].shape(), false);
-					}
+				biasParams = new Tensor[optimizer.extraParams()];
+				for(int j = 0; j < biasParams.length; j++){
+					biasParams[j] = bias.zerosLike();
 				}
 			}
 		}
 		
-		// average grads
-		gradResetW = gradResetW.div(Math.max(changeCount, 1));
-		gradUpdateW = gradUpdateW.div(Math.max(changeCount, 1));
-		gradMemoryW = gradMemoryW.div(Math.max(changeCount, 1));
-		gradResetU = gradResetU.div(Math.max(changeCount, 1));
-		gradUpdateU = gradUpdateU.div(Math.max(changeCount, 1));
-		gradMemoryU = gradMemoryU.div(Math.max(changeCount, 1));
-		
-		// optimize weights using the grads
-		if(regularizer == null){
-			resetW = resetW.sub(optimizer.optimize(gradResetW, resetWParams));
-			updateW = updateW.sub(optimizer.optimize(gradUpdateW, updateWParams));
-			memoryW = memoryW.sub(optimizer.optimize(gradMemoryW, memoryWParams));
-			
-			resetU = resetU.sub(optimizer.optimize(gradResetU, resetUParams));
-			updateU = updateU.sub(optimizer.optimize(gradUpdateU, updateUParams));
-			memoryU = memoryU.sub(optimizer.optimize(gradMemoryU, memoryUParams));
-		}else{
-			resetW = resetW.sub(optimizer.optimize(gradResetW.add(regularizer.derivative(resetW)), resetWParams));
-			updateW = updateW.sub(optimizer.optimize(gradUpdateW.add(regularizer.derivative(updateW)), updateWParams));
-			memoryW = memoryW.sub(optimizer.optimize(gradMemoryW.add(regularizer.derivative(memoryW)), memoryWParams));
-			
-			resetU = resetU.sub(optimizer.optimize(gradResetU.add(regularizer.derivative(resetU)), resetUParams));
-			updateU = updateU.sub(optimizer.optimize(gradUpdateU.add(regularizer.derivative(updateU)), updateUParams));
-			memoryU = memoryU.sub(optimizer.optimize(gradMemoryU.add(regularizer.derivative(memoryU)), memoryUParams));
+		Tensor[][] params = {weightsParams, recurrentParams, memoryUParams};
+		Tensor[] w = {weights, recurrent, memoryU};
+		Tensor[] grads = {gradWeights, gradRecurrent, gradMemoryU};
+		
+		// average grads, optimize weights using the grads, and reset grads
+		// all in place, so the gradient accumulators are reused
+		for(int i = 0; i < w.length; i++){
+			grads[i].divi(Math.max(changeCount, 1));
+			if(regularizer != null)
+				regularizer.addDerivative(w[i], grads[i]);
+			w[i].subi(optimizer.optimizeInPlace(grads[i], params[i]));
+			grads[i].fill(0.0);
 		}
 		
-		// reset grads
-		gradResetW = new Tensor(gradResetW.shape(), false);
-		gradUpdateW = new Tensor(gradUpdateW.shape(), false);
-		gradMemoryW = new Tensor(gradMemoryW.shape(), false);
-		gradResetU = new Tensor(gradResetU.shape(), false);
-		gradUpdateU = new Tensor(gradUpdateU.shape(), false);
-		gradMemoryU = new Tensor(gradMemoryU.shape(), false);
-		
 		if(useBias){
-			// average grads
-			gradResetB = gradResetB.div(Math.max(changeCount, 1));
-			gradUpdateB = gradUpdateB.div(Math.max(changeCount, 1));
-			gradMemoryB = gradMemoryB.div(Math.max(changeCount, 1));
-			
-			// optimize biases using the grads
-			resetB = resetB.sub(optimizer.optimize(gradResetB, resetBParams));
-			updateB = updateB.sub(optimizer.optimize(gradUpdateB, updateBParams));
-			memoryB = memoryB.sub(optimizer.optimize(gradMemoryB, memoryBParams));
-			
-			// reset grads
-			gradResetB = new Tensor(gradResetB.shape(), false);
-			gradUpdateB = new Tensor(gradUpdateB.shape(), false);
-			gradMemoryB = new Tensor(gradMemoryB.shape(), false);
+			gradBias.divi(Math.max(changeCount, 1));
+			bias.subi(optimizer.optimizeInPlace(gradBias, biasParams));
+			gradBias.fill(0.0);
 		}
 	}
 	
 	@Override
 	public int byteSize(){
-		return Double.BYTES * resetW.size() + Double.BYTES * updateW.size() + Double.BYTES * memoryW.size() +
-				Double.BYTES * resetU.size() + Double.BYTES * updateU.size() + Double.BYTES * memoryU.size() +
-				(useBias ? (Double.BYTES * resetB.size() + Double.BYTES * updateB.size() + Double.BYTES * memoryB.size()) : 0);
+		return Double.BYTES * (weights.size() + recurrent.size() + memoryU.size() + (useBias ? bias.size() : 0));
 	}
 	
+	// the weights are saved as separate size x size matrices for each gate, in the order
+	// resetW, updateW, memoryW, resetU, updateU, memoryU, and then the biases
+	// which is the same as when the gates were not stacked
 	@Override
 	public ByteBuffer bytes(){
 		ByteBuffer bb = ByteBuffer.allocate(byteSize());
 		
-		Tensor[] weights = {resetW, updateW, memoryW, resetU, updateU, memoryU};
-		
-		for(Tensor w : weights){
-			for(int i = 0; i < w.size(); i++){
-				bb.putDouble(w.flatGet(i));
-			}
-		}
+		putGates(bb, weights, 3);
+		putGates(bb, recurrent, 2);
+		putGates(bb, memoryU, 1);
 		
+		// the biases of the gates are already one after another
 		if(useBias){
-			weights = new Tensor[]{resetB, updateB, memoryB};
-			
-			for(Tensor w : weights){
-				for(int i = 0; i < w.size(); i++){
-					bb.putDouble(w.flatGet(i));
-				}
+			for(int i = 0; i < bias.size(); i++){
+				bb.putDouble(bias.flatGet(i));
 			}
 		}
 		
@@ -286,63 +406,41 @@ public class GRUCell implements RecurrentCell{
 		return bb;
 	}
 	
+	private void putGates(ByteBuffer bb, Tensor w, int count){
+		for(int k = 0; k < count; k++){
+			for(int i = 0; i < size; i++){
+				for(int j = 0; j < size; j++){
+					bb.putDouble(w.flatGet(i * count * size + k * size + j));
+				}
+			}
+		}
+	}
+	
 	@Override
 	public void readBytes(ByteBuffer bb){
-		double[] rW = new double[resetW.size()];
-		for(int i = 0; i < rW.length; i++){
-			rW[i] = bb.getDouble();
-		}
-		resetW = new Tensor(resetW.shape(), rW);
-		
-		double[] uW = new double[updateW.size()];
-		for(int i = 0; i < uW.length; i++){
-			uW[i] = bb.getDouble();
-		}
-		updateW = new Tensor(updateW.shape(), uW);
-		
-		double[] mW = new double[memoryW.size()];
-		for(int i = 0; i < mW.length; i++){
-			mW[i] = bb.getDouble();
-		}
-		memoryW = new Tensor(memoryW.shape(), mW);
-		
-		double[] rU = new double[resetU.size()];
-		for(int i = 0; i < rU.length; i++){
-			rU[i] = bb.getDouble();
-		}
-		resetU = new Tensor(resetU.shape(), rU);
-		
-		double[] uU = new double[updateU.size()];
-		for(int i = 0; i < uU.length; i++){
-			uU[i] = bb.getDouble();
-		}
-		updateU = new Tensor(updateU.shape(), uU);
-		
-		double[] mU = new double[memoryU.size()];
-		for(int i = 0; i < mU.length; i++){
-			mU[i] = bb.getDouble();
-		}
-		memoryU = new Tensor(memoryU.shape(), uU);
+		readGates(bb, weights, 3);
+		readGates(bb, recurrent, 2);
+		readGates(bb, memoryU, 1);
 		
 		if(useBias){
-			double[] rB = new double[resetB.size()];
-			for(int i = 0; i < rB.length; i++){
-				rB[i] = bb.getDouble();
+			double[] b = new double[bias.size()];
+			for(int i = 0; i < b.length; i++){
+				b[i] = bb.getDouble();
 			}
-			resetB = new Tensor(resetB.shape(), rB);
-			
-			double[] uB = new double[updateB.size()];
-			for(int i = 0; i < uB.length; i++){
-				uB[i] = bb.getDouble();
-			}
-			updateB = new Tensor(updateB.shape(), uB);
-			
-			double[] mB = new double[memoryB.size()];
-			for(int i = 0; i < mB.length; i++){
-				mB[i] = bb.getDouble();
+			bias.set(new Tensor(bias.shape(), b));
+		}
+	}
+	
+	private void readGates(ByteBuffer bb, Tensor w, int count){
+		double[] arr = new double[w.size()];
+		for(int k = 0; k < count; k++){
+			for(int i = 0; i < size; i++){
+				for(int j = 0; j < size; j++){
+					arr[i * count * size + k * size + j] = bb.getDouble();
+				}
 			}
-			memoryB = new Tensor(memoryB.shape(), mB);
 		}
+		w.set(new Tensor(w.shape(), arr));
 	}
 	
 	@Override
@@ -0,0 +1,21 @@
+package javamachinelearning.layers.recurrent;
+
+import javamachinelearning.utils.Tensor;
+
+// a cell that splits off the products of the inputs, which do not depend on the previous states
+// then they are done for every time step at once with one matrix multiply, and only the recurrent products are left
+// for each time step
+public interface ProjectedRecurrentCell extends RecurrentCell{
+	// the input products for each row of the inputs
+	public Tensor projectInputs(Tensor inputs);
+	
+	// same as forwardPropagate, but with a row of the input products instead of the input
+	public Tensor forwardPropagateProjected(int t, Tensor projection, Tensor prevState, boolean training);
+	
+	// returns the gradients of the input products and the previous state
+	// the gradients of the input weights are left to backPropagateInputs
+	public Tensor[] backPropagateProjected(int t, Tensor prevState, Tensor error);
+	
+	// accumulates the input weight gradients for every row of the inputs, and returns the input gradients
+	public Tensor backPropagateInputs(Tensor inputs, Tensor gradProjections);
+}
@@ -8,6 +8,8 @@ import javamachinelearning.utils.Tensor;
 
 public interface RecurrentCell{
 	public void noBias();
+	public void offHeap();
+	public void free();
 	
 	public int[] outputShape();
 	public int[] inputShape();
@@ -15,6 +17,24 @@ public interface RecurrentCell{
 	public Tensor forwardPropagate(int t, Tensor input, Tensor prevState, boolean training);
 	// backpropagation should return two tensors for the input and the previous state gradients
 	public Tensor[] backPropagate(int t, Tensor input, Tensor prevState, Tensor error);
+	// cells that can split off the products of the inputs implement ProjectedRecurrentCell
+	
+	// a zero state for step, with the same type as the states that the cell outputs
+	public default Tensor stepState(){
+		return new Tensor(outputShape(), false);
+	}
+	
+	// scratch tensors for step, which are made once and reused for every time step
+	public default Tensor[] stepBuffers(){
+		return new Tensor[0];
+	}
+	
+	// propagates one time step for inference into the state tensor, without caching anything in the cell
+	// so separate sequences can be propagated through the same cell, each with its own states and buffers
+	// cells that cache values when they are not training should override this
+	public default void step(Tensor input, Tensor prevState, Tensor state, Tensor[] buffers){
+		state.set(forwardPropagate(0, input, prevState, false));
+	}
 	public void update(Optimizer optimizer, Regularizer regularizer, int changeCount);
 	public int byteSize();
 	public ByteBuffer bytes();
@@ -6,8 +6,8 @@ import java.util.Arrays;
 import javamachinelearning.layers.ParamsLayer;
 import javamachinelearning.optimizers.Optimizer;
 import javamachinelearning.regularizers.Regularizer;
+import javamachinelearning.utils.BufferPool;
 import javamachinelearning.utils.Tensor;
-import javamachinelearning.utils.TensorUtils;
 
 public class RecurrentLayer implements ParamsLayer{
 	private RecurrentCell cell;
@@ -27,6 +27,28 @@ public class RecurrentLayer implements ParamsLayer{
 	// save the previous state before it is updated, for backpropagation
 	private Tensor layerPrevStateTemp;
 	
+	// truncated backpropagation through time
+	// the sequence is propagated in chunks of k1 time steps, and the gradients of each chunk go back k2 time steps
+	private boolean truncated = false;
+	private int k1, k2;
+	// only cache the values of one time step in the cell, and propagate each time step again right before it is
+	// backpropagated, instead of propagating the whole window of k2 time steps again
+	private boolean checkpoint = false;
+	// the state before the window of each chunk, which is all that is kept of the states for backpropagation
+	private Tensor[] windowStates;
+	// number of time steps and outputs of the last forward propagation
+	private int lastTimeSteps, lastOutputs;
+	
+	// whether the time steps past the end of each sequence are masked out, instead of propagated with zero inputs
+	private boolean mask = false;
+	
+	// the last mini batch of sequences, packed one time step after another without the padding
+	// the sequences are sorted from longest to shortest, so the sequences that are still going at each time step
+	// are the first rows of that time step
+	private Tensor packedInputs, packedStates;
+	// the sequences in sorted order, their lengths, and the first row and number of rows of each time step
+	private int[] order, lengths, stepStart, stepRows;
+	
 	public RecurrentLayer(int numTimeSteps, int numOutputs, RecurrentCell cell, boolean statefulTrain, boolean statefulTest){
 		this.numTimeSteps = numTimeSteps;
 		this.numOutputs = numOutputs;
@@ -69,7 +91,33 @@ public class RecurrentLayer implements ParamsLayer{
 		states = new Tensor[numTimeSteps];
 		
 		// inputShape[1] = size of input 1D tensor
-		cell.init(inputShape[1], numTimeSteps);
+		// with truncated backpropagation, the cell only caches the time steps that are backpropagated at once
+		cell.init(inputShape[1], truncated ? (checkpoint ? 1 : k2) : numTimeSteps);
+	}
+	
+	// truncated backpropagation through time, for sequences that are too long to backpropagate through at once
+	// the sequences can have any length, and they are propagated k1 time steps at a time, with the state carried
+	// over from the chunk before
+	// each chunk is backpropagated through the k2 time steps up to the end of the chunk, so the time steps that are
+	// cached at once, and the memory that is used for them, do not depend on the length of the sequence
+	// only one state is kept for each chunk, and the states inside a window are computed again when it is backpropagated
+	// must be set before this layer is initialized
+	public RecurrentLayer truncate(int k1, int k2){
+		if(k1 < 1 || k2 < k1)
+			throw new IllegalArgumentException("Bad sizes for truncated backpropagation!");
+		
+		this.truncated = true;
+		this.k1 = k1;
+		this.k2 = k2;
+		return this;
+	}
+	
+	// gradient checkpointing for truncated backpropagation
+	// only the states of the window are computed again, and each time step is propagated again right before it is
+	// backpropagated, so the cell only caches one time step, but the cell is propagated twice for every time step in a window
+	public RecurrentLayer checkpoint(boolean checkpoint){
+		this.checkpoint = checkpoint;
+		return this;
 	}
 	
 	@Override
@@ -78,78 +126,393 @@ public class RecurrentLayer implements ParamsLayer{
 		return this;
 	}
 	
+	@Override
+	public ParamsLayer offHeap(){
+		cell.offHeap();
+		return this;
+	}
+	
+	@Override
+	public void free(){
+		cell.free();
+	}
+	
 	public RecurrentCell cell(){
 		return cell;
 	}
 	
+	// sequences shorter than the number of time steps stop at their ends, so the padding is not propagated
+	// the outputs only have the time steps of the sequence, and backpropagation only goes through those time steps
+	// in a mini batch, the outputs are padded with zeros up to the longest sequence
+	public RecurrentLayer mask(boolean mask){
+		this.mask = mask;
+		return this;
+	}
+	
 	@Override
 	public Tensor forwardPropagate(Tensor input, boolean training){
-		return forwardPropagate(input, numTimeSteps, training);
+		// with truncated backpropagation, the whole sequence is used, no matter how long it is
+		if(truncated)
+			return forwardPropagate(input, input.shape()[0], training);
+		
+		return forwardPropagate(input, mask ? Math.min(input.shape()[0], numTimeSteps) : numTimeSteps, training);
 	}
 	
 	// more general method that allows the number of times the cell is propagated through to vary
 	public Tensor forwardPropagate(Tensor input, int timeSteps, boolean training){
 		int outputCount = outputAll ? timeSteps : Math.min(numOutputs, timeSteps);
 		boolean stateful = (training && statefulTrain) || (!training && statefulTest);
-		Tensor[] outputs = new Tensor[outputCount];
-		int idx = 0;
+		lastTimeSteps = timeSteps;
+		lastOutputs = outputCount;
+		
+		if(truncated)
+			return forwardPropagateTruncated(input, timeSteps, outputCount, stateful, training);
+		
+		// the states are stored as views of the rows of a single tensor, so they do not need to be stacked
+		Tensor outputs = new Tensor(new int[]{timeSteps, cell.outputShape()[1]}, input.dtype(), false);
+		
+		// the input products of every time step do not depend on the states, so they are one matrix multiply
+		// time steps past the end of the input have no input, so their products are zeros
+		int inputSteps = Math.min(input.shape()[0], timeSteps);
+		ProjectedRecurrentCell projected = projected();
+		Tensor projections = projected != null ? projected.projectInputs(inputs(input, inputSteps)) : null;
 		
 		// the same recurrent cell is used across multiple time steps!
 		// data is fed into the cell repeatedly
 		for(int i = 0; i < timeSteps; i++){
-			Tensor inTensor = i < input.shape()[0] ?
-					input.get(i) : new Tensor(cell.inputShape(), false);
-			
 			Tensor prevState = i == 0 ?
 					(stateful && layerPrevState != null ? layerPrevState :
 						new Tensor(cell.inputShape(), false)) : states[i - 1];
 			
-			states[i] = cell.forwardPropagate(i, inTensor, prevState, training);
-			
-			// only output the last few cells
-			if(i >= timeSteps - outputCount){
-				outputs[idx] = states[i];
-				idx++;
+			Tensor state;
+			if(projections != null){
+				Tensor projection = i < inputSteps ?
+						projections.get(i) : new Tensor(new int[]{1, projections.shape()[1]}, false);
+				state = projected.forwardPropagateProjected(i, projection, prevState, training);
+			}else{
+				Tensor inTensor = i < inputSteps ?
+						input.get(i) : new Tensor(cell.inputShape(), false);
+				state = cell.forwardPropagate(i, inTensor, prevState, training);
 			}
+			
+			states[i] = outputs.get(i).set(state);
 		}
 		
 		// save last state for next time this layer is forward propagated, if necessary
 		if(stateful){
 			layerPrevStateTemp = layerPrevState;
-			layerPrevState = states[timeSteps - 1];
+			// the state outlives the current training step, so it cannot go back to the buffer pool
+			layerPrevState = BufferPool.keep(states[timeSteps - 1]);
+		}
+		
+		// only output the last few cells
+		return outputs.slice(timeSteps - outputCount, timeSteps);
+	}
+	
+	// the chunks are propagated one after another, and the cell only caches the current time step
+	// because the values of the time steps are computed again when backpropagating
+	// only the outputs and the state before the window of each chunk are kept
+	private Tensor forwardPropagateTruncated(Tensor input, int timeSteps, int outputCount, boolean stateful, boolean training){
+		Tensor outputs = new Tensor(new int[]{outputCount, cell.outputShape()[1]}, input.dtype(), false);
+		int firstOutput = timeSteps - outputCount;
+		windowStates = new Tensor[(timeSteps + k1 - 1) / k1];
+		int chunk = 0;
+		
+		Tensor prevState = stateful && layerPrevState != null ? layerPrevState : new Tensor(cell.inputShape(), false);
+		
+		for(int start = 0; start < timeSteps; start += k1){
+			int end = Math.min(start + k1, timeSteps);
+			Tensor projections = project(input, start, end);
+			
+			for(int i = start; i < end; i++){
+				// the windows start at or before their chunks, so their states are reached in order
+				while(chunk < windowStates.length && windowStart(chunk, timeSteps) == i){
+					windowStates[chunk] = prevState;
+					chunk++;
+				}
+				
+				prevState = propagateStep(0, input, projections, i - start, i, prevState, training);
+				if(i >= firstOutput)
+					outputs.get(i - firstOutput).set(prevState);
+			}
+		}
+		
+		if(stateful){
+			layerPrevStateTemp = layerPrevState;
+			layerPrevState = BufferPool.keep(prevState);
 		}
 		
-		return TensorUtils.stack(outputs);
+		return outputs;
+	}
+	
+	// the first time step of the window of k2 time steps that ends with a chunk
+	private int windowStart(int chunk, int timeSteps){
+		return Math.max(Math.min((chunk + 1) * k1, timeSteps) - k2, 0);
+	}
+	
+	// the input products of a range of time steps, if the cell splits them off
+	private Tensor project(Tensor input, int start, int end){
+		return projected() != null ? projected().projectInputs(input.slice(start, end)) : null;
+	}
+	
+	// the cell, if it splits off the input products, or null
+	private ProjectedRecurrentCell projected(){
+		return cell instanceof ProjectedRecurrentCell ? (ProjectedRecurrentCell)cell : null;
+	}
+	
+	// propagates one time step, and caches its values in the given slot of the cell
+	private Tensor propagateStep(int slot, Tensor input, Tensor projections, int row, int i, Tensor prevState, boolean training){
+		if(projections != null)
+			return projected().forwardPropagateProjected(slot, projections.get(row), prevState, training);
+		else
+			return cell.forwardPropagate(slot, input.get(i), prevState, training);
 	}
 	
 	@Override
 	public Tensor backPropagate(Tensor input, Tensor output, Tensor nextLayerError){
-		Tensor[] prevLayerError = new Tensor[numTimeSteps];
+		if(truncated)
+			return backPropagateTruncated(input, nextLayerError);
+		
+		// only the time steps of the last forward propagation are backpropagated
+		int timeSteps = lastTimeSteps;
+		Tensor prevLayerError = new Tensor(new int[]{timeSteps, cell.inputShape()[1]}, nextLayerError.dtype(), false);
 		Tensor nextCellError = new Tensor(cell.outputShape(), false);
+		int inputSteps = Math.min(input.shape()[0], timeSteps);
+		// the gradients of the input products of each time step, if the cell splits them off
+		// the input gradients and the input weight gradients are then one matrix multiply at the end
+		Tensor gradProjections = null;
+		ProjectedRecurrentCell projected = projected();
 		
-		for(int i = numTimeSteps - 1; i >= 0; i--){
-			Tensor inTensor = i < input.shape()[0] ?
-					input.get(i) : new Tensor(cell.inputShape(), false);
-			
+		for(int i = timeSteps - 1; i >= 0; i--){
 			Tensor prevState = i == 0 ?
 					(statefulTrain && layerPrevStateTemp != null ? layerPrevStateTemp :
 						new Tensor(cell.inputShape(), false)) : states[i - 1];
 			
 			// accumulate the error gradient from the next layer and the next cell
-			int idx = i - (numTimeSteps - numOutputs);
-			Tensor totalError = (i >= 0) ? nextCellError.add(nextLayerError.get(idx)) : nextCellError;
+			int idx = i - (timeSteps - lastOutputs);
+			Tensor totalError = idx >= 0 ? nextCellError.add(nextLayerError.get(idx)) : nextCellError;
 			
-			Tensor[] arr = cell.backPropagate(i, inTensor, prevState, totalError);
+			if(projected != null){
+				Tensor[] arr = projected.backPropagateProjected(i, prevState, totalError);
+				if(gradProjections == null)
+					gradProjections = new Tensor(new int[]{timeSteps, arr[0].shape()[1]}, false);
+				gradProjections.get(i).set(arr[0]);
+				nextCellError = arr[1];
+			}else{
+				Tensor inTensor = i < inputSteps ?
+						input.get(i) : new Tensor(cell.inputShape(), false);
+				Tensor[] arr = cell.backPropagate(i, inTensor, prevState, totalError);
+				
+				// time steps past the end of the input do not have an error
+				if(i < inputSteps)
+					prevLayerError.get(i).set(arr[0]);
+				
+				nextCellError = arr[1];
+			}
+		}
+		
+		// time steps past the end of the input do not have an input, so they do not change the input weights
+		if(gradProjections != null)
+			prevLayerError.slice(0, inputSteps).set(projected.backPropagateInputs(inputs(input, inputSteps), gradProjections.slice(0, inputSteps)));
+		
+		changeCount++;
+		
+		return prevLayerError;
+	}
+	
+	// each chunk of k1 time steps is backpropagated through the window of k2 time steps that ends with it
+	// only the time steps of the chunk get errors from the next layer, because the earlier time steps in the window
+	// got theirs with their own chunks
+	// the windows overlap when k2 > k1, so the input gradients are added together
+	private Tensor backPropagateTruncated(Tensor input, Tensor nextLayerError){
+		int timeSteps = lastTimeSteps;
+		int firstOutput = timeSteps - lastOutputs;
+		Tensor prevLayerError = new Tensor(new int[]{timeSteps, cell.inputShape()[1]}, nextLayerError.dtype(), false);
+		ProjectedRecurrentCell projected = projected();
+		// the states of the current window, which are the only states that are kept at once
+		Tensor[] window = new Tensor[Math.min(k2, timeSteps)];
+		
+		for(int chunk = 0, start = 0; start < timeSteps; chunk++, start += k1){
+			int end = Math.min(start + k1, timeSteps);
+			int windowStart = windowStart(chunk, timeSteps);
+			Tensor projections = project(input, windowStart, end);
 			
-			prevLayerError[i] = i < input.shape()[0] ?
-					arr[0] : new Tensor(cell.inputShape(), false);
+			// the whole window is propagated again first from the state before it
+			// without checkpointing, the cell also caches every time step
+			Tensor state = windowStates[chunk];
+			for(int i = windowStart; i < end; i++){
+				state = propagateStep(checkpoint ? 0 : i - windowStart, input, projections, i - windowStart, i, state, true);
+				window[i - windowStart] = state;
+			}
 			
-			nextCellError = arr[1];
+			Tensor nextCellError = new Tensor(cell.outputShape(), false);
+			Tensor gradProjections = null;
+			
+			for(int i = end - 1; i >= windowStart; i--){
+				Tensor prevState = i == windowStart ? windowStates[chunk] : window[i - windowStart - 1];
+				int slot = checkpoint ? 0 : i - windowStart;
+				if(checkpoint)
+					propagateStep(0, input, projections, i - windowStart, i, prevState, true);
+				
+				Tensor totalError = i >= start && i >= firstOutput ? nextCellError.add(nextLayerError.get(i - firstOutput)) : nextCellError;
+				
+				Tensor[] arr;
+				if(projections != null){
+					arr = projected.backPropagateProjected(slot, prevState, totalError);
+					if(gradProjections == null)
+						gradProjections = new Tensor(new int[]{end - windowStart, arr[0].shape()[1]}, false);
+					gradProjections.get(i - windowStart).set(arr[0]);
+				}else{
+					arr = cell.backPropagate(slot, input.get(i), prevState, totalError);
+					prevLayerError.get(i).addi(arr[0]);
+				}
+				
+				nextCellError = arr[1];
+			}
+			
+			if(gradProjections != null)
+				prevLayerError.slice(windowStart, end).addi(projected.backPropagateInputs(input.slice(windowStart, end), gradProjections));
 		}
 		
+		windowStates = null;
 		changeCount++;
 		
-		return TensorUtils.stack(prevLayerError);
+		return prevLayerError;
+	}
+	
+	// whether mini batches of sequences can be propagated together
+	// stateful layers carry the state from one sequence to the next, so they need the sequences one at a time
+	public boolean canBatch(){
+		return !statefulTrain && !statefulTest && !truncated && cell instanceof ProjectedRecurrentCell;
+	}
+	
+	// propagates a mini batch of sequences at once, as [batch size, time steps, input size]
+	// the lengths are the number of time steps of each sequence, or null if every sequence has all of the time steps
+	// if this layer masks, each sequence stops at its length, and the rest of its outputs are zeros
+	// the input products of every time step of every sequence are one matrix multiply, and each time step only
+	// propagates the rows of the sequences that are still going
+	public Tensor forwardPropagateBatch(Tensor input, int[] lengths, boolean training){
+		int batchSize = input.shape()[0];
+		int inputSteps = input.shape()[1];
+		int size = cell.outputShape()[1];
+		
+		this.lengths = new int[batchSize];
+		int timeSteps = mask ? 0 : numTimeSteps;
+		for(int b = 0; b < batchSize; b++){
+			this.lengths[b] = mask ? Math.min(lengths == null ? inputSteps : lengths[b], numTimeSteps) : numTimeSteps;
+			timeSteps = Math.max(timeSteps, this.lengths[b]);
+		}
+		int outputCount = outputAll ? timeSteps : numOutputs;
+		lastTimeSteps = timeSteps;
+		lastOutputs = outputCount;
+		
+		// sort the sequences from longest to shortest
+		Integer[] sorted = new Integer[batchSize];
+		for(int b = 0; b < batchSize; b++){
+			sorted[b] = b;
+		}
+		Arrays.sort(sorted, (x, y) -> this.lengths[y] - this.lengths[x]);
+		order = new int[batchSize];
+		for(int b = 0; b < batchSize; b++){
+			order[b] = sorted[b];
+		}
+		
+		stepStart = new int[timeSteps];
+		stepRows = new int[timeSteps];
+		int total = 0;
+		for(int t = 0; t < timeSteps; t++){
+			stepStart[t] = total;
+			while(stepRows[t] < batchSize && this.lengths[order[stepRows[t]]] > t){
+				stepRows[t]++;
+			}
+			total += stepRows[t];
+		}
+		
+		// time steps past the end of the input have zero inputs
+		packedInputs = new Tensor(new int[]{total, input.shape()[2]}, false);
+		for(int t = 0; t < Math.min(timeSteps, inputSteps); t++){
+			for(int j = 0; j < stepRows[t]; j++){
+				packedInputs.get(stepStart[t] + j).set(input.get(order[j]).get(t));
+			}
+		}
+		ProjectedRecurrentCell projected = (ProjectedRecurrentCell)cell;
+		Tensor projections = projected.projectInputs(packedInputs);
+		
+		packedStates = new Tensor(new int[]{total, size}, false);
+		for(int t = 0; t < timeSteps; t++){
+			int start = stepStart[t];
+			int rows = stepRows[t];
+			Tensor prevState = t == 0 ?
+					new Tensor(new int[]{rows, size}, false) : packedStates.slice(stepStart[t - 1], stepStart[t - 1] + rows);
+			
+			packedStates.slice(start, start + rows).set(
+					projected.forwardPropagateProjected(t, projections.slice(start, start + rows), prevState, training));
+		}
+		
+		Tensor outputs = new Tensor(new int[]{batchSize, outputCount, size}, input.dtype(), false);
+		for(int t = 0; t < timeSteps; t++){
+			for(int j = 0; j < stepRows[t]; j++){
+				int row = outputRow(order[j], t);
+				if(row >= 0)
+					outputs.get(order[j]).get(row).set(packedStates.get(stepStart[t] + j));
+			}
+		}
+		return outputs;
+	}
+	
+	public Tensor backPropagateBatch(Tensor input, Tensor output, Tensor error){
+		ProjectedRecurrentCell projected = (ProjectedRecurrentCell)cell;
+		Tensor gradProjections = null;
+		Tensor nextCellError = null;
+		
+		for(int t = lastTimeSteps - 1; t >= 0; t--){
+			int start = stepStart[t];
+			int rows = stepRows[t];
+			
+			// the sequences that end at this time step do not have an error from the next time step
+			Tensor totalError = new Tensor(new int[]{rows, cell.outputShape()[1]}, false);
+			if(nextCellError != null)
+				totalError.slice(0, nextCellError.shape()[0]).set(nextCellError);
+			for(int j = 0; j < rows; j++){
+				int row = outputRow(order[j], t);
+				if(row >= 0)
+					totalError.get(j).addi(error.get(order[j]).get(row));
+			}
+			
+			Tensor prevState = t == 0 ?
+					new Tensor(new int[]{rows, cell.outputShape()[1]}, false) : packedStates.slice(stepStart[t - 1], stepStart[t - 1] + rows);
+			Tensor[] arr = projected.backPropagateProjected(t, prevState, totalError);
+			if(gradProjections == null)
+				gradProjections = new Tensor(new int[]{packedInputs.shape()[0], arr[0].shape()[1]}, false);
+			gradProjections.slice(start, start + rows).set(arr[0]);
+			nextCellError = arr[1];
+		}
+		
+		Tensor prevLayerError = new Tensor(input.shape(), error.dtype(), false);
+		if(gradProjections != null){
+			Tensor packedErrors = projected.backPropagateInputs(packedInputs, gradProjections);
+			for(int t = 0; t < Math.min(lastTimeSteps, input.shape()[1]); t++){
+				for(int j = 0; j < stepRows[t]; j++){
+					prevLayerError.get(order[j]).get(t).set(packedErrors.get(stepStart[t] + j));
+				}
+			}
+		}
+		
+		changeCount += input.shape()[0];
+		
+		return prevLayerError;
+	}
+	
+	// the row of the outputs of a sequence in the last mini batch for a time step, or -1 if it is not an output
+	// without outputAll, the outputs are the last time steps of each sequence
+	private int outputRow(int b, int t){
+		int row = outputAll ? t : t - (lengths[b] - lastOutputs);
+		return row >= 0 && row < lastOutputs ? row : -1;
+	}
+	
+	// the first rows of the input, for the time steps that are used
+	private Tensor inputs(Tensor input, int steps){
+		return steps < input.shape()[0] ? input.slice(0, steps) : input;
 	}
 	
 	@Override
@@ -184,6 +547,7 @@ public class RecurrentLayer implements ParamsLayer{
 	
 	@Override
 	public String toString(){
-		return "Recurrent\tCell: " + cell.toString() + "\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape());
+		return "Recurrent\tCell: " + cell.toString() + "\tInput Shape: " + Arrays.toString(inputShape()) + "\tOutput Shape: " + Arrays.toString(outputShape())
+				+ (truncated ? "\tTruncated: " + k1 + ", " + k2 : "");
 	}
 }
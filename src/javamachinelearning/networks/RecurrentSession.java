@@ -0,0 +1,81 @@
+package javamachinelearning.networks;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javamachinelearning.layers.Layer;
+import javamachinelearning.layers.recurrent.RecurrentCell;
+import javamachinelearning.layers.recurrent.RecurrentLayer;
+import javamachinelearning.utils.BufferPool;
+import javamachinelearning.utils.Tensor;
+
+// propagates a network one time step at a time for inference, like when generating text one character at a time
+// each session has its own states for the recurrent layers, so many sessions can run on the same network independently
+// and the states that the layers keep for stateful training and prediction are not changed
+// the states and the buffers of the recurrent cells are made once, so each time step does not allocate them again
+// the other layers are propagated normally, because they do not keep anything between time steps
+public class RecurrentSession{
+	private Layer[] layers;
+	
+	// the state and buffers of each recurrent layer, or null for the other layers
+	private Tensor[] states;
+	private Tensor[][] buffers;
+	
+	RecurrentSession(List<Layer> layers){
+		this.layers = layers.toArray(new Layer[0]);
+		this.states = new Tensor[this.layers.length];
+		this.buffers = new Tensor[this.layers.length][];
+		
+		for(int i = 0; i < this.layers.length; i++){
+			if(this.layers[i] instanceof RecurrentLayer){
+				RecurrentCell cell = ((RecurrentLayer)this.layers[i]).cell();
+				// the session can outlive the current training step, so its tensors cannot go back to the buffer pool
+				states[i] = BufferPool.keep(cell.stepState());
+				buffers[i] = cell.stepBuffers();
+				for(Tensor t : buffers[i]){
+					BufferPool.keep(t);
+				}
+			}
+		}
+	}
+	
+	// each row of the input is one time step, and the output of the last time step is returned
+	// the output of a recurrent layer is its state, which is overwritten by the next time step,
+	// so it should be copied if it needs to be kept
+	public Tensor step(Tensor input){
+		Tensor res = null;
+		for(int t = 0; t < input.shape()[0]; t++){
+			res = input.get(t);
+			
+			for(int i = 0; i < layers.length; i++){
+				if(states[i] != null){
+					// the state is updated in place
+					((RecurrentLayer)layers[i]).cell().step(res, states[i], states[i], buffers[i]);
+					res = states[i];
+				}else{
+					res = layers[i].forwardPropagate(res, false);
+				}
+			}
+		}
+		return res;
+	}
+	
+	// starts a new sequence
+	public void reset(){
+		for(Tensor s : states){
+			if(s != null)
+				s.fill(0.0);
+		}
+	}
+	
+	// a new session that continues from the states of this one, but does not share them
+	// so different continuations of the same sequence can be tried
+	public RecurrentSession copy(){
+		RecurrentSession res = new RecurrentSession(Arrays.asList(layers));
+		for(int i = 0; i < states.length; i++){
+			if(states[i] != null)
+				res.states[i].set(states[i]);
+		}
+		return res;
+	}
+}
@@ -7,11 +7,15 @@ import java.util.ArrayList;
 
 import javamachinelearning.layers.Layer;
 import javamachinelearning.layers.ParamsLayer;
+import javamachinelearning.layers.feedforward.BatchNormLayer;
+import javamachinelearning.layers.feedforward.FeedForwardLayer;
 import javamachinelearning.layers.recurrent.RecurrentLayer;
 import javamachinelearning.optimizers.Optimizer;
 import javamachinelearning.regularizers.Regularizer;
+import javamachinelearning.utils.BufferPool;
 import javamachinelearning.utils.Loss;
 import javamachinelearning.utils.Tensor;
+import javamachinelearning.utils.TensorUtils;
 import javamachinelearning.utils.Utils;
 
 public class SequentialNN implements NeuralNetwork, SupervisedNeuralNetwork{
@@ -68,6 +72,11 @@ public class SequentialNN implements NeuralNetwork, SupervisedNeuralNetwork{
 		return input;
 	}
 	
+	// a new session for propagating one time step at a time, with its own recurrent states
+	public RecurrentSession session(){
+		return new RecurrentSession(layers);
+	}
+	
 	// predictTrain should only be used for training!
 	// it saves the outputs for each layer
 	public Tensor[] predictTrain(Tensor input){
@@ -80,6 +89,53 @@ public class SequentialNN implements NeuralNetwork, SupervisedNeuralNetwork{
 		return res;
 	}
 	
+	// propagates a whole mini batch at once
+	// the input has an extra first dimension for the samples, and so does the output
+	// only works if every layer can be batched
+	public Tensor predictBatch(Tensor input){
+		return predictBatch(input, null);
+	}
+	
+	// propagates a mini batch of sequences that are padded to the same length
+	// the lengths are the number of time steps of each sequence, which are used by recurrent layers
+	public Tensor predictBatch(Tensor input, int[] lengths){
+		for(int i = 0; i < layers.size(); i++){
+			input = forwardPropagateBatch(layers.get(i), input, lengths, false);
+		}
+		return input;
+	}
+	
+	public Tensor[] predictTrainBatch(Tensor input){
+		return predictTrainBatch(input, null);
+	}
+	
+	public Tensor[] predictTrainBatch(Tensor input, int[] lengths){
+		Tensor[] res = new Tensor[layers.size() + 1];
+		res[0] = input;
+		for(int i = 1; i < layers.size() + 1; i++){
+			input = forwardPropagateBatch(layers.get(i - 1), input, lengths, true);
+			res[i] = input;
+		}
+		return res;
+	}
+	
+	private Tensor forwardPropagateBatch(Layer l, Tensor input, int[] lengths, boolean training){
+		if(l instanceof RecurrentLayer)
+			return ((RecurrentLayer)l).forwardPropagateBatch(input, lengths, training);
+		else
+			return ((FeedForwardLayer)l).forwardPropagateBatch(input, training);
+	}
+	
+	// whether the samples in a mini batch can be propagated together
+	public boolean canBatch(){
+		for(int i = 0; i < layers.size(); i++){
+			Layer l = layers.get(i);
+			if(!(l instanceof FeedForwardLayer) && !(l instanceof RecurrentLayer && ((RecurrentLayer)l).canBatch()))
+				return false;
+		}
+		return true;
+	}
+	
 	@Override
 	public int[] inputShape(){
 		return inputShape;
@@ -115,36 +171,83 @@ public class SequentialNN implements NeuralNetwork, SupervisedNeuralNetwork{
 				System.out.println();
 			}
 			
-			if(shuffle)
+			boolean batch = batchSize > 1 && canBatch();
+			if(shuffle){
 				Utils.shuffle(input, target);
-			
-			for(int j = 0; j < input.length; j++){
-				Tensor[] res = predictTrain(input[j]);
-				
-				totalLoss += loss.loss(res[res.length - 1], target[j]).reduce(0, (a, b) -> a + b);
 				
-				if(verbose && ((i == epochs - 1 || (epochs < 10 ? 0 : (i % (epochs / 10))) == 0) && (input.length < 10 ? 0 : (j % (input.length / 10))) == 0)){
-					System.out.print("Input: ");
-					System.out.println(input[j]);
-					System.out.print("Output: ");
-					System.out.println(res[res.length - 1]);
-					System.out.print("Target: ");
-					System.out.println(target[j]);
-					System.out.println();
+				// sequences with about the same length are batched together, so there is less padding
+				if(batch && TensorUtils.lengths(input, 0, input.length) != null)
+					Utils.bucketByLength(input, target, batchSize);
+			}
+			
+			// with feed forward layers, and recurrent layers that are not stateful, each mini batch is propagated at once
+			if(batch){
+				for(int j = 0, end; j < input.length; j = end){
+					end = Math.min(j + batchSize, input.length);
+					// batch normalization cannot train on one sample alone, so a last sample on its own goes with the batch before it
+					if(input.length - end == 1 && hasBatchNorm())
+						end = input.length;
+					
+					BufferPool.Scope scope = BufferPool.scope();
+					try{
+						// sequences with different lengths are padded to the longest one
+						int[] lengths = TensorUtils.lengths(input, j, end);
+						int[] targetLengths = TensorUtils.lengths(target, j, end);
+						Tensor[] res = predictTrainBatch(lengths == null ? TensorUtils.batch(input, j, end) : TensorUtils.padBatch(input, j, end), lengths);
+						Tensor batchTarget = targetLengths == null ? TensorUtils.batch(target, j, end) : TensorUtils.padBatch(target, j, end);
+						
+						totalLoss += mask(loss.loss(res[res.length - 1], batchTarget), targetLengths).sum();
+						
+						for(int k = j; k < end; k++){
+							if(verbose && ((i == epochs - 1 || (epochs < 10 ? 0 : (i % (epochs / 10))) == 0) && (input.length < 10 ? 0 : (k % (input.length / 10))) == 0)){
+								System.out.print("Input: ");
+								System.out.println(input[k]);
+								System.out.print("Output: ");
+								System.out.println(res[res.length - 1].get(k - j));
+								System.out.print("Target: ");
+								System.out.println(target[k]);
+								System.out.println();
+							}
+						}
+						
+						// calculate derivative of the loss function and backpropagate
+						Tensor lossDerivative = mask(loss.derivative(res[res.length - 1], batchTarget), targetLengths);
+						backPropagateBatch(res, lossDerivative);
+					}finally{
+						scope.close();
+					}
+					
+					update(optimizer, regularizer);
 				}
-				
-				// calculate derivative of the loss function and backpropagate
-				Tensor lossDerivative = loss.derivative(res[res.length - 1], target[j]);
-				backPropagate(res, lossDerivative);
-				
-				// update weights and biases if batch size is reached
-				if((j + 1) % batchSize == 0 || j == input.length - 1){
-					for(int k = 0; k < layers.size(); k++){
-						if(layers.get(k) instanceof ParamsLayer)
-							((ParamsLayer)layers.get(k)).update(optimizer, regularizer);
+			}else{
+				for(int j = 0; j < input.length; j++){
+					// the tensors of each step have the same sizes every time, so their arrays are recycled
+					BufferPool.Scope scope = BufferPool.scope();
+					try{
+						Tensor[] res = predictTrain(input[j]);
+						
+						totalLoss += loss.loss(res[res.length - 1], target[j]).sum();
+						
+						if(verbose && ((i == epochs - 1 || (epochs < 10 ? 0 : (i % (epochs / 10))) == 0) && (input.length < 10 ? 0 : (j % (input.length / 10))) == 0)){
+							System.out.print("Input: ");
+							System.out.println(input[j]);
+							System.out.print("Output: ");
+							System.out.println(res[res.length - 1]);
+							System.out.print("Target: ");
+							System.out.println(target[j]);
+							System.out.println();
+						}
+						
+						// calculate derivative of the loss function and backpropagate
+						Tensor lossDerivative = loss.derivative(res[res.length - 1], target[j]);
+						backPropagate(res, lossDerivative);
+					}finally{
+						scope.close();
 					}
 					
-					optimizer.update();
+					// update weights and biases if batch size is reached
+					if((j + 1) % batchSize == 0 || j == input.length - 1)
+						update(optimizer, regularizer);
 				}
 			}
 			
@@ -171,6 +274,36 @@ public class SequentialNN implements NeuralNetwork, SupervisedNeuralNetwork{
 		}
 	}
 	
+	public void backPropagateBatch(Tensor[] result, Tensor error){
+		for(int i = layers.size() - 1; i >= 0; i--){
+			if(layers.get(i) instanceof RecurrentLayer)
+				error = ((RecurrentLayer)layers.get(i)).backPropagateBatch(result[i], result[i + 1], error);
+			else
+				error = ((FeedForwardLayer)layers.get(i)).backPropagateBatch(result[i], result[i + 1], error);
+		}
+	}
+	
+	// zeros the rows past the length of each sample, so the padding of the targets is left out of the loss
+	private static Tensor mask(Tensor t, int[] lengths){
+		if(lengths != null){
+			for(int i = 0; i < lengths.length; i++){
+				Tensor sample = t.get(i);
+				sample.slice(lengths[i], sample.shape()[0]).fill(0.0);
+			}
+		}
+		return t;
+	}
+	
+	// update weights and biases with the accumulated gradients
+	private void update(Optimizer optimizer, Regularizer regularizer){
+		for(int k = 0; k < layers.size(); k++){
+			if(layers.get(k) instanceof ParamsLayer)
+				((ParamsLayer)layers.get(k)).update(optimizer, regularizer);
+		}
+		
+		optimizer.update();
+	}
+	
 	// resets the saved states of stateful recurrent layers
 	public void resetStates(){
 		for(int i = 0; i < layers.size(); i++){
@@ -180,6 +313,38 @@ public class SequentialNN implements NeuralNetwork, SupervisedNeuralNetwork{
 		}
 	}
 	
+	// folds each batch normalization layer into the fully connected or convolutional layer before it, and removes it
+	// this should only be done after training, because the outputs are then the same as with the running averages
+	// returns the number of layers that were folded
+	public int foldBatchNorm(){
+		int count = 0;
+		for(int i = layers.size() - 1; i > 0; i--){
+			if(layers.get(i) instanceof BatchNormLayer && ((BatchNormLayer)layers.get(i)).canFoldInto(layers.get(i - 1))){
+				((BatchNormLayer)layers.get(i)).foldInto(layers.get(i - 1));
+				((BatchNormLayer)layers.remove(i)).free();
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private boolean hasBatchNorm(){
+		for(int i = 0; i < layers.size(); i++){
+			if(layers.get(i) instanceof BatchNormLayer)
+				return true;
+		}
+		return false;
+	}
+	
+	// releases the off heap memory of every layer
+	// the network cannot be used after this
+	public void free(){
+		for(int i = 0; i < layers.size(); i++){
+			if(layers.get(i) instanceof ParamsLayer)
+				((ParamsLayer)layers.get(i)).free();
+		}
+	}
+	
 	@Override
 	public String toString(){
 		StringBuilder b = new StringBuilder();
@@ -27,7 +27,13 @@ public class AdagradOptimizer implements Optimizer{
 	@Override
 	public Tensor optimize(Tensor grads, Tensor[] params){
 		// parameter: sum of squared gradients
-		params[0] = params[0].add(grads.mul(grads));
-		return grads.mul(learnRate).div(params[0].map(x -> Math.sqrt(x)).add(epsilon));
+		params[0] = params[0].lazy().add(grads.lazy().mul(grads)).eval();
+		return grads.lazy().mul(learnRate).div(params[0].lazy().map(x -> Math.sqrt(x)).add(epsilon)).eval();
+	}
+	
+	@Override
+	public Tensor optimizeInPlace(Tensor grads, Tensor[] params){
+		params[0].fma(grads, grads);
+		return Tensor.map(grads, params[0], (g, s) -> g * learnRate / (Math.sqrt(s) + epsilon), grads);
 	}
 }
@@ -53,9 +53,18 @@ public class AdamOptimizer implements Optimizer{
 	public Tensor optimize(Tensor grads, Tensor[] params){
 		// parameter 1: momentum
 		// parameter 2: velocity
-		params[0] = params[0].mul(beta1).add(grads.mul(1.0 - beta1));
-		params[1] = params[1].mul(beta2).add(grads.mul(grads).mul(1.0 - beta2));
-		return params[0].div(1.0 - currBeta1).div(
-				params[1].div(1.0 - currBeta2).map(x -> Math.sqrt(x)).add(epsilon)).mul(learnRate);
+		// each chain is fused into a single pass
+		params[0] = params[0].lazy().mul(beta1).add(grads.lazy().mul(1.0 - beta1)).eval();
+		params[1] = params[1].lazy().mul(beta2).add(grads.lazy().mul(grads).mul(1.0 - beta2)).eval();
+		return params[0].lazy().div(1.0 - currBeta1).div(
+				params[1].lazy().div(1.0 - currBeta2).map(x -> Math.sqrt(x)).add(epsilon)).mul(learnRate).eval();
+	}
+	
+	@Override
+	public Tensor optimizeInPlace(Tensor grads, Tensor[] params){
+		Tensor.map(params[0], grads, (m, g) -> m * beta1 + g * (1.0 - beta1), params[0]);
+		Tensor.map(params[1], grads, (v, g) -> v * beta2 + g * g * (1.0 - beta2), params[1]);
+		return Tensor.map(params[0], params[1], (m, v) ->
+				m / (1.0 - currBeta1) / (Math.sqrt(v / (1.0 - currBeta2)) + epsilon) * learnRate, grads);
 	}
 }
@@ -35,7 +35,14 @@ public class MomentumOptimizer implements Optimizer{
 	public Tensor optimize(Tensor grads, Tensor[] params){
 		// parameter: velocity
 		Tensor prev = params[0];
-		params[0] = params[0].mul(mu).sub(grads.mul(learnRate));
-		return prev.mul(mu).sub(params[0].mul(1.0 + mu)); // is negated
+		params[0] = params[0].lazy().mul(mu).sub(grads.lazy().mul(learnRate)).eval();
+		return prev.lazy().mul(mu).sub(params[0].lazy().mul(1.0 + mu)).eval(); // is negated
+	}
+	
+	@Override
+	public Tensor optimizeInPlace(Tensor grads, Tensor[] params){
+		// mu * prev = velocity + learnRate * grads, so the previous velocity is not needed
+		params[0].muli(mu).axpy(-learnRate, grads);
+		return grads.muli(learnRate).axpy(-mu, params[0]); // is negated
 	}
 }
@@ -34,7 +34,13 @@ public class NAGOptimizer implements Optimizer{
 	@Override
 	public Tensor optimize(Tensor grads, Tensor[] params){
 		// parameter: velocity
-		params[0] = params[0].mul(mu).sub(grads.mul(learnRate));
+		params[0] = params[0].lazy().mul(mu).sub(grads.lazy().mul(learnRate)).eval();
 		return params[0].mul(-1.0); // is negated
 	}
+	
+	@Override
+	public Tensor optimizeInPlace(Tensor grads, Tensor[] params){
+		params[0].muli(mu).axpy(-learnRate, grads);
+		return grads.set(params[0]).muli(-1.0); // is negated
+	}
 }
@@ -11,4 +11,36 @@ public interface Optimizer{
 	
 	// some optimizers might modify the extra params!
 	public Tensor optimize(Tensor grads, Tensor[] params);
+	
+	// same as optimize, but the update is written into grads instead of a new tensor
+	// the extra params must also be modified in place
+	public default Tensor optimizeInPlace(Tensor grads, Tensor[] params){
+		return grads.set(optimize(grads, params));
+	}
+	
+	// same as optimizeInPlace, but only for some rows of the weights, like the rows of an embedding table that were used
+	// each row of grads goes with the row of the extra params at the same index in rows
+	// the other rows of the extra params are not changed at all, so the state of optimizers like Adam is updated lazily
+	public default Tensor optimizeRowsInPlace(Tensor grads, Tensor[] params, int[] rows){
+		Tensor[] views = new Tensor[params.length];
+		Tensor[] rowParams = new Tensor[params.length];
+		for(int i = 0; i < rows.length; i++){
+			for(int j = 0; j < params.length; j++){
+				views[j] = params[j].get(rows[i]);
+				rowParams[j] = views[j];
+			}
+			
+			Tensor g = grads.get(i);
+			Tensor res = optimizeInPlace(g, rowParams);
+			if(res != g)
+				g.set(res);
+			
+			// optimizers that replace the extra params instead of changing them in place
+			for(int j = 0; j < params.length; j++){
+				if(rowParams[j] != views[j])
+					views[j].set(rowParams[j]);
+			}
+		}
+		return grads;
+	}
 }
@@ -29,7 +29,13 @@ public class RMSPropOptimizer implements Optimizer{
 	@Override
 	public Tensor optimize(Tensor grads, Tensor[] params){
 		// parameter: exponential average of squared gradients
-		params[0] = params[0].mul(mu).add((grads.mul(grads)).mul(1.0-mu));
-		return grads.mul(learnRate).div(params[0].map(x -> Math.sqrt(x)).add(epsilon));
+		params[0] = params[0].lazy().mul(mu).add(grads.lazy().mul(grads).mul(1.0 - mu)).eval();
+		return grads.lazy().mul(learnRate).div(params[0].lazy().map(x -> Math.sqrt(x)).add(epsilon)).eval();
+	}
+	
+	@Override
+	public Tensor optimizeInPlace(Tensor grads, Tensor[] params){
+		Tensor.map(params[0], grads, (s, g) -> s * mu + g * g * (1.0 - mu), params[0]);
+		return Tensor.map(grads, params[0], (g, s) -> g * learnRate / (Math.sqrt(s) + epsilon), grads);
 	}
 }
@@ -27,4 +27,9 @@ public class SGDOptimizer implements Optimizer{
 	public Tensor optimize(Tensor grads, Tensor[] params){
 		return grads.mul(learnRate);
 	}
+	
+	@Override
+	public Tensor optimizeInPlace(Tensor grads, Tensor[] params){
+		return grads.muli(learnRate);
+	}
 }
@@ -20,4 +20,9 @@ public class ElasticNetRegularizer implements Regularizer{
 	public Tensor derivative(Tensor w){
 		return w.map(x -> lambdaL1 * Math.signum(x) + lambdaL2 * x);
 	}
+	
+	@Override
+	public void addDerivative(Tensor w, Tensor grads){
+		Tensor.map(grads, w, (g, x) -> g + lambdaL1 * Math.signum(x) + lambdaL2 * x, grads);
+	}
 }
@@ -17,4 +17,9 @@ public class L1Regularizer implements Regularizer{
 	public Tensor derivative(Tensor w){
 		return w.map(x -> lambda * Math.signum(x));
 	}
+	
+	@Override
+	public void addDerivative(Tensor w, Tensor grads){
+		Tensor.map(grads, w, (g, x) -> g + lambda * Math.signum(x), grads);
+	}
 }
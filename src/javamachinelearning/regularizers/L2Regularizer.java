@@ -17,4 +17,9 @@ public class L2Regularizer implements Regularizer{
 	public Tensor derivative(Tensor w){
 		return w.mul(lambda);
 	}
+	
+	@Override
+	public void addDerivative(Tensor w, Tensor grads){
+		grads.axpy(lambda, w);
+	}
 }
@@ -5,4 +5,9 @@ import javamachinelearning.utils.Tensor;
 public interface Regularizer{
 	// no need to actually compute the regularization
 	public Tensor derivative(Tensor w);
+	
+	// adds the derivative to the gradients without allocating a new tensor
+	public default void addDerivative(Tensor w, Tensor grads){
+		grads.addi(derivative(w));
+	}
 }
@@ -12,21 +12,26 @@ public interface Activation{
 			return new Tensor(t.shape(), 1.0);
 		}
 
+		@Override
+		public Tensor backPropagate(Tensor output, Tensor error){
+			return error;
+		}
+
 		@Override
 		public String toString(){
 			return "Linear";
 		}
 	};
 	
-	public static final Activation sigmoid = new Activation(){
+	public static final Activation sigmoid = new Elementwise(){
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> 1.0 / (1.0 + Math.exp(-x)));
+		public double apply(double x){
+			return 1.0 / (1.0 + Math.exp(-x));
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> x * (1.0 - x));
+		public double derivative(double x){
+			return x * (1.0 - x);
 		}
 
 		@Override
@@ -36,15 +41,15 @@ public interface Activation{
 	};
 	
 	// linear approximation of sigmoid
-	public static final Activation hardSigmoid = new Activation(){
+	public static final Activation hardSigmoid = new Elementwise(){
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> Math.min(Math.max(x * 0.2 + 0.5, 0.0), 1.0));
+		public double apply(double x){
+			return Math.min(Math.max(x * 0.2 + 0.5, 0.0), 1.0);
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> x > 0.0 && x < 1.0 ? 0.2 : 0.0);
+		public double derivative(double x){
+			return x > 0.0 && x < 1.0 ? 0.2 : 0.0;
 		}
 
 		@Override
@@ -53,15 +58,15 @@ public interface Activation{
 		}
 	};
 	
-	public static final Activation tanh = new Activation(){
+	public static final Activation tanh = new Elementwise(){
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> 2.0 / (1.0 + Math.exp(-2.0 * x)) - 1.0);
+		public double apply(double x){
+			return 2.0 / (1.0 + Math.exp(-2.0 * x)) - 1.0;
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> 1.0 - x * x);
+		public double derivative(double x){
+			return 1.0 - x * x;
 		}
 
 		@Override
@@ -70,15 +75,15 @@ public interface Activation{
 		}
 	};
 	
-	public static final Activation relu = new Activation(){
+	public static final Activation relu = new Elementwise(){
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> Math.max(0.0, x));
+		public double apply(double x){
+			return Math.max(0.0, x);
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> x > 0.0 ? 1.0 : 0.0);
+		public double derivative(double x){
+			return x > 0.0 ? 1.0 : 0.0;
 		}
 
 		@Override
@@ -87,16 +92,16 @@ public interface Activation{
 		}
 	};
 	
-	public static final Activation leakyRelu = new Activation(){
+	public static final Activation leakyRelu = new Elementwise(){
 		@Override
-		public Tensor activate(Tensor t){
+		public double apply(double x){
 			// note: hard coded leaky value!
-			return t.map(x -> x > 0.0 ? x : x * 0.01);
+			return x > 0.0 ? x : x * 0.01;
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> x > 0.0 ? 1.0 : 0.01);
+		public double derivative(double x){
+			return x > 0.0 ? 1.0 : 0.01;
 		}
 
 		@Override
@@ -105,15 +110,15 @@ public interface Activation{
 		}
 	};
 	
-	public static final Activation relu6 = new Activation(){
+	public static final Activation relu6 = new Elementwise(){
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> Math.min(Math.max(0.0, x), 6.0));
+		public double apply(double x){
+			return Math.min(Math.max(0.0, x), 6.0);
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> (x > 0.0) && (x < 6.0) ? 1.0 : 0.0);
+		public double derivative(double x){
+			return (x > 0.0) && (x < 6.0) ? 1.0 : 0.0;
 		}
 
 		@Override
@@ -122,15 +127,15 @@ public interface Activation{
 		}
 	};
   
-	public static final Activation relu3 = new Activation(){
+	public static final Activation relu3 = new Elementwise(){
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> Math.min(Math.max(0.0, x), 3.0));
+		public double apply(double x){
+			return Math.min(Math.max(0.0, x), 3.0);
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> (x > 0.0) && (x < 3.0) ? 1.0 : 0.0);
+		public double derivative(double x){
+			return (x > 0.0) && (x < 3.0) ? 1.0 : 0.0;
 		}
 
 		@Override
@@ -139,16 +144,16 @@ public interface Activation{
 		}
 	};
   
-	public static final Activation elu = new Activation(){
+	public static final Activation elu = new Elementwise(){
 		double alpha = 1.0;
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> Math.max(alpha * (Math.exp(x)-1.0), x));
+		public double apply(double x){
+			return Math.max(alpha * (Math.exp(x)-1.0), x);
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> x > 0 ? 1.0 : alpha * Math.exp(x));
+		public double derivative(double x){
+			return x > 0 ? 1.0 : alpha * Math.exp(x);
 		}
 
 		@Override
@@ -157,17 +162,17 @@ public interface Activation{
 		}
 	};
   
-	public static final Activation selu = new Activation(){
+	public static final Activation selu = new Elementwise(){
 		double alpha = 1.6732632423543772848170429916717;
 		double scale = 1.0507009873554804934193349852946;
 		@Override
-		public Tensor activate(Tensor t){
-			return t.map(x -> Math.max(scale * alpha * (Math.exp(x)-1.0), x));
+		public double apply(double x){
+			return Math.max(scale * alpha * (Math.exp(x)-1.0), x);
 		}
 
 		@Override
-		public Tensor derivative(Tensor t){
-			return t.map(x -> x > 0 ? 1.0 : scale * alpha * Math.exp(x));
+		public double derivative(double x){
+			return x > 0 ? 1.0 : scale * alpha * Math.exp(x);
 		}
 
 		@Override
@@ -182,9 +187,9 @@ public interface Activation{
 			Tensor max = t.reduceLast(Double.MIN_VALUE, (a, b) -> Math.max(a, b));
 			max = max.dupLast(t.shape()[t.shape().length - 1]);
 
-			Tensor exp = t.sub(max).map(x -> Math.exp(x));
+			Tensor exp = t.lazy().sub(max).map(x -> Math.exp(x)).eval();
 
-			Tensor sum = exp.reduceLast(0, (a, b) -> a + b);
+			Tensor sum = exp.sumLast();
 			sum = sum.dupLast(t.shape()[t.shape().length - 1]);
 
 			return exp.div(sum);
@@ -205,4 +210,63 @@ public interface Activation{
 	public Tensor activate(Tensor t);
 	// derivatives are calculated in terms of the activated output
 	public Tensor derivative(Tensor t);
+	
+	// activate(t + bias), where the bias is added to each slice of the last dimension
+	// this is used by layers that apply the activation to their own outputs, so t can be changed
+	// the bias can be null
+	public default Tensor activateBias(Tensor t, Tensor bias){
+		if(bias != null)
+			t.addiBroadcast(bias);
+		return activate(t);
+	}
+	
+	// error * derivative(output), which is the gradient before the activation
+	public default Tensor backPropagate(Tensor output, Tensor error){
+		return derivative(output).muli(error);
+	}
+	
+	// activations that apply a function to each value separately
+	// they can be fused into the loops that compute the outputs and gradients of other layers
+	public static abstract class Elementwise implements Activation{
+		public abstract double apply(double x);
+		// in terms of the activated output
+		public abstract double derivative(double x);
+		
+		@Override
+		public Tensor activate(Tensor t){
+			return t.map(this::apply);
+		}
+		
+		@Override
+		public Tensor derivative(Tensor t){
+			return t.map(this::derivative);
+		}
+		
+		// the bias is added and the activation is applied in the same pass, in place
+		@Override
+		public Tensor activateBias(Tensor t, Tensor bias){
+			if(bias == null)
+				return t.mapInPlace(this::apply);
+			
+			int n = bias.size();
+			double[] d = t.doubles();
+			if(d != null){
+				int off = t.offset();
+				for(int i = 0; i < t.size(); i++){
+					d[off + i] = apply(d[off + i] + bias.flatGet(i % n));
+				}
+			}else{
+				for(int i = 0; i < t.size(); i++){
+					t.flatSet(i, apply(t.flatGet(i) + bias.flatGet(i % n)));
+				}
+			}
+			return t;
+		}
+		
+		// the derivative is multiplied in the same pass, without another tensor
+		@Override
+		public Tensor backPropagate(Tensor output, Tensor error){
+			return Tensor.map(output, error, (y, e) -> derivative(y) * e, error.zerosLike());
+		}
+	}
 }
@@ -0,0 +1,167 @@
+package javamachinelearning.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// recycles the arrays of tensors that are made and thrown away with the same sizes over and over,
+// like the outputs and gradients of every layer in each training step
+// while a scope is open, new heap tensors take their arrays from the pool, and they are returned when the scope is closed
+// tensors can also be returned early with free()
+// each thread has its own pool, so nothing is locked
+public final class BufferPool{
+	private static final ThreadLocal<BufferPool> pools = ThreadLocal.withInitial(BufferPool::new);
+	
+	// max number of bytes that each thread keeps in its pool
+	private static volatile long maxBytes = 256L * 1024 * 1024;
+	
+	// unused arrays, bucketed by their exact length
+	private final HashMap<Integer, ArrayDeque<double[]>> doubles = new HashMap<>();
+	private final HashMap<Integer, ArrayDeque<float[]>> floats = new HashMap<>();
+	private long bytes;
+	
+	// arrays that are currently handed out, so an array cannot be returned twice
+	private final Set<Object> taken = Collections.newSetFromMap(new IdentityHashMap<>());
+	// open scopes, the last one is the innermost
+	private final ArrayList<Scope> scopes = new ArrayList<>();
+	
+	private BufferPool(){}
+	
+	// opens a scope on the current thread
+	// should be closed in a finally block, so it is closed even if something is thrown:
+	// BufferPool.Scope s = BufferPool.scope(); try{ ... }finally{ s.close(); }
+	public static Scope scope(){
+		BufferPool pool = pools.get();
+		Scope s = new Scope(pool);
+		pool.scopes.add(s);
+		return s;
+	}
+	
+	// the pool of the current thread if a scope is open, otherwise null
+	static BufferPool active(){
+		BufferPool pool = pools.get();
+		return pool.scopes.isEmpty() ? null : pool;
+	}
+	
+	public static void setMaxBytes(long max){
+		maxBytes = max;
+	}
+	
+	// drops every unused array in the pool of the current thread
+	public static void clear(){
+		BufferPool pool = pools.get();
+		pool.doubles.clear();
+		pool.floats.clear();
+		pool.bytes = 0;
+	}
+	
+	// stops the storage of a tensor from being returned when the scope is closed
+	// for tensors that are made inside a scope but need to outlive it
+	public static Tensor keep(Tensor t){
+		Storage s = t.storage();
+		Object arr = s.doubles() != null ? s.doubles() : s.floats();
+		if(arr != null)
+			pools.get().taken.remove(arr);
+		return t;
+	}
+	
+	// runs r when the innermost scope of the current thread is closed, or right away if no scope is open
+	// for caches that hold tensors from the scope, so they are dropped with the scope
+	public static void onClose(Runnable r){
+		BufferPool pool = pools.get();
+		if(pool.scopes.isEmpty())
+			r.run();
+		else
+			pool.scopes.get(pool.scopes.size() - 1).closers.add(r);
+	}
+	
+	// returns an array to the pool of the current thread, if it was taken from that pool
+	static void release(Object arr){
+		BufferPool pool = pools.get();
+		if(!pool.taken.remove(arr))
+			return;
+		
+		if(arr instanceof double[]){
+			double[] d = (double[])arr;
+			if(pool.bytes + (long)d.length * Double.BYTES <= maxBytes){
+				pool.doubles.computeIfAbsent(d.length, k -> new ArrayDeque<>()).push(d);
+				pool.bytes += (long)d.length * Double.BYTES;
+			}
+		}else{
+			float[] f = (float[])arr;
+			if(pool.bytes + (long)f.length * Float.BYTES <= maxBytes){
+				pool.floats.computeIfAbsent(f.length, k -> new ArrayDeque<>()).push(f);
+				pool.bytes += (long)f.length * Float.BYTES;
+			}
+		}
+	}
+	
+	// zeroed array from the pool, or a new one if there are none of that length
+	double[] doubles(int length){
+		ArrayDeque<double[]> q = doubles.get(length);
+		double[] res;
+		if(q == null || q.isEmpty()){
+			res = new double[length];
+		}else{
+			res = q.pop();
+			bytes -= (long)length * Double.BYTES;
+			Arrays.fill(res, 0.0);
+		}
+		take(res);
+		return res;
+	}
+	
+	float[] floats(int length){
+		ArrayDeque<float[]> q = floats.get(length);
+		float[] res;
+		if(q == null || q.isEmpty()){
+			res = new float[length];
+		}else{
+			res = q.pop();
+			bytes -= (long)length * Float.BYTES;
+			Arrays.fill(res, 0.0f);
+		}
+		take(res);
+		return res;
+	}
+	
+	private void take(Object arr){
+		taken.add(arr);
+		scopes.get(scopes.size() - 1).arrays.add(arr);
+	}
+	
+	public static class Scope implements AutoCloseable{
+		private final BufferPool pool;
+		private final ArrayList<Object> arrays = new ArrayList<>();
+		private final ArrayList<Runnable> closers = new ArrayList<>();
+		
+		private Scope(BufferPool pool){
+			this.pool = pool;
+		}
+		
+		// returns every array that was taken in this scope and not kept
+		// tensors that were made in this scope must not be used after this
+		@Override
+		public void close(){
+			// also closes inner scopes that were not closed
+			int idx = pool.scopes.lastIndexOf(this);
+			if(idx < 0)
+				return;
+			while(pool.scopes.size() > idx){
+				Scope s = pool.scopes.remove(pool.scopes.size() - 1);
+				for(int i = 0; i < s.arrays.size(); i++){
+					release(s.arrays.get(i));
+				}
+				s.arrays.clear();
+				for(int i = 0; i < s.closers.size(); i++){
+					s.closers.get(i).run();
+				}
+				s.closers.clear();
+			}
+		}
+	}
+}
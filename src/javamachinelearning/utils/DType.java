@@ -0,0 +1,31 @@
+package javamachinelearning.utils;
+
+// the type of the numbers that a tensor stores
+public enum DType{
+	FLOAT32(Float.BYTES), FLOAT64(Double.BYTES);
+	
+	private final int bytes;
+	
+	private DType(int bytes){
+		this.bytes = bytes;
+	}
+	
+	public int bytes(){
+		return bytes;
+	}
+	
+	// allocates zeroed storage of this type on the heap
+	// the array is taken from the buffer pool of this thread if a scope is open
+	public Storage allocate(int length){
+		BufferPool pool = BufferPool.active();
+		if(this == FLOAT32)
+			return new FloatStorage(pool == null ? new float[length] : pool.floats(length));
+		else
+			return new DoubleStorage(pool == null ? new double[length] : pool.doubles(length));
+	}
+	
+	// allocates zeroed storage of this type outside of the heap
+	public Storage allocateOffHeap(int length){
+		return new OffHeapStorage(this, length);
+	}
+}
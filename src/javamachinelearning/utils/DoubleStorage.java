@@ -0,0 +1,50 @@
+package javamachinelearning.utils;
+
+public class DoubleStorage extends Storage{
+	private final double[] data;
+	
+	public DoubleStorage(double[] data){
+		this.data = data;
+	}
+	
+	@Override
+	public DType dtype(){
+		return DType.FLOAT64;
+	}
+	
+	@Override
+	public int length(){
+		return data.length;
+	}
+	
+	@Override
+	public double get(int idx){
+		return data[idx];
+	}
+	
+	@Override
+	public void set(int idx, double val){
+		data[idx] = val;
+	}
+	
+	@Override
+	public void get(int idx, double[] dst, int off, int len){
+		System.arraycopy(data, idx, dst, off, len);
+	}
+	
+	@Override
+	public void set(int idx, double[] src, int off, int len){
+		System.arraycopy(src, off, data, idx, len);
+	}
+	
+	@Override
+	public double[] doubles(){
+		return data;
+	}
+	
+	// returns the array to the buffer pool if it came from there
+	@Override
+	public void free(){
+		BufferPool.release(data);
+	}
+}
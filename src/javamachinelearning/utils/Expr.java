@@ -0,0 +1,267 @@
+package javamachinelearning.utils;
+
+import javamachinelearning.utils.Tensor.Function;
+import javamachinelearning.utils.Tensor.Function2;
+
+// lazily evaluated elementwise expression
+// chained operations build a tree, which is evaluated in one pass over the data when it is materialized
+// this avoids making a new tensor and a full pass for every operation in the chain
+// the tensors are read when the expression is evaluated, not when it is built
+public abstract class Expr{
+	// number of elements that are evaluated at a time
+	// small enough that the buffers of every node stay in the cache
+	private static final int BLOCK = 256;
+	
+	private static final int ADD = 0;
+	private static final int SUB = 1;
+	private static final int MUL = 2;
+	private static final int DIV = 3;
+	
+	// the result has the same shape and type as this tensor
+	private final Tensor like;
+	
+	private Expr(Tensor like){
+		this.like = like;
+	}
+	
+	public static Expr of(Tensor t){
+		return new Leaf(t);
+	}
+	
+	public int size(){
+		return like.size();
+	}
+	
+	public Expr add(Expr o){
+		return new Binary(ADD, this, o);
+	}
+	
+	public Expr add(Tensor o){
+		return add(of(o));
+	}
+	
+	public Expr add(double d){
+		return new Scalar(ADD, this, d);
+	}
+	
+	public Expr sub(Expr o){
+		return new Binary(SUB, this, o);
+	}
+	
+	public Expr sub(Tensor o){
+		return sub(of(o));
+	}
+	
+	public Expr sub(double d){
+		return new Scalar(ADD, this, -d);
+	}
+	
+	public Expr mul(Expr o){
+		return new Binary(MUL, this, o);
+	}
+	
+	public Expr mul(Tensor o){
+		return mul(of(o));
+	}
+	
+	public Expr mul(double d){
+		return new Scalar(MUL, this, d);
+	}
+	
+	public Expr div(Expr o){
+		return new Binary(DIV, this, o);
+	}
+	
+	public Expr div(Tensor o){
+		return div(of(o));
+	}
+	
+	public Expr div(double d){
+		return new Scalar(DIV, this, d);
+	}
+	
+	public Expr map(Function f){
+		return new Map(this, f);
+	}
+	
+	public Expr map(Expr o, Function2 f){
+		return new Map2(this, o, f);
+	}
+	
+	public Expr map(Tensor o, Function2 f){
+		return map(of(o), f);
+	}
+	
+	// materialize the expression into a new tensor
+	public Tensor eval(){
+		return eval(new Tensor(like.shape(), like.dtype(), false));
+	}
+	
+	// materialize the expression into out, which can be one of the tensors in the expression
+	public Tensor eval(Tensor out){
+		if(out.size() != size())
+			throw new IllegalArgumentException("Bad sizes for elementwise operation!");
+		
+		double[] buf = new double[BLOCK];
+		double[] d = out.doubles();
+		float[] f = out.floats();
+		int n = size();
+		
+		for(int start = 0; start < n; start += BLOCK){
+			int len = Math.min(BLOCK, n - start);
+			eval(start, len, buf);
+			
+			if(d != null){
+				System.arraycopy(buf, 0, d, out.offset() + start, len);
+			}else if(f != null){
+				int idx = out.offset() + start;
+				for(int i = 0; i < len; i++){
+					f[idx + i] = (float)buf[i];
+				}
+			}else{
+				for(int i = 0; i < len; i++){
+					out.flatSet(start + i, buf[i]);
+				}
+			}
+		}
+		return out;
+	}
+	
+	// evaluate the elements from start to start + len into res
+	abstract void eval(int start, int len, double[] res);
+	
+	private static class Leaf extends Expr{
+		private final Tensor t;
+		
+		Leaf(Tensor t){
+			super(t);
+			this.t = t;
+		}
+		
+		@Override
+		void eval(int start, int len, double[] res){
+			double[] d = t.doubles();
+			float[] f = t.floats();
+			
+			if(d != null){
+				System.arraycopy(d, t.offset() + start, res, 0, len);
+			}else if(f != null){
+				int idx = t.offset() + start;
+				for(int i = 0; i < len; i++){
+					res[i] = f[idx + i];
+				}
+			}else{
+				for(int i = 0; i < len; i++){
+					res[i] = t.flatGet(start + i);
+				}
+			}
+		}
+	}
+	
+	private static class Binary extends Expr{
+		private final int op;
+		private final Expr a;
+		private final Expr b;
+		private double[] buf;
+		
+		Binary(int op, Expr a, Expr b){
+			super(a.like);
+			if(a.size() != b.size())
+				throw new IllegalArgumentException("Bad sizes for elementwise operation!");
+			
+			this.op = op;
+			this.a = a;
+			this.b = b;
+		}
+		
+		@Override
+		void eval(int start, int len, double[] res){
+			if(buf == null)
+				buf = new double[BLOCK];
+			
+			a.eval(start, len, res);
+			b.eval(start, len, buf);
+			
+			switch(op){
+				case ADD: for(int i = 0; i < len; i++) res[i] += buf[i]; break;
+				case SUB: for(int i = 0; i < len; i++) res[i] -= buf[i]; break;
+				case MUL: for(int i = 0; i < len; i++) res[i] *= buf[i]; break;
+				case DIV: for(int i = 0; i < len; i++) res[i] /= buf[i]; break;
+			}
+		}
+	}
+	
+	private static class Scalar extends Expr{
+		private final int op;
+		private final Expr a;
+		private final double d;
+		
+		Scalar(int op, Expr a, double d){
+			super(a.like);
+			this.op = op;
+			this.a = a;
+			this.d = d;
+		}
+		
+		@Override
+		void eval(int start, int len, double[] res){
+			a.eval(start, len, res);
+			
+			switch(op){
+				case ADD: for(int i = 0; i < len; i++) res[i] += d; break;
+				case MUL: for(int i = 0; i < len; i++) res[i] *= d; break;
+				case DIV: for(int i = 0; i < len; i++) res[i] /= d; break;
+			}
+		}
+	}
+	
+	private static class Map extends Expr{
+		private final Expr a;
+		private final Function f;
+		
+		Map(Expr a, Function f){
+			super(a.like);
+			this.a = a;
+			this.f = f;
+		}
+		
+		@Override
+		void eval(int start, int len, double[] res){
+			a.eval(start, len, res);
+			
+			for(int i = 0; i < len; i++){
+				res[i] = f.apply(res[i]);
+			}
+		}
+	}
+	
+	private static class Map2 extends Expr{
+		private final Expr a;
+		private final Expr b;
+		private final Function2 f;
+		private double[] buf;
+		
+		Map2(Expr a, Expr b, Function2 f){
+			super(a.like);
+			if(a.size() != b.size())
+				throw new IllegalArgumentException("Bad sizes for elementwise operation!");
+			
+			this.a = a;
+			this.b = b;
+			this.f = f;
+		}
+		
+		@Override
+		void eval(int start, int len, double[] res){
+			if(buf == null)
+				buf = new double[BLOCK];
+			
+			a.eval(start, len, res);
+			b.eval(start, len, buf);
+			
+			for(int i = 0; i < len; i++){
+				res[i] = f.apply(res[i], buf[i]);
+			}
+		}
+	}
+}
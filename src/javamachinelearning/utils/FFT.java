@@ -0,0 +1,134 @@
+package javamachinelearning.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// fast Fourier transforms of complex arrays, with the real and imaginary parts in separate arrays
+// the transforms are done in place, and the lengths must be powers of 2
+public class FFT{
+	// cos and sin of the angles of the twiddle factors for each length, 2 * pi * k / n for k < n / 2
+	private static final ConcurrentHashMap<Integer, double[][]> twiddles = new ConcurrentHashMap<>();
+	
+	// the smallest power of 2 that is at least n
+	public static int size(int n){
+		return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+	}
+	
+	// 1D transform of the n values from off, with the given distance between them
+	// the inverse transform is scaled by 1 / n, so it undoes the forwards transform
+	public static void fft(double[] re, double[] im, int off, int stride, int n, boolean inverse){
+		if(Integer.bitCount(n) != 1)
+			throw new IllegalArgumentException("Bad sizes for FFT!");
+		
+		// reorder the values by the bit reversed indexes
+		for(int i = 1, j = 0; i < n; i++){
+			int bit = n >> 1;
+			for(; (j & bit) != 0; bit >>= 1){
+				j ^= bit;
+			}
+			j ^= bit;
+			
+			if(i < j){
+				swap(re, off + i * stride, off + j * stride);
+				swap(im, off + i * stride, off + j * stride);
+			}
+		}
+		
+		// butterflies, with the lengths doubling each pass
+		double[][] tw = twiddles(n);
+		for(int len = 2; len <= n; len <<= 1){
+			int step = n / len;
+			for(int k = 0; k < len / 2; k++){
+				double wr = tw[0][k * step];
+				double wi = inverse ? tw[1][k * step] : -tw[1][k * step];
+				
+				for(int i = k; i < n; i += len){
+					int u = off + i * stride;
+					int v = off + (i + len / 2) * stride;
+					double tr = re[v] * wr - im[v] * wi;
+					double ti = re[v] * wi + im[v] * wr;
+					re[v] = re[u] - tr;
+					im[v] = im[u] - ti;
+					re[u] += tr;
+					im[u] += ti;
+				}
+			}
+		}
+		
+		if(inverse){
+			for(int i = 0; i < n; i++){
+				re[off + i * stride] /= n;
+				im[off + i * stride] /= n;
+			}
+		}
+	}
+	
+	// 2D transform of a rows x cols matrix in row major format, from off
+	public static void fft2(double[] re, double[] im, int off, int rows, int cols, boolean inverse){
+		for(int i = 0; i < rows; i++){
+			fft(re, im, off + i * cols, 1, cols, inverse);
+		}
+		
+		// the columns are transformed together, a whole row at a time, so the memory is read in order
+		for(int i = 1, j = 0; i < rows; i++){
+			int bit = rows >> 1;
+			for(; (j & bit) != 0; bit >>= 1){
+				j ^= bit;
+			}
+			j ^= bit;
+			
+			if(i < j){
+				for(int c = 0; c < cols; c++){
+					swap(re, off + i * cols + c, off + j * cols + c);
+					swap(im, off + i * cols + c, off + j * cols + c);
+				}
+			}
+		}
+		
+		double[][] tw = twiddles(rows);
+		for(int len = 2; len <= rows; len <<= 1){
+			int step = rows / len;
+			for(int k = 0; k < len / 2; k++){
+				double wr = tw[0][k * step];
+				double wi = inverse ? tw[1][k * step] : -tw[1][k * step];
+				
+				for(int i = k; i < rows; i += len){
+					int u = off + i * cols;
+					int v = off + (i + len / 2) * cols;
+					for(int c = 0; c < cols; c++){
+						double tr = re[v + c] * wr - im[v + c] * wi;
+						double ti = re[v + c] * wi + im[v + c] * wr;
+						re[v + c] = re[u + c] - tr;
+						im[v + c] = im[u + c] - ti;
+						re[u + c] += tr;
+						im[u + c] += ti;
+					}
+				}
+			}
+		}
+		
+		if(inverse){
+			for(int i = 0; i < rows * cols; i++){
+				re[off + i] /= rows;
+				im[off + i] /= rows;
+			}
+		}
+	}
+	
+	// twiddle factors are computed directly and cached, because recurrences lose accuracy
+	private static double[][] twiddles(int n){
+		return twiddles.computeIfAbsent(n, k -> {
+			double[][] res = new double[2][k / 2];
+			for(int i = 0; i < k / 2; i++){
+				res[0][i] = Math.cos(2.0 * Math.PI * i / k);
+				res[1][i] = Math.sin(2.0 * Math.PI * i / k);
+			}
+			return res;
+		});
+	}
+	
+	private static void swap(double[] arr, int i, int j){
+		double temp = arr[i];
+		arr[i] = arr[j];
+		arr[j] = temp;
+	}
+}
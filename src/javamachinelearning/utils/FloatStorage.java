@@ -0,0 +1,54 @@
+package javamachinelearning.utils;
+
+public class FloatStorage extends Storage{
+	private final float[] data;
+	
+	public FloatStorage(float[] data){
+		this.data = data;
+	}
+	
+	@Override
+	public DType dtype(){
+		return DType.FLOAT32;
+	}
+	
+	@Override
+	public int length(){
+		return data.length;
+	}
+	
+	@Override
+	public double get(int idx){
+		return data[idx];
+	}
+	
+	@Override
+	public void set(int idx, double val){
+		data[idx] = (float)val;
+	}
+	
+	@Override
+	public void get(int idx, double[] dst, int off, int len){
+		for(int i = 0; i < len; i++){
+			dst[off + i] = data[idx + i];
+		}
+	}
+	
+	@Override
+	public void set(int idx, double[] src, int off, int len){
+		for(int i = 0; i < len; i++){
+			data[idx + i] = (float)src[off + i];
+		}
+	}
+	
+	@Override
+	public float[] floats(){
+		return data;
+	}
+	
+	// returns the array to the buffer pool if it came from there
+	@Override
+	public void free(){
+		BufferPool.release(data);
+	}
+}
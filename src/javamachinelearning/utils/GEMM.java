@@ -0,0 +1,607 @@
+package javamachinelearning.utils;
+
+import java.util.concurrent.RecursiveAction;
+
+// general matrix multiply: C = op(A) * op(B), or C += op(A) * op(B) when accumulating
+// all matrices are in row major format, with the given offsets and leading dimensions (row lengths)
+// op(X) is either X or the transpose of X, so transposes never have to be copied
+public class GEMM{
+	// size of the register tile computed by the micro kernel
+	private static final int MR = 4;
+	private static final int NR = 4;
+	
+	// cache blocking sizes
+	// a KC x NR sliver of B stays in L1, a MC x KC panel of A stays in L2
+	private static final int MC = 64;
+	private static final int KC = 256;
+	private static final int NC = 1024;
+	
+	// below this many multiply-adds, packing the matrices costs more than it saves
+	// it also does not help when the inner dimension is tiny, like the outer products of weight gradients
+	private static final int SMALL = 32 * 32 * 32;
+	
+	// above this many multiply-adds, blocks of C are computed in parallel on the shared pool
+	private static final long PARALLEL = 1 << 20;
+	
+	// buffers for the packed panels, reused across calls
+	private static final ThreadLocal<double[]> packedA = ThreadLocal.withInitial(() -> new double[MC * KC]);
+	private static final ThreadLocal<double[]> packedB = ThreadLocal.withInitial(() -> new double[KC * NC]);
+	
+	// for storage that is not a double array, each block of C is accumulated here with doubles, which also keeps the precision of floats
+	// float arrays are packed directly, and the rows of other storage are copied in bulk through the line buffer
+	private static final ThreadLocal<double[]> packedC = ThreadLocal.withInitial(() -> new double[MC * NC]);
+	private static final ThreadLocal<double[]> line = ThreadLocal.withInitial(() -> new double[NC]);
+	
+	// works with any storage type
+	// the multiply is always done with doubles, and the packing step converts the values from the storage
+	public static void gemm(boolean transA, boolean transB, int m, int n, int k,
+			Storage a, int offA, int lda, Storage b, int offB, int ldb, Storage c, int offC, int ldc, boolean accumulate){
+		if(a.doubles() != null && b.doubles() != null && c.doubles() != null){
+			gemm(transA, transB, m, n, k, a.doubles(), offA, lda, b.doubles(), offB, ldb, c.doubles(), offC, ldc, accumulate);
+			return;
+		}
+		
+		if(!accumulate){
+			double[] zeros = new double[n];
+			for(int i = 0; i < m; i++){
+				c.set(offC + i * ldc, zeros, 0, n);
+			}
+		}
+		
+		if(m == 0 || n == 0 || k == 0)
+			return;
+		
+		if(parallel(m, n, k)){
+			Parallel.pool().invoke(new Task(transA, transB, m, n, k, a, offA, lda, b, offB, ldb, c, offC, ldc, grain(m, n, k)));
+			return;
+		}
+		
+		multiply(transA, transB, m, n, k, a, offA, lda, b, offB, ldb, c, offC, ldc);
+	}
+	
+	public static void gemm(boolean transA, boolean transB, int m, int n, int k,
+			double[] a, int offA, int lda, double[] b, int offB, int ldb, double[] c, int offC, int ldc, boolean accumulate){
+		if(!accumulate){
+			for(int i = 0; i < m; i++){
+				int idx = offC + i * ldc;
+				for(int j = 0; j < n; j++){
+					c[idx + j] = 0.0;
+				}
+			}
+		}
+		
+		if(m == 0 || n == 0 || k == 0)
+			return;
+		
+		if(parallel(m, n, k)){
+			Parallel.pool().invoke(new Task(transA, transB, m, n, k, new DoubleStorage(a), offA, lda,
+					new DoubleStorage(b), offB, ldb, new DoubleStorage(c), offC, ldc, grain(m, n, k)));
+			return;
+		}
+		
+		multiply(transA, transB, m, n, k, a, offA, lda, b, offB, ldb, c, offC, ldc);
+	}
+	
+	private static boolean parallel(int m, int n, int k){
+		return (long)m * n * k >= PARALLEL && Parallel.threads() > 1;
+	}
+	
+	// split into a few blocks per thread, so the threads stay busy even if some blocks are slower
+	private static long grain(int m, int n, int k){
+		return Math.max(PARALLEL / 4, (long)m * n * k / (Parallel.threads() * 4));
+	}
+	
+	// C += op(A) * op(B) on the current thread
+	private static void multiply(boolean transA, boolean transB, int m, int n, int k,
+			Storage a, int offA, int lda, Storage b, int offB, int ldb, Storage c, int offC, int ldc){
+		if(a.doubles() != null && b.doubles() != null && c.doubles() != null){
+			multiply(transA, transB, m, n, k, a.doubles(), offA, lda, b.doubles(), offB, ldb, c.doubles(), offC, ldc);
+			return;
+		}
+		
+		if(m == 1 || n == 1 || k < NR || (long)m * n * k <= SMALL){
+			if(a.floats() != null && b.floats() != null && c.floats() != null)
+				small(transA, transB, m, n, k, a.floats(), offA, lda, b.floats(), offB, ldb, c.floats(), offC, ldc);
+			else
+				small(transA, transB, m, n, k, a, offA, lda, b, offB, ldb, c, offC, ldc);
+			return;
+		}
+		
+		double[] ap = packedA.get();
+		double[] bp = packedB.get();
+		double[] cp = packedC.get();
+		
+		for(int jc = 0; jc < n; jc += NC){
+			int nc = Math.min(NC, n - jc);
+			
+			for(int pc = 0; pc < k; pc += KC){
+				int kc = Math.min(KC, k - pc);
+				packB(transB, kc, nc, b, offB, ldb, pc, jc, bp);
+				
+				for(int ic = 0; ic < m; ic += MC){
+					int mc = Math.min(MC, m - ic);
+					packA(transA, mc, kc, a, offA, lda, ic, pc, ap);
+					
+					// the mc x nc block of C is read, updated by the micro kernel, and written back
+					int ci = offC + ic * ldc + jc;
+					for(int i = 0; i < mc; i++){
+						c.get(ci + i * ldc, cp, i * nc, nc);
+					}
+					
+					for(int jr = 0; jr < nc; jr += NR){
+						int nr = Math.min(NR, nc - jr);
+						
+						for(int ir = 0; ir < mc; ir += MR){
+							int mr = Math.min(MR, mc - ir);
+							kernel(kc, ap, ir * kc, bp, jr * kc, cp, ir * nc + jr, nc, mr, nr);
+						}
+					}
+					
+					for(int i = 0; i < mc; i++){
+						c.set(ci + i * ldc, cp, i * nc, nc);
+					}
+				}
+			}
+		}
+	}
+	
+	private static void multiply(boolean transA, boolean transB, int m, int n, int k,
+			double[] a, int offA, int lda, double[] b, int offB, int ldb, double[] c, int offC, int ldc){
+		// matrix-vector products and tiny matrices are memory bound
+		// so they are computed directly, in an order that reads memory sequentially
+		if(m == 1 || n == 1 || k < NR || (long)m * n * k <= SMALL){
+			small(transA, transB, m, n, k, a, offA, lda, b, offB, ldb, c, offC, ldc);
+			return;
+		}
+		
+		double[] ap = packedA.get();
+		double[] bp = packedB.get();
+		
+		for(int jc = 0; jc < n; jc += NC){
+			int nc = Math.min(NC, n - jc);
+			
+			for(int pc = 0; pc < k; pc += KC){
+				int kc = Math.min(KC, k - pc);
+				packB(transB, kc, nc, b, offB, ldb, pc, jc, bp);
+				
+				for(int ic = 0; ic < m; ic += MC){
+					int mc = Math.min(MC, m - ic);
+					packA(transA, mc, kc, a, offA, lda, ic, pc, ap);
+					
+					// loop through the register tiles
+					for(int jr = 0; jr < nc; jr += NR){
+						int nr = Math.min(NR, nc - jr);
+						
+						for(int ir = 0; ir < mc; ir += MR){
+							int mr = Math.min(MR, mc - ir);
+							kernel(kc, ap, ir * kc, bp, jr * kc, c, offC + (ic + ir) * ldc + jc + jr, ldc, mr, nr);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	// computes a MR x NR tile of C from a packed sliver of A and a packed sliver of B
+	private static void kernel(int kc, double[] ap, int ai, double[] bp, int bi, double[] c, int ci, int ldc, int mr, int nr){
+		SIMD.Kernels vk = SIMD.kernels();
+		if(vk != null){
+			vk.kernel(kc, ap, ai, bp, bi, c, ci, ldc, mr, nr);
+			return;
+		}
+		
+		double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+		double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+		double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+		double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+		
+		for(int p = 0; p < kc; p++){
+			double a0 = ap[ai], a1 = ap[ai + 1], a2 = ap[ai + 2], a3 = ap[ai + 3];
+			double b0 = bp[bi], b1 = bp[bi + 1], b2 = bp[bi + 2], b3 = bp[bi + 3];
+			
+			c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+			c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+			c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+			c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+			
+			ai += MR;
+			bi += NR;
+		}
+		
+		if(mr == MR && nr == NR){
+			c[ci] += c00; c[ci + 1] += c01; c[ci + 2] += c02; c[ci + 3] += c03;
+			ci += ldc;
+			c[ci] += c10; c[ci + 1] += c11; c[ci + 2] += c12; c[ci + 3] += c13;
+			ci += ldc;
+			c[ci] += c20; c[ci + 1] += c21; c[ci + 2] += c22; c[ci + 3] += c23;
+			ci += ldc;
+			c[ci] += c30; c[ci + 1] += c31; c[ci + 2] += c32; c[ci + 3] += c33;
+		}else{
+			// partial tile on the edges of C
+			double[] tile = {
+					c00, c01, c02, c03,
+					c10, c11, c12, c13,
+					c20, c21, c22, c23,
+					c30, c31, c32, c33
+			};
+			for(int i = 0; i < mr; i++){
+				for(int j = 0; j < nr; j++){
+					c[ci + i * ldc + j] += tile[i * NR + j];
+				}
+			}
+		}
+	}
+	
+	// packs a mc x kc block of op(A) into slivers of MR rows
+	// each sliver is stored column by column, and padded with zeros
+	private static void packA(boolean transA, int mc, int kc, double[] a, int offA, int lda, int ic, int pc, double[] ap){
+		int idx = 0;
+		for(int ir = 0; ir < mc; ir += MR){
+			int mr = Math.min(MR, mc - ir);
+			for(int p = 0; p < kc; p++){
+				for(int i = 0; i < MR; i++){
+					if(i < mr){
+						int row = ic + ir + i;
+						int col = pc + p;
+						ap[idx] = transA ? a[offA + col * lda + row] : a[offA + row * lda + col];
+					}else{
+						ap[idx] = 0.0;
+					}
+					idx++;
+				}
+			}
+		}
+	}
+	
+	// packs a kc x nc block of op(B) into slivers of NR columns
+	// each sliver is stored row by row, and padded with zeros
+	private static void packB(boolean transB, int kc, int nc, double[] b, int offB, int ldb, int pc, int jc, double[] bp){
+		int idx = 0;
+		for(int jr = 0; jr < nc; jr += NR){
+			int nr = Math.min(NR, nc - jr);
+			for(int p = 0; p < kc; p++){
+				for(int j = 0; j < NR; j++){
+					if(j < nr){
+						int row = pc + p;
+						int col = jc + jr + j;
+						bp[idx] = transB ? b[offB + col * ldb + row] : b[offB + row * ldb + col];
+					}else{
+						bp[idx] = 0.0;
+					}
+					idx++;
+				}
+			}
+		}
+	}
+	
+	// float matrices are widened to doubles while they are packed
+	private static void packA(boolean transA, int mc, int kc, float[] a, int offA, int lda, int ic, int pc, double[] ap){
+		int idx = 0;
+		for(int ir = 0; ir < mc; ir += MR){
+			int mr = Math.min(MR, mc - ir);
+			for(int p = 0; p < kc; p++){
+				for(int i = 0; i < MR; i++){
+					if(i < mr){
+						int row = ic + ir + i;
+						int col = pc + p;
+						ap[idx] = transA ? a[offA + col * lda + row] : a[offA + row * lda + col];
+					}else{
+						ap[idx] = 0.0;
+					}
+					idx++;
+				}
+			}
+		}
+	}
+	
+	private static void packB(boolean transB, int kc, int nc, float[] b, int offB, int ldb, int pc, int jc, double[] bp){
+		int idx = 0;
+		for(int jr = 0; jr < nc; jr += NR){
+			int nr = Math.min(NR, nc - jr);
+			for(int p = 0; p < kc; p++){
+				for(int j = 0; j < NR; j++){
+					if(j < nr){
+						int row = pc + p;
+						int col = jc + jr + j;
+						bp[idx] = transB ? b[offB + col * ldb + row] : b[offB + row * ldb + col];
+					}else{
+						bp[idx] = 0.0;
+					}
+					idx++;
+				}
+			}
+		}
+	}
+	
+	private static void packA(boolean transA, int mc, int kc, Storage a, int offA, int lda, int ic, int pc, double[] ap){
+		if(a.doubles() != null){
+			packA(transA, mc, kc, a.doubles(), offA, lda, ic, pc, ap);
+			return;
+		}
+		if(a.floats() != null){
+			packA(transA, mc, kc, a.floats(), offA, lda, ic, pc, ap);
+			return;
+		}
+		
+		// the same layout as above, but each row or column of the block is copied out of the storage in bulk first
+		// row r of the block is in sliver r / MR, at position r % MR
+		double[] l = line.get();
+		if(transA){
+			// columns of op(A) are rows of A
+			for(int p = 0; p < kc; p++){
+				a.get(offA + (pc + p) * lda + ic, l, 0, mc);
+				for(int r = 0; r < mc; r++){
+					ap[r / MR * MR * kc + p * MR + r % MR] = l[r];
+				}
+			}
+		}else{
+			for(int r = 0; r < mc; r++){
+				a.get(offA + (ic + r) * lda + pc, l, 0, kc);
+				int idx = r / MR * MR * kc + r % MR;
+				for(int p = 0; p < kc; p++){
+					ap[idx + p * MR] = l[p];
+				}
+			}
+		}
+		
+		// zeros for the rows that pad the last sliver
+		for(int r = mc; r % MR != 0; r++){
+			for(int p = 0; p < kc; p++){
+				ap[r / MR * MR * kc + p * MR + r % MR] = 0.0;
+			}
+		}
+	}
+	
+	private static void packB(boolean transB, int kc, int nc, Storage b, int offB, int ldb, int pc, int jc, double[] bp){
+		if(b.doubles() != null){
+			packB(transB, kc, nc, b.doubles(), offB, ldb, pc, jc, bp);
+			return;
+		}
+		if(b.floats() != null){
+			packB(transB, kc, nc, b.floats(), offB, ldb, pc, jc, bp);
+			return;
+		}
+		
+		// column j of the block is in sliver j / NR, at position j % NR
+		double[] l = line.get();
+		if(transB){
+			// columns of op(B) are rows of B
+			for(int j = 0; j < nc; j++){
+				b.get(offB + (jc + j) * ldb + pc, l, 0, kc);
+				int idx = j / NR * NR * kc + j % NR;
+				for(int p = 0; p < kc; p++){
+					bp[idx + p * NR] = l[p];
+				}
+			}
+		}else{
+			for(int p = 0; p < kc; p++){
+				b.get(offB + (pc + p) * ldb + jc, l, 0, nc);
+				for(int j = 0; j < nc; j++){
+					bp[j / NR * NR * kc + p * NR + j % NR] = l[j];
+				}
+			}
+		}
+		
+		// zeros for the columns that pad the last sliver
+		for(int j = nc; j % NR != 0; j++){
+			for(int p = 0; p < kc; p++){
+				bp[j / NR * NR * kc + p * NR + j % NR] = 0.0;
+			}
+		}
+	}
+	
+	private static void small(boolean transA, boolean transB, int m, int n, int k,
+			double[] a, int offA, int lda, double[] b, int offB, int ldb, double[] c, int offC, int ldc){
+		SIMD.Kernels vk = SIMD.kernels();
+		
+		if(!transB){
+			// rows of B are contiguous, so scale and add them to the rows of C
+			for(int i = 0; i < m; i++){
+				int ci = offC + i * ldc;
+				for(int p = 0; p < k; p++){
+					double aip = transA ? a[offA + p * lda + i] : a[offA + i * lda + p];
+					if(aip == 0.0)
+						continue;
+					
+					int bi = offB + p * ldb;
+					if(vk != null){
+						vk.axpy(aip, b, bi, c, ci, n);
+					}else{
+						for(int j = 0; j < n; j++){
+							c[ci + j] += aip * b[bi + j];
+						}
+					}
+				}
+			}
+		}else if(!transA){
+			// rows of A and columns of op(B) are both contiguous, so use dot products
+			for(int i = 0; i < m; i++){
+				int ai = offA + i * lda;
+				int ci = offC + i * ldc;
+				for(int j = 0; j < n; j++){
+					int bi = offB + j * ldb;
+					double sum = 0.0;
+					if(vk != null){
+						sum = vk.dot(a, ai, b, bi, k);
+					}else{
+						for(int p = 0; p < k; p++){
+							sum += a[ai + p] * b[bi + p];
+						}
+					}
+					c[ci + j] += sum;
+				}
+			}
+		}else{
+			for(int i = 0; i < m; i++){
+				int ci = offC + i * ldc;
+				for(int j = 0; j < n; j++){
+					int bi = offB + j * ldb;
+					double sum = 0.0;
+					for(int p = 0; p < k; p++){
+						sum += a[offA + p * lda + i] * b[bi + p];
+					}
+					c[ci + j] += sum;
+				}
+			}
+		}
+	}
+	
+	// the float version accumulates the dot products with doubles
+	private static void small(boolean transA, boolean transB, int m, int n, int k,
+			float[] a, int offA, int lda, float[] b, int offB, int ldb, float[] c, int offC, int ldc){
+		SIMD.Kernels vk = SIMD.kernels();
+		
+		if(!transB){
+			// rows of B are contiguous, so scale and add them to the rows of C
+			for(int i = 0; i < m; i++){
+				int ci = offC + i * ldc;
+				for(int p = 0; p < k; p++){
+					float aip = transA ? a[offA + p * lda + i] : a[offA + i * lda + p];
+					if(aip == 0.0)
+						continue;
+					
+					int bi = offB + p * ldb;
+					if(vk != null){
+						vk.axpy(aip, b, bi, c, ci, n);
+					}else{
+						for(int j = 0; j < n; j++){
+							c[ci + j] += aip * b[bi + j];
+						}
+					}
+				}
+			}
+		}else if(!transA){
+			// rows of A and columns of op(B) are both contiguous, so use dot products
+			for(int i = 0; i < m; i++){
+				int ai = offA + i * lda;
+				int ci = offC + i * ldc;
+				for(int j = 0; j < n; j++){
+					int bi = offB + j * ldb;
+					double sum = 0.0;
+					if(vk != null){
+						sum = vk.dot(a, ai, b, bi, k);
+					}else{
+						for(int p = 0; p < k; p++){
+							sum += a[ai + p] * b[bi + p];
+						}
+					}
+					c[ci + j] += (float)sum;
+				}
+			}
+		}else{
+			for(int i = 0; i < m; i++){
+				int ci = offC + i * ldc;
+				for(int j = 0; j < n; j++){
+					int bi = offB + j * ldb;
+					double sum = 0.0;
+					for(int p = 0; p < k; p++){
+						sum += a[offA + p * lda + i] * b[bi + p];
+					}
+					c[ci + j] += (float)sum;
+				}
+			}
+		}
+	}
+	
+	private static void small(boolean transA, boolean transB, int m, int n, int k,
+			Storage a, int offA, int lda, Storage b, int offB, int ldb, Storage c, int offC, int ldc){
+		// the same loops, on rows that are copied out of the storage in bulk
+		// so only one row of each matrix is on the heap at a time
+		double[] ar = new double[k];
+		double[] br = new double[Math.max(n, k)];
+		double[] cr = new double[n];
+		
+		for(int i = 0; i < m; i++){
+			if(transA){
+				for(int p = 0; p < k; p++){
+					ar[p] = a.get(offA + p * lda + i);
+				}
+			}else{
+				a.get(offA + i * lda, ar, 0, k);
+			}
+			
+			int ci = offC + i * ldc;
+			c.get(ci, cr, 0, n);
+			
+			if(!transB){
+				// rows of B are contiguous, so scale and add them to the row of C
+				for(int p = 0; p < k; p++){
+					if(ar[p] == 0.0)
+						continue;
+					
+					b.get(offB + p * ldb, br, 0, n);
+					for(int j = 0; j < n; j++){
+						cr[j] += ar[p] * br[j];
+					}
+				}
+			}else{
+				// columns of op(B) are contiguous, so use dot products
+				for(int j = 0; j < n; j++){
+					b.get(offB + j * ldb, br, 0, k);
+					double sum = 0.0;
+					for(int p = 0; p < k; p++){
+						sum += ar[p] * br[p];
+					}
+					cr[j] += sum;
+				}
+			}
+			
+			c.set(ci, cr, 0, n);
+		}
+	}
+	
+	// splits C into blocks of rows or columns, which are computed in parallel
+	// every block is a smaller multiply with the same A and B, so no two tasks write to the same part of C
+	private static class Task extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		
+		private final boolean transA, transB;
+		private final int m, n, k;
+		// tasks are never serialized
+		private final transient Storage a, b, c;
+		private final int offA, lda, offB, ldb, offC, ldc;
+		private final long grain;
+		
+		Task(boolean transA, boolean transB, int m, int n, int k,
+				Storage a, int offA, int lda, Storage b, int offB, int ldb, Storage c, int offC, int ldc, long grain){
+			this.transA = transA;
+			this.transB = transB;
+			this.m = m;
+			this.n = n;
+			this.k = k;
+			this.a = a;
+			this.offA = offA;
+			this.lda = lda;
+			this.b = b;
+			this.offB = offB;
+			this.ldb = ldb;
+			this.c = c;
+			this.offC = offC;
+			this.ldc = ldc;
+			this.grain = grain;
+		}
+		
+		@Override
+		protected void compute(){
+			if((long)m * n * k <= grain || (m == 1 && n == 1)){
+				multiply(transA, transB, m, n, k, a, offA, lda, b, offB, ldb, c, offC, ldc);
+				return;
+			}
+			
+			// split the larger dimension in half, on a boundary of the register tiles
+			if(m >= n){
+				int h = Math.max(1, m / 2 / MR * MR);
+				// rows of op(A) are either rows or columns of A
+				int offA2 = offA + (transA ? h : h * lda);
+				invokeAll(new Task(transA, transB, h, n, k, a, offA, lda, b, offB, ldb, c, offC, ldc, grain),
+						new Task(transA, transB, m - h, n, k, a, offA2, lda, b, offB, ldb, c, offC + h * ldc, ldc, grain));
+			}else{
+				int h = Math.max(1, n / 2 / NR * NR);
+				// columns of op(B) are either columns or rows of B
+				int offB2 = offB + (transB ? h * ldb : h);
+				invokeAll(new Task(transA, transB, m, h, k, a, offA, lda, b, offB, ldb, c, offC, ldc, grain),
+						new Task(transA, transB, m, n - h, k, a, offA, lda, b, offB2, ldb, c, offC + h, ldc, grain));
+			}
+		}
+	}
+}
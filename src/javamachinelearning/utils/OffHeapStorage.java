@@ -0,0 +1,176 @@
+package javamachinelearning.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+
+// storage that is outside of the java heap, in a direct buffer
+// large weights and optimizer state do not need a larger heap, and the garbage collector never scans them
+// the memory is released by free(), or when the storage is garbage collected if free() is never called
+// direct buffers are limited by -XX:MaxDirectMemorySize, which is the maximum heap size by default,
+// so it has to be set to keep more off heap than the heap can hold, like java -Xmx1g -XX:MaxDirectMemorySize=16g
+public class OffHeapStorage extends Storage{
+	private static final long MAX_BYTES = maxBytes();
+	
+	// releases a direct buffer right away on java 9+
+	// null if it is not available, and then the buffers are released when they are garbage collected
+	private static Object unsafe;
+	private static Method invokeCleaner;
+	
+	static{
+		try{
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field field = c.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+		}catch(ReflectiveOperationException | RuntimeException e){
+			System.err.println("Off heap storage can only be released by the garbage collector: " + e);
+		}
+	}
+	
+	private final DType dtype;
+	private final int length;
+	
+	private ByteBuffer buffer;
+	// only one of these is used, depending on the type
+	private DoubleBuffer d;
+	private FloatBuffer f;
+	
+	public OffHeapStorage(DType dtype, int length){
+		long bytes = (long)length * dtype.bytes();
+		if(bytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Off heap storage is limited to 2GB per tensor!");
+		if(bytes > MAX_BYTES)
+			throw new IllegalArgumentException("Off heap storage is limited to " + MAX_BYTES
+					+ " bytes, set a larger -XX:MaxDirectMemorySize!");
+		
+		this.dtype = dtype;
+		this.length = length;
+		
+		// direct buffers are zeroed when they are allocated
+		try{
+			buffer = ByteBuffer.allocateDirect((int)bytes).order(ByteOrder.nativeOrder());
+		}catch(OutOfMemoryError e){
+			OutOfMemoryError res = new OutOfMemoryError("Off heap storage is full at " + MAX_BYTES
+					+ " bytes, set a larger -XX:MaxDirectMemorySize or free tensors that are not used!");
+			res.initCause(e);
+			throw res;
+		}
+		if(dtype == DType.FLOAT32)
+			f = buffer.asFloatBuffer();
+		else
+			d = buffer.asDoubleBuffer();
+	}
+	
+	@Override
+	public DType dtype(){
+		return dtype;
+	}
+	
+	@Override
+	public int length(){
+		return length;
+	}
+	
+	@Override
+	public double get(int idx){
+		return d != null ? d.get(idx) : f.get(idx);
+	}
+	
+	@Override
+	public void set(int idx, double val){
+		if(d != null)
+			d.put(idx, val);
+		else
+			f.put(idx, (float)val);
+	}
+	
+	// bulk copies through a duplicate of the buffer, so the position of the shared buffer is not changed
+	// floats are copied into a temporary array first, because there is no bulk copy that converts them
+	@Override
+	public void get(int idx, double[] dst, int off, int len){
+		if(d != null){
+			DoubleBuffer b = d.duplicate();
+			b.position(idx);
+			b.get(dst, off, len);
+		}else{
+			float[] tmp = new float[len];
+			FloatBuffer b = f.duplicate();
+			b.position(idx);
+			b.get(tmp, 0, len);
+			for(int i = 0; i < len; i++){
+				dst[off + i] = tmp[i];
+			}
+		}
+	}
+	
+	@Override
+	public void set(int idx, double[] src, int off, int len){
+		if(d != null){
+			DoubleBuffer b = d.duplicate();
+			b.position(idx);
+			b.put(src, off, len);
+		}else{
+			float[] tmp = new float[len];
+			for(int i = 0; i < len; i++){
+				tmp[i] = (float)src[off + i];
+			}
+			FloatBuffer b = f.duplicate();
+			b.position(idx);
+			b.put(tmp, 0, len);
+		}
+	}
+	
+	@Override
+	public Storage allocate(int length){
+		return new OffHeapStorage(dtype, length);
+	}
+	
+	@Override
+	public synchronized void free(){
+		if(buffer == null)
+			return;
+		
+		// drop the references first, so using the storage after it is freed fails instead of reading freed memory
+		ByteBuffer b = buffer;
+		buffer = null;
+		d = null;
+		f = null;
+		
+		// java 9+ releases the buffer right away, otherwise it is released when it is garbage collected
+		if(invokeCleaner == null)
+			return;
+		
+		try{
+			invokeCleaner.invoke(unsafe, b);
+		}catch(ReflectiveOperationException e){
+			throw new IllegalStateException("Could not free off heap storage!", e);
+		}
+	}
+	
+	// the limit for all direct buffers, from -XX:MaxDirectMemorySize or the maximum heap size
+	private static long maxBytes(){
+		long res = Runtime.getRuntime().maxMemory();
+		try{
+			for(String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()){
+				if(!arg.startsWith("-XX:MaxDirectMemorySize="))
+					continue;
+				
+				String s = arg.substring(arg.indexOf('=') + 1).toLowerCase();
+				int unit = "kmgt".indexOf(s.charAt(s.length() - 1));
+				long val = unit < 0 ? Long.parseLong(s) : Long.parseLong(s.substring(0, s.length() - 1)) << (10 * (unit + 1));
+				// zero means the default
+				if(val > 0)
+					res = val;
+			}
+		}catch(RuntimeException e){
+			// the arguments are not available, so assume the default
+		}
+		return res;
+	}
+}
@@ -0,0 +1,89 @@
+package javamachinelearning.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// the thread pool that is shared by the parallel operations in the library
+// by default, this is the common pool, which uses every core
+// no threads are created per call, so the pool can be shared with the rest of an application
+public class Parallel{
+	// below this many operations, a loop is not worth splitting
+	private static final long PARALLEL = 1 << 16;
+	
+	private static ForkJoinPool pool = ForkJoinPool.commonPool();
+	// the pool that was created by setThreads, which is shut down when it is replaced
+	private static ForkJoinPool ownPool;
+	
+	public static ForkJoinPool pool(){
+		return pool;
+	}
+	
+	public static int threads(){
+		return pool.getParallelism();
+	}
+	
+	// use an existing pool
+	public static synchronized void setPool(ForkJoinPool p){
+		if(ownPool != null && ownPool != p){
+			ownPool.shutdown();
+			ownPool = null;
+		}
+		pool = p;
+	}
+	
+	// use a new pool with a certain number of threads
+	// one thread turns off parallelism
+	public static synchronized void setThreads(int threads){
+		ForkJoinPool p = new ForkJoinPool(threads);
+		setPool(p);
+		ownPool = p;
+	}
+	
+	// runs the body on every index from start to end, in ranges that run in parallel on the pool
+	// work is about how many operations are done for each index, which decides how finely the loop is split
+	// each range must only write to memory that belongs to its indexes, so there is no locking
+	public static void forRange(int start, int end, long work, Range body){
+		int n = end - start;
+		if(n <= 0)
+			return;
+		
+		if(n == 1 || (long)n * work < PARALLEL || threads() <= 1){
+			body.run(start, end);
+			return;
+		}
+		
+		// a few ranges per thread, so the threads stay busy even if some ranges are slower
+		int grain = (int)Math.max(Math.max(1, PARALLEL / 4 / Math.max(work, 1)), n / (threads() * 4L));
+		pool.invoke(new RangeTask(start, end, grain, body));
+	}
+	
+	public interface Range{
+		public void run(int start, int end);
+	}
+	
+	private static class RangeTask extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		
+		private final int start, end, grain;
+		// tasks are never serialized
+		private final transient Range body;
+		
+		RangeTask(int start, int end, int grain, Range body){
+			this.start = start;
+			this.end = end;
+			this.grain = grain;
+			this.body = body;
+		}
+		
+		@Override
+		protected void compute(){
+			if(end - start <= grain){
+				body.run(start, end);
+				return;
+			}
+			
+			int mid = (start + end) >>> 1;
+			invokeAll(new RangeTask(start, mid, grain, body), new RangeTask(mid, end, grain, body));
+		}
+	}
+}
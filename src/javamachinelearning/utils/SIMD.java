@@ -0,0 +1,65 @@
+package javamachinelearning.utils;
+
+// optional vectorized kernels for the tensor operations
+// they use the incubating vector api (jdk.incubator.vector), which needs java 16+ and --add-modules jdk.incubator.vector
+// the kernels are in the separate src-simd folder, which is not part of the default build
+// if they are not compiled or the module is not available, then the scalar loops are used instead
+public final class SIMD{
+	private static final Kernels kernels = load();
+	private static boolean enabled = kernels != null;
+	
+	private SIMD(){}
+	
+	private static Kernels load(){
+		try{
+			// loaded by name so nothing else links against the vector api
+			return (Kernels)Class.forName("javamachinelearning.utils.SIMDKernels").getDeclaredConstructor().newInstance();
+		}catch(Throwable e){
+			return null;
+		}
+	}
+	
+	public static boolean available(){
+		return kernels != null;
+	}
+	
+	public static boolean enabled(){
+		return enabled;
+	}
+	
+	// can be turned off to compare the results with the scalar loops
+	public static void setEnabled(boolean e){
+		enabled = e && kernels != null;
+	}
+	
+	// null if the scalar loops should be used
+	static Kernels kernels(){
+		return enabled ? kernels : null;
+	}
+	
+	// the operation codes are the same as in Tensor
+	interface Kernels{
+		public void binary(int op, double[] a, int ao, double[] b, int bo, double[] o, int oo, int n);
+		public void binary(int op, float[] a, int ao, float[] b, int bo, float[] o, int oo, int n);
+		
+		public void scalar(int op, double[] a, int ao, double d, double[] o, int oo, int n);
+		public void scalar(int op, float[] a, int ao, float d, float[] o, int oo, int n);
+		
+		// y = y + alpha * x
+		public void axpy(double alpha, double[] x, int xo, double[] y, int yo, int n);
+		public void axpy(float alpha, float[] x, int xo, float[] y, int yo, int n);
+		
+		// y = y + alpha * a * b
+		public void fma(double alpha, double[] a, int ao, double[] b, int bo, double[] y, int yo, int n);
+		public void fma(float alpha, float[] a, int ao, float[] b, int bo, float[] y, int yo, int n);
+		
+		public double sum(double[] a, int ao, int n);
+		public double sum(float[] a, int ao, int n);
+		
+		public double dot(double[] a, int ao, double[] b, int bo, int n);
+		public double dot(float[] a, int ao, float[] b, int bo, int n);
+		
+		// the GEMM micro kernel, with the same arguments as the scalar version
+		public void kernel(int kc, double[] ap, int ai, double[] bp, int bi, double[] c, int ci, int ldc, int mr, int nr);
+	}
+}
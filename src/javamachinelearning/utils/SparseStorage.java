@@ -0,0 +1,225 @@
+package javamachinelearning.utils;
+
+import java.util.Arrays;
+
+// matrix that is mostly zeros, in compressed sparse row (CSR) format
+// only the nonzero values and their columns are stored, and the columns in each row are sorted
+// it is read only, because setting a value could change where the nonzero values are
+// matrix multiplies with sparse tensors only visit the nonzero values
+public class SparseStorage extends Storage{
+	private final int rows;
+	private final int cols;
+	// the values of row i are from rowPtr[i] to rowPtr[i + 1]
+	private final int[] rowPtr;
+	private final int[] colIdx;
+	private final double[] values;
+	
+	public SparseStorage(int rows, int cols, int[] rowPtr, int[] colIdx, double[] values){
+		if(rowPtr.length != rows + 1 || colIdx.length != values.length || rowPtr[rows] != values.length)
+			throw new IllegalArgumentException("Bad sizes for sparse matrix!");
+		
+		this.rows = rows;
+		this.cols = cols;
+		this.rowPtr = rowPtr;
+		this.colIdx = colIdx;
+		this.values = values;
+	}
+	
+	// coordinate (COO) format, where the entries can be in any order
+	// duplicate entries are added together
+	public static SparseStorage fromCOO(int rows, int cols, int[] rowIdx, int[] colIdx, double[] values){
+		if(rowIdx.length != colIdx.length || rowIdx.length != values.length)
+			throw new IllegalArgumentException("Bad sizes for sparse matrix!");
+		
+		// sort the entries by row, then by column
+		Integer[] order = new Integer[values.length];
+		for(int i = 0; i < order.length; i++){
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> rowIdx[a] != rowIdx[b] ? rowIdx[a] - rowIdx[b] : colIdx[a] - colIdx[b]);
+		
+		int[] resPtr = new int[rows + 1];
+		int[] resCol = new int[values.length];
+		double[] resVal = new double[values.length];
+		int nnz = 0;
+		for(int i = 0; i < order.length; i++){
+			int r = rowIdx[order[i]];
+			int c = colIdx[order[i]];
+			if(r < 0 || r >= rows || c < 0 || c >= cols)
+				throw new IllegalArgumentException("Bad index for sparse matrix!");
+			
+			if(nnz > 0 && resCol[nnz - 1] == c && resPtr[r + 1] > 0){
+				resVal[nnz - 1] += values[order[i]];
+			}else{
+				resCol[nnz] = c;
+				resVal[nnz] = values[order[i]];
+				nnz++;
+				resPtr[r + 1]++;
+			}
+		}
+		
+		// turn the counts into offsets
+		for(int i = 0; i < rows; i++){
+			resPtr[i + 1] += resPtr[i];
+		}
+		return new SparseStorage(rows, cols, resPtr, Arrays.copyOf(resCol, nnz), Arrays.copyOf(resVal, nnz));
+	}
+	
+	// only the nonzero values of a dense matrix
+	public static SparseStorage fromDense(int rows, int cols, Tensor t){
+		int nnz = 0;
+		for(int i = 0; i < t.size(); i++){
+			if(t.flatGet(i) != 0.0)
+				nnz++;
+		}
+		
+		int[] resPtr = new int[rows + 1];
+		int[] resCol = new int[nnz];
+		double[] resVal = new double[nnz];
+		int idx = 0;
+		for(int i = 0; i < rows; i++){
+			for(int j = 0; j < cols; j++){
+				double d = t.flatGet(i * cols + j);
+				if(d != 0.0){
+					resCol[idx] = j;
+					resVal[idx] = d;
+					idx++;
+				}
+			}
+			resPtr[i + 1] = idx;
+		}
+		return new SparseStorage(rows, cols, resPtr, resCol, resVal);
+	}
+	
+	// the rows of every matrix, one after another
+	// the matrices must have the same number of columns
+	public static SparseStorage concat(SparseStorage... parts){
+		int rows = 0;
+		int nnz = 0;
+		for(SparseStorage s : parts){
+			if(s.cols != parts[0].cols)
+				throw new IllegalArgumentException("Bad sizes for sparse matrix!");
+			rows += s.rows;
+			nnz += s.values.length;
+		}
+		
+		int[] resPtr = new int[rows + 1];
+		int[] resCol = new int[nnz];
+		double[] resVal = new double[nnz];
+		int r = 0;
+		int idx = 0;
+		for(SparseStorage s : parts){
+			System.arraycopy(s.colIdx, 0, resCol, idx, s.values.length);
+			System.arraycopy(s.values, 0, resVal, idx, s.values.length);
+			for(int i = 0; i < s.rows; i++){
+				resPtr[r + i + 1] = idx + s.rowPtr[i + 1];
+			}
+			r += s.rows;
+			idx += s.values.length;
+		}
+		return new SparseStorage(rows, parts[0].cols, resPtr, resCol, resVal);
+	}
+	
+	public int rows(){
+		return rows;
+	}
+	
+	public int cols(){
+		return cols;
+	}
+	
+	public int nonZeros(){
+		return values.length;
+	}
+	
+	@Override
+	public DType dtype(){
+		return DType.FLOAT64;
+	}
+	
+	@Override
+	public int length(){
+		return rows * cols;
+	}
+	
+	@Override
+	public double get(int idx){
+		int r = idx / cols;
+		int i = Arrays.binarySearch(colIdx, rowPtr[r], rowPtr[r + 1], idx % cols);
+		return i < 0 ? 0.0 : values[i];
+	}
+	
+	@Override
+	public void set(int idx, double val){
+		throw new UnsupportedOperationException("Sparse tensors are read only!");
+	}
+	
+	// C += op(S) * B, where S is the rows from r0 of this matrix
+	// S is m x k, or k x m if it is transposed, and B is k x n
+	// B and C are in row major format, like in GEMM
+	void multiplyLeft(boolean transS, int r0, int m, int n, int k,
+			boolean transB, Storage b, int offB, int ldb, Storage c, int offC, int ldc){
+		double[] bd = b.doubles();
+		double[] cd = c.doubles();
+		SIMD.Kernels simd = SIMD.kernels();
+		int rowCount = transS ? k : m;
+		
+		for(int p = 0; p < rowCount; p++){
+			for(int idx = rowPtr[r0 + p]; idx < rowPtr[r0 + p + 1]; idx++){
+				double v = values[idx];
+				// adds v * (row of B) to a row of C
+				// if S is transposed, then the stored row p is column p of op(S)
+				int ci = offC + (transS ? colIdx[idx] : p) * ldc;
+				int bRow = transS ? p : colIdx[idx];
+				
+				if(!transB && bd != null && cd != null){
+					int bi = offB + bRow * ldb;
+					if(simd != null){
+						simd.axpy(v, bd, bi, cd, ci, n);
+					}else{
+						for(int j = 0; j < n; j++){
+							cd[ci + j] += v * bd[bi + j];
+						}
+					}
+				}else{
+					for(int j = 0; j < n; j++){
+						int bi = transB ? offB + j * ldb + bRow : offB + bRow * ldb + j;
+						c.set(ci + j, c.get(ci + j) + v * b.get(bi));
+					}
+				}
+			}
+		}
+	}
+	
+	// C += A * op(S), where S is the rows from r0 of this matrix
+	// A is m x k, and S is k x n, or n x k if it is transposed
+	void multiplyRight(boolean transS, int r0, int m, int n, int k,
+			boolean transA, Storage a, int offA, int lda, Storage c, int offC, int ldc){
+		for(int i = 0; i < m; i++){
+			int ci = offC + i * ldc;
+			
+			if(transS){
+				// each element of C is a dot product with a stored row
+				for(int j = 0; j < n; j++){
+					double sum = 0.0;
+					for(int idx = rowPtr[r0 + j]; idx < rowPtr[r0 + j + 1]; idx++){
+						int p = colIdx[idx];
+						sum += values[idx] * a.get(transA ? offA + p * lda + i : offA + i * lda + p);
+					}
+					c.set(ci + j, c.get(ci + j) + sum);
+				}
+			}else{
+				for(int p = 0; p < k; p++){
+					double l = a.get(transA ? offA + p * lda + i : offA + i * lda + p);
+					if(l == 0.0)
+						continue;
+					
+					for(int idx = rowPtr[r0 + p]; idx < rowPtr[r0 + p + 1]; idx++){
+						int j = colIdx[idx];
+						c.set(ci + j, c.get(ci + j) + l * values[idx]);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package javamachinelearning.utils;
+
+// holds the flat data of a tensor
+// values are always read and written as doubles, and converted to the actual type of the storage
+public abstract class Storage{
+	public abstract DType dtype();
+	public abstract int length();
+	public abstract double get(int idx);
+	public abstract void set(int idx, double val);
+	
+	// copies len values starting at idx into dst, which is much faster than get for storage that is not an array
+	public void get(int idx, double[] dst, int off, int len){
+		for(int i = 0; i < len; i++){
+			dst[off + i] = get(idx + i);
+		}
+	}
+	
+	// copies len values from src into the storage, starting at idx
+	public void set(int idx, double[] src, int off, int len){
+		for(int i = 0; i < len; i++){
+			set(idx + i, src[off + i]);
+		}
+	}
+	
+	// the backing arrays, which are used by fast paths that skip get and set
+	// null if the storage is not backed by an array of that type
+	public double[] doubles(){
+		return null;
+	}
+	
+	public float[] floats(){
+		return null;
+	}
+	
+	// new zeroed storage of the same type, which is also off heap if this storage is off heap
+	public Storage allocate(int length){
+		return dtype().allocate(length);
+	}
+	
+	// releases memory that is not managed by the garbage collector, or returns pooled arrays
+	// the storage cannot be used after it is freed
+	public void free(){
+		// nothing to release
+	}
+}
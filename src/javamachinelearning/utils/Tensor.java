@@ -1,35 +1,97 @@
 package javamachinelearning.utils;
 
+import java.util.Arrays;
 import java.util.Random;
 
 public class Tensor{
+	// type used by tensors that are created without an explicit type
+	private static DType defaultDType = DType.FLOAT64;
+	
+	// operation codes for the elementwise kernels
+	static final int ADD = 0;
+	static final int SUB = 1;
+	static final int MUL = 2;
+	static final int DIV = 3;
+	
+	// when the tensors are not all backed by the same type of array, like off heap tensors,
+	// the elementwise operations copy the values into these arrays one block at a time, instead of calling get and set for every value
+	private static final int BLOCK = 1024;
+	private static final ThreadLocal<double[][]> blocks = ThreadLocal.withInitial(() -> new double[3][BLOCK]);
+	
 	private int[] shape;
-	private double[] data;
+	private Storage storage;
+	
+	// views share the storage of another tensor
+	// offset is the position of the first element in the storage, and strides are the steps for each dimension
+	private int offset;
+	private int[] strides;
+	private boolean contiguous;
 	
 	private int[] mult;
 	private int size;
 	
 	public Tensor(int[] shape, boolean rand){
+		this(shape, defaultDType, rand);
+	}
+	
+	public Tensor(int[] shape, DType dtype, boolean rand){
 		this.shape = shape;
 		
 		calcMult();
 		
-		data = new double[size];
-		if(rand){
-			Random r = new Random();
-			// for initializing weights
-			int sum = 0;
-			for(int i = 0; i < shape.length; i++){
-				sum += shape[i];
-			}
-			for(int i = 0; i < size; i++){
-				// xavier normal initialization (not truncated)
-				data[i] = r.nextGaussian() * Math.sqrt(2.0 / sum);
-			}
-		}else{
-			for(int i = 0; i < size; i++){
-				data[i] = 0;
-			}
+		storage = dtype.allocate(size);
+		if(rand)
+			randomize();
+	}
+	
+	// tensor of the default type, with storage that is outside of the heap
+	// free() should be called when the tensor is no longer needed
+	// the java flag -XX:MaxDirectMemorySize limits the total size of off heap tensors, and it is the maximum heap size by default,
+	// so it must be set to hold more than the heap, for example java -Xmx1g -XX:MaxDirectMemorySize=16g
+	public static Tensor offHeap(int[] shape, boolean rand){
+		int size = 1;
+		for(int i = 0; i < shape.length; i++){
+			size *= shape[i];
+		}
+		
+		Tensor res = new Tensor(shape, defaultDType.allocateOffHeap(size));
+		if(rand)
+			res.randomize();
+		return res;
+	}
+	
+	// sparse matrix in compressed sparse row format, which is read only
+	// matrix multiplies with it only visit the nonzero values
+	public static Tensor sparse(int rows, int cols, int[] rowPtr, int[] colIdx, double[] values){
+		return new Tensor(new int[]{rows, cols}, new SparseStorage(rows, cols, rowPtr, colIdx, values));
+	}
+	
+	// sparse matrix from the coordinates of the nonzero values
+	public static Tensor sparseCOO(int rows, int cols, int[] rowIdx, int[] colIdx, double[] values){
+		return new Tensor(new int[]{rows, cols}, SparseStorage.fromCOO(rows, cols, rowIdx, colIdx, values));
+	}
+	
+	// for initializing weights
+	private void randomize(){
+		int sum = 0;
+		for(int i = 0; i < shape.length; i++){
+			sum += shape[i];
+		}
+		randomize(sum);
+	}
+	
+	// randomize with the scale of a fanIn x fanOut matrix
+	// for weights that are several matrices stacked together, so each one is initialized like it was alone
+	public Tensor randomize(int fanIn, int fanOut){
+		randomize(fanIn + fanOut);
+		return this;
+	}
+	
+	private void randomize(int sum){
+		Random r = new Random();
+		for(int i = 0; i < size; i++){
+			// xavier normal initialization (not truncated)
+			storage.set(i, r.nextGaussian() * Math.sqrt(2.0 / sum));
 		}
 	}
 	
@@ -38,9 +100,9 @@ public class Tensor{
 		
 		calcMult();
 		
-		data = new double[size];
+		storage = defaultDType.allocate(size);
 		for(int i = 0; i < size; i++){
-			data[i] = init;
+			storage.set(i, init);
 		}
 	}
 	
@@ -48,9 +110,9 @@ public class Tensor{
 	public Tensor(double[] d){
 		shape = new int[]{1, d.length};
 		calcMult();
-		data = new double[size];
+		storage = defaultDType.allocate(size);
 		for(int i = 0; i < d.length; i++){
-			data[i] = d[i];
+			storage.set(i, d[i]);
 		}
 	}
 	
@@ -59,11 +121,11 @@ public class Tensor{
 	public Tensor(double[][] d){
 		shape = new int[]{d[0].length, d.length};
 		calcMult();
-		data = new double[size];
+		storage = defaultDType.allocate(size);
 		int idx = 0;
 		for(int i = 0; i < d[0].length; i++){
 			for(int j = 0; j < d.length; j++){
-				data[idx] = d[j][i];
+				storage.set(idx, d[j][i]);
 				idx++;
 			}
 		}
@@ -73,53 +135,92 @@ public class Tensor{
 	public Tensor(double[][][] d){
 		shape = new int[]{d[0][0].length, d[0].length, d.length};
 		calcMult();
-		data = new double[size];
+		storage = defaultDType.allocate(size);
 		int idx = 0;
 		for(int i = 0; i < d[0][0].length; i++){
 			for(int j = 0; j < d[0].length; j++){
 				for(int k = 0; k < d.length; k++){
-					data[idx] = d[k][j][i];
+					storage.set(idx, d[k][j][i]);
 					idx++;
 				}
 			}
 		}
 	}
 	
+	// the following constructors use the data directly, without copying it
 	public Tensor(int[] shape, double[] data){
+		this(shape, new DoubleStorage(data));
+	}
+	
+	public Tensor(int[] shape, float[] data){
+		this(shape, new FloatStorage(data));
+	}
+	
+	public Tensor(int[] shape, Storage storage){
 		this.shape = shape;
 		calcMult();
-		this.data = data;
+		this.storage = storage;
 	}
-
+	
+	// view of the storage of another tensor
+	// null strides means that the view is contiguous
+	private Tensor(int[] shape, Storage storage, int offset, int[] strides){
+		this.shape = shape;
+		calcMult();
+		this.storage = storage;
+		this.offset = offset;
+		
+		if(strides != null){
+			this.strides = strides;
+			// dimensions of size one do not affect the layout
+			for(int i = 0; i < shape.length; i++){
+				if(shape[i] != 1 && strides[i] != mult[i]){
+					contiguous = false;
+					break;
+				}
+			}
+		}
+	}
+	
 	// Convert int Data to double Data
 	public Tensor(int[][] intD) {
 		shape = new int[]{intD[0].length, intD.length};
 		calcMult();
-		data = new double[size];
+		storage = defaultDType.allocate(size);
 		int idx = 0;
 		for(int i = 0; i < intD[0].length; i++){
 			for(int j = 0; j < intD.length; j++){
-				data[idx] = (double)intD[j][i];
+				storage.set(idx, (double)intD[j][i]);
 				idx++;
 			}
 		}
 	}
-
+	
 	public Tensor(int[][][] intD) {
 		shape = new int[]{intD[0][0].length, intD[0].length, intD.length};
 		calcMult();
-		data = new double[size];
+		storage = defaultDType.allocate(size);
 		int idx = 0;
 		for(int i = 0; i < intD[0][0].length; i++){
 			for(int j = 0; j < intD[0].length; j++){
 				for(int k = 0; k < intD.length; k++){
-					data[idx] = (double)intD[k][j][i];
+					storage.set(idx, (double)intD[k][j][i]);
 					idx++;
 				}
 			}
 		}
 	}
 	
+	// the default type is used when creating weights, data, etc.
+	// set it to FLOAT32 before building a network to run the whole network with floats
+	public static DType defaultDType(){
+		return defaultDType;
+	}
+	
+	public static void setDefaultDType(DType dtype){
+		defaultDType = dtype;
+	}
+	
 	public int[] shape(){
 		return shape;
 	}
@@ -132,141 +233,737 @@ public class Tensor{
 		return size;
 	}
 	
-	public Tensor add(Tensor o){
+	public DType dtype(){
+		return storage.dtype();
+	}
+	
+	public Storage storage(){
+		return storage;
+	}
+	
+	public int offset(){
+		return offset;
+	}
+	
+	public int[] strides(){
+		return strides;
+	}
+	
+	public boolean isContiguous(){
+		return contiguous;
+	}
+	
+	public boolean isSparse(){
+		return storage instanceof SparseStorage;
+	}
+	
+	// only keeps the nonzero values of this 2D tensor
+	public Tensor toSparse(){
+		if(shape.length != 2)
+			throw new IllegalArgumentException("Bad sizes for sparse matrix!");
+		
+		return new Tensor(shape, SparseStorage.fromDense(shape[0], shape[1], this));
+	}
+	
+	// if this tensor is a view of whole rows of a sparse matrix, or their transpose, then the first row
+	// otherwise -1, and the sparse matrix is treated like a dense matrix
+	private int sparseRow(){
+		if(!isSparse() || shape.length != 2)
+			return -1;
+		
+		int cols = ((SparseStorage)storage).cols();
+		if(offset % cols != 0)
+			return -1;
+		
+		if(shape[1] == cols && strides[1] == 1 && (shape[0] == 1 || strides[0] == cols))
+			return offset / cols;
+		if(shape[0] == cols && strides[0] == 1 && (shape[1] == 1 || strides[1] == cols))
+			return offset / cols;
+		return -1;
+	}
+	
+	private boolean sparseTransposed(){
+		return shape[1] != ((SparseStorage)storage).cols() || strides[1] != 1;
+	}
+	
+	// copies the data only if this tensor is a view that is not laid out contiguously
+	public Tensor contiguous(){
+		return contiguous ? this : clone();
+	}
+	
+	// the backing arrays for the fast paths, which only work on contiguous tensors
+	double[] doubles(){
+		return contiguous ? storage.doubles() : null;
+	}
+	
+	float[] floats(){
+		return contiguous ? storage.floats() : null;
+	}
+	
+	// the values in a contiguous array of doubles, for layers that loop over arrays
+	// if the backing array holds exactly the values of this tensor, then it is returned without copying,
+	// so writing to it changes this tensor
+	// otherwise the values are copied
+	public double[] asDoubles(){
+		double[] d = doubles();
+		if(d != null && offset == 0 && d.length == size)
+			return d;
+		
 		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] + o.data[i];
+		if(d != null){
+			System.arraycopy(d, offset, res, 0, size);
+		}else{
+			for(int i = 0; i < size; i++){
+				res[i] = flatGet(i);
+			}
 		}
-		return new Tensor(shape, res);
+		return res;
 	}
 	
-	public Tensor add(double d){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] + d;
+	// position in the storage of the element at a flat index
+	private int index(int idx){
+		if(contiguous)
+			return offset + idx;
+		
+		int res = offset;
+		for(int i = shape.length - 1; i >= 0; i--){
+			res += (idx % shape[i]) * strides[i];
+			idx /= shape[i];
 		}
-		return new Tensor(shape, res);
+		return res;
 	}
 	
-	public Tensor sub(Tensor o){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] - o.data[i];
+	// copy to a tensor of a different type
+	public Tensor to(DType dtype){
+		if(dtype == dtype())
+			return this;
+		
+		return new Tensor(shape, dtype, false).set(this);
+	}
+	
+	// zeroed tensor with the same shape, type, and kind of storage (heap or off heap) as this tensor
+	// used for gradients and optimizer state, which should be stored in the same place as the weights
+	public Tensor zerosLike(){
+		return new Tensor(shape, storage.allocate(size));
+	}
+	
+	// releases the storage if it is off heap, or returns its array to the buffer pool if it came from there
+	// views share the storage, so they cannot be used after this either
+	public void free(){
+		storage.free();
+	}
+	
+	// frees every tensor, skipping nulls
+	public static void free(Tensor... tensors){
+		for(Tensor t : tensors){
+			if(t != null)
+				t.free();
 		}
-		return new Tensor(shape, res);
+	}
+	
+	// new tensor with the same shape and type as this tensor
+	private Tensor empty(){
+		return new Tensor(shape, dtype(), false);
+	}
+	
+	public Tensor add(Tensor o){
+		return add(this, o, empty());
+	}
+	
+	public Tensor add(double d){
+		return add(this, d, empty());
+	}
+	
+	public Tensor sub(Tensor o){
+		return sub(this, o, empty());
 	}
 	
 	public Tensor sub(double d){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] - d;
-		}
-		return new Tensor(shape, res);
+		return add(this, -d, empty());
 	}
 	
 	public Tensor mul(Tensor o){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] * o.data[i];
-		}
-		return new Tensor(shape, res);
+		return mul(this, o, empty());
 	}
 	
 	public Tensor mul(double d){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] * d;
-		}
-		return new Tensor(shape, res);
+		return mul(this, d, empty());
 	}
 	
 	public Tensor div(Tensor o){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] / o.data[i];
-		}
-		return new Tensor(shape, res);
+		return div(this, o, empty());
 	}
 	
 	public Tensor div(double d){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = data[i] / d;
+		return div(this, d, empty());
+	}
+	
+	// in place versions of the operations above
+	// they modify and return this tensor instead of allocating a new one
+	public Tensor addi(Tensor o){
+		return add(this, o, this);
+	}
+	
+	public Tensor addi(double d){
+		return add(this, d, this);
+	}
+	
+	public Tensor subi(Tensor o){
+		return sub(this, o, this);
+	}
+	
+	public Tensor subi(double d){
+		return add(this, -d, this);
+	}
+	
+	public Tensor muli(Tensor o){
+		return mul(this, o, this);
+	}
+	
+	public Tensor muli(double d){
+		return mul(this, d, this);
+	}
+	
+	public Tensor divi(Tensor o){
+		return div(this, o, this);
+	}
+	
+	public Tensor divi(double d){
+		return div(this, d, this);
+	}
+	
+	// start a lazy expression, which fuses a chain of elementwise operations into one pass
+	// for example, t.lazy().mul(2.0).add(o).map(f).eval()
+	public Expr lazy(){
+		return Expr.of(this);
+	}
+	
+	public Tensor mapInPlace(Function f){
+		return map(this, f, this);
+	}
+	
+	// this = this + alpha * x
+	public Tensor axpy(double alpha, Tensor x){
+		double[] d = doubles(), xd = x.doubles();
+		float[] f = floats(), xf = x.floats();
+		int xo = x.offset;
+		
+		SIMD.Kernels k = SIMD.kernels();
+		
+		if(d != null && xd != null){
+			if(k != null){
+				k.axpy(alpha, xd, xo, d, offset, size);
+			}else{
+				for(int i = 0; i < size; i++){
+					d[offset + i] += alpha * xd[xo + i];
+				}
+			}
+		}else if(f != null && xf != null){
+			float a = (float)alpha;
+			if(k != null){
+				k.axpy(a, xf, xo, f, offset, size);
+			}else{
+				for(int i = 0; i < size; i++){
+					f[offset + i] += a * xf[xo + i];
+				}
+			}
+		}else{
+			double[][] s = blocks.get();
+			for(int i = 0; i < size; i += BLOCK){
+				int len = Math.min(BLOCK, size - i);
+				x.read(i, s[0], len);
+				read(i, s[2], len);
+				for(int j = 0; j < len; j++){
+					s[2][j] += alpha * s[0][j];
+				}
+				write(i, s[2], len);
+			}
+		}
+		return this;
+	}
+	
+	// this = this + a * b
+	public Tensor fma(Tensor a, Tensor b){
+		return fma(1.0, a, b);
+	}
+	
+	// this = this + alpha * a * b
+	public Tensor fma(double alpha, Tensor a, Tensor b){
+		double[] d = doubles(), ad = a.doubles(), bd = b.doubles();
+		float[] f = floats(), af = a.floats(), bf = b.floats();
+		int ao = a.offset, bo = b.offset;
+		
+		SIMD.Kernels k = SIMD.kernels();
+		
+		if(d != null && ad != null && bd != null){
+			if(k != null){
+				k.fma(alpha, ad, ao, bd, bo, d, offset, size);
+			}else{
+				for(int i = 0; i < size; i++){
+					d[offset + i] += alpha * ad[ao + i] * bd[bo + i];
+				}
+			}
+		}else if(f != null && af != null && bf != null){
+			float al = (float)alpha;
+			if(k != null){
+				k.fma(al, af, ao, bf, bo, f, offset, size);
+			}else{
+				for(int i = 0; i < size; i++){
+					f[offset + i] += al * af[ao + i] * bf[bo + i];
+				}
+			}
+		}else{
+			double[][] s = blocks.get();
+			for(int i = 0; i < size; i += BLOCK){
+				int len = Math.min(BLOCK, size - i);
+				a.read(i, s[0], len);
+				b.read(i, s[1], len);
+				read(i, s[2], len);
+				for(int j = 0; j < len; j++){
+					s[2][j] += alpha * s[0][j] * s[1][j];
+				}
+				write(i, s[2], len);
+			}
+		}
+		return this;
+	}
+	
+	// add a smaller tensor to each slice along the leading dimensions
+	// for example, a bias can be added to every time step
+	public Tensor addiBroadcast(Tensor o){
+		double[] d = doubles(), od = o.doubles();
+		float[] f = floats(), of = o.floats();
+		int n = o.size;
+		
+		if(d != null && od != null){
+			for(int i = 0; i < size; i += n){
+				int idx = offset + i;
+				for(int j = 0; j < n; j++){
+					d[idx + j] += od[o.offset + j];
+				}
+			}
+		}else if(f != null && of != null){
+			for(int i = 0; i < size; i += n){
+				int idx = offset + i;
+				for(int j = 0; j < n; j++){
+					f[idx + j] += of[o.offset + j];
+				}
+			}
+		}else{
+			for(int i = 0; i < size; i += n){
+				for(int j = 0; j < n; j++){
+					flatSet(i + j, flatGet(i + j) + o.flatGet(j));
+				}
+			}
+		}
+		return this;
+	}
+	
+	// accumulate the sum of a larger tensor along its first dimension
+	// for example, the gradients of a bias across every time step
+	public Tensor addiSumFirst(Tensor o){
+		double[] d = doubles(), od = o.doubles();
+		float[] f = floats(), of = o.floats();
+		
+		if(d != null && od != null){
+			for(int i = 0; i < o.size; i += size){
+				int idx = o.offset + i;
+				for(int j = 0; j < size; j++){
+					d[offset + j] += od[idx + j];
+				}
+			}
+		}else if(f != null && of != null){
+			for(int i = 0; i < o.size; i += size){
+				int idx = o.offset + i;
+				for(int j = 0; j < size; j++){
+					f[offset + j] += of[idx + j];
+				}
+			}
+		}else{
+			for(int i = 0; i < o.size; i += size){
+				for(int j = 0; j < size; j++){
+					flatSet(j, flatGet(j) + o.flatGet(i + j));
+				}
+			}
+		}
+		return this;
+	}
+	
+	public Tensor fill(double d){
+		if(doubles() != null){
+			Arrays.fill(doubles(), offset, offset + size, d);
+		}else if(floats() != null){
+			Arrays.fill(floats(), offset, offset + size, (float)d);
+		}else{
+			double[] s = blocks.get()[0];
+			Arrays.fill(s, 0, Math.min(BLOCK, size), d);
+			for(int i = 0; i < size; i += BLOCK){
+				write(i, s, Math.min(BLOCK, size - i));
+			}
+		}
+		return this;
+	}
+	
+	// copy the values of another tensor into this tensor
+	public Tensor set(Tensor o){
+		if(doubles() != null && o.doubles() != null){
+			System.arraycopy(o.doubles(), o.offset, doubles(), offset, size);
+		}else if(floats() != null && o.floats() != null){
+			System.arraycopy(o.floats(), o.offset, floats(), offset, size);
+		}else{
+			double[] s = blocks.get()[0];
+			for(int i = 0; i < size; i += BLOCK){
+				int len = Math.min(BLOCK, size - i);
+				o.read(i, s, len);
+				write(i, s, len);
+			}
+		}
+		return this;
+	}
+	
+	// destination passing versions of the operations
+	// the result is written to out, which can be one of the operands
+	public static Tensor add(Tensor a, Tensor b, Tensor out){
+		return binary(ADD, a, b, out);
+	}
+	
+	public static Tensor add(Tensor a, double d, Tensor out){
+		return scalar(ADD, a, d, out);
+	}
+	
+	public static Tensor sub(Tensor a, Tensor b, Tensor out){
+		return binary(SUB, a, b, out);
+	}
+	
+	public static Tensor mul(Tensor a, Tensor b, Tensor out){
+		return binary(MUL, a, b, out);
+	}
+	
+	public static Tensor mul(Tensor a, double d, Tensor out){
+		return scalar(MUL, a, d, out);
+	}
+	
+	public static Tensor div(Tensor a, Tensor b, Tensor out){
+		return binary(DIV, a, b, out);
+	}
+	
+	public static Tensor div(Tensor a, double d, Tensor out){
+		return scalar(DIV, a, d, out);
+	}
+	
+	public static Tensor map(Tensor a, Function f, Tensor out){
+		double[] ad = a.doubles(), od = out.doubles();
+		float[] af = a.floats(), of = out.floats();
+		int n = out.size;
+		int ao = a.offset, oo = out.offset;
+		
+		if(ad != null && od != null){
+			for(int i = 0; i < n; i++){
+				od[oo + i] = f.apply(ad[ao + i]);
+			}
+		}else if(af != null && of != null){
+			for(int i = 0; i < n; i++){
+				of[oo + i] = (float)f.apply(af[ao + i]);
+			}
+		}else{
+			double[][] s = blocks.get();
+			for(int i = 0; i < n; i += BLOCK){
+				int len = Math.min(BLOCK, n - i);
+				a.read(i, s[0], len);
+				for(int j = 0; j < len; j++){
+					s[2][j] = f.apply(s[0][j]);
+				}
+				out.write(i, s[2], len);
+			}
+		}
+		return out;
+	}
+	
+	// elementwise function of two tensors
+	public static Tensor map(Tensor a, Tensor b, Function2 f, Tensor out){
+		double[] ad = a.doubles(), bd = b.doubles(), od = out.doubles();
+		float[] af = a.floats(), bf = b.floats(), of = out.floats();
+		int n = out.size;
+		int ao = a.offset, bo = b.offset, oo = out.offset;
+		
+		if(ad != null && bd != null && od != null){
+			for(int i = 0; i < n; i++){
+				od[oo + i] = f.apply(ad[ao + i], bd[bo + i]);
+			}
+		}else if(af != null && bf != null && of != null){
+			for(int i = 0; i < n; i++){
+				of[oo + i] = (float)f.apply(af[ao + i], bf[bo + i]);
+			}
+		}else{
+			double[][] s = blocks.get();
+			for(int i = 0; i < n; i += BLOCK){
+				int len = Math.min(BLOCK, n - i);
+				a.read(i, s[0], len);
+				b.read(i, s[1], len);
+				for(int j = 0; j < len; j++){
+					s[2][j] = f.apply(s[0][j], s[1][j]);
+				}
+				out.write(i, s[2], len);
+			}
+		}
+		return out;
+	}
+	
+	// elementwise kernels, with fast paths for when every tensor is backed by the same type of array
+	private static Tensor binary(int op, Tensor a, Tensor b, Tensor out){
+		double[] ad = a.doubles(), bd = b.doubles(), od = out.doubles();
+		float[] af = a.floats(), bf = b.floats(), of = out.floats();
+		int n = out.size;
+		int ao = a.offset, bo = b.offset, oo = out.offset;
+		SIMD.Kernels k = SIMD.kernels();
+		
+		if(k != null && ad != null && bd != null && od != null){
+			k.binary(op, ad, ao, bd, bo, od, oo, n);
+		}else if(k != null && af != null && bf != null && of != null){
+			k.binary(op, af, ao, bf, bo, of, oo, n);
+		}else if(ad != null && bd != null && od != null){
+			switch(op){
+				case ADD: for(int i = 0; i < n; i++) od[oo + i] = ad[ao + i] + bd[bo + i]; break;
+				case SUB: for(int i = 0; i < n; i++) od[oo + i] = ad[ao + i] - bd[bo + i]; break;
+				case MUL: for(int i = 0; i < n; i++) od[oo + i] = ad[ao + i] * bd[bo + i]; break;
+				case DIV: for(int i = 0; i < n; i++) od[oo + i] = ad[ao + i] / bd[bo + i]; break;
+			}
+		}else if(af != null && bf != null && of != null){
+			switch(op){
+				case ADD: for(int i = 0; i < n; i++) of[oo + i] = af[ao + i] + bf[bo + i]; break;
+				case SUB: for(int i = 0; i < n; i++) of[oo + i] = af[ao + i] - bf[bo + i]; break;
+				case MUL: for(int i = 0; i < n; i++) of[oo + i] = af[ao + i] * bf[bo + i]; break;
+				case DIV: for(int i = 0; i < n; i++) of[oo + i] = af[ao + i] / bf[bo + i]; break;
+			}
+		}else{
+			double[][] s = blocks.get();
+			for(int i = 0; i < n; i += BLOCK){
+				int len = Math.min(BLOCK, n - i);
+				a.read(i, s[0], len);
+				b.read(i, s[1], len);
+				if(k != null){
+					k.binary(op, s[0], 0, s[1], 0, s[2], 0, len);
+				}else{
+					for(int j = 0; j < len; j++){
+						s[2][j] = apply(op, s[0][j], s[1][j]);
+					}
+				}
+				out.write(i, s[2], len);
+			}
+		}
+		return out;
+	}
+	
+	private static Tensor scalar(int op, Tensor a, double d, Tensor out){
+		double[] ad = a.doubles(), od = out.doubles();
+		float[] af = a.floats(), of = out.floats();
+		int n = out.size;
+		int ao = a.offset, oo = out.offset;
+		SIMD.Kernels k = SIMD.kernels();
+		
+		if(k != null && ad != null && od != null){
+			k.scalar(op, ad, ao, d, od, oo, n);
+		}else if(k != null && af != null && of != null){
+			k.scalar(op, af, ao, (float)d, of, oo, n);
+		}else if(ad != null && od != null){
+			switch(op){
+				case ADD: for(int i = 0; i < n; i++) od[oo + i] = ad[ao + i] + d; break;
+				case MUL: for(int i = 0; i < n; i++) od[oo + i] = ad[ao + i] * d; break;
+				case DIV: for(int i = 0; i < n; i++) od[oo + i] = ad[ao + i] / d; break;
+			}
+		}else if(af != null && of != null){
+			float f = (float)d;
+			switch(op){
+				case ADD: for(int i = 0; i < n; i++) of[oo + i] = af[ao + i] + f; break;
+				case MUL: for(int i = 0; i < n; i++) of[oo + i] = af[ao + i] * f; break;
+				case DIV: for(int i = 0; i < n; i++) of[oo + i] = af[ao + i] / f; break;
+			}
+		}else{
+			double[][] s = blocks.get();
+			for(int i = 0; i < n; i += BLOCK){
+				int len = Math.min(BLOCK, n - i);
+				a.read(i, s[0], len);
+				if(k != null){
+					k.scalar(op, s[0], 0, d, s[2], 0, len);
+				}else{
+					for(int j = 0; j < len; j++){
+						s[2][j] = apply(op, s[0][j], d);
+					}
+				}
+				out.write(i, s[2], len);
+			}
+		}
+		return out;
+	}
+	
+	static double apply(int op, double a, double b){
+		switch(op){
+			case ADD: return a + b;
+			case SUB: return a - b;
+			case MUL: return a * b;
+			default: return a / b;
 		}
-		return new Tensor(shape, res);
 	}
 	
 	public Tensor dot(Tensor o){
+		return dot(o, false, false);
+	}
+	
+	// matrix multiply, where either matrix can be transposed without copying it
+	// a.dot(b, true, false) gives the same result as a.T().dot(b)
+	public Tensor dot(Tensor o, boolean transThis, boolean transO){
+		int m = transO ? o.shape[1] : o.shape[0];
+		int n = transThis ? shape[0] : shape[1];
+		return dot(this, o, transThis, transO, new Tensor(new int[]{m, n}, dtype(), false), false);
+	}
+	
+	// out = op(a).dot(op(b)), or out += op(a).dot(op(b)) if accumulating
+	public static Tensor dot(Tensor a, Tensor b, boolean transA, boolean transB, Tensor out, boolean accumulate){
 		// basically matrix multiply
 		// both must be 2D matrices
+		int k = transA ? a.shape[1] : a.shape[0];
+		if(k != (transB ? b.shape[0] : b.shape[1]))
+			throw new IllegalArgumentException("Bad sizes for matrix multiply!");
 		
-		double[] res = new double[shape[1] * o.shape[0]];
-		int idx = 0;
+		// because the array is column-wise, the row major result is op(b) * op(a)
+		int m = transB ? b.shape[1] : b.shape[0];
+		int n = transA ? a.shape[0] : a.shape[1];
 		
-		for(int i = 0; i < shape[1]; i++){
-			for(int j = 0; j < o.shape[0]; j++){
-				for(int k = 0; k < shape[0]; k++){
-					res[idx] += data[k * shape[1] + i] * o.data[j * o.shape[1] + k];
-				}
-				idx++;
+		// the kernel needs the output rows to be contiguous
+		if(out.strides[1] != 1 && n > 1){
+			Tensor res = accumulate ? out.clone() : new Tensor(out.shape, out.dtype(), false);
+			dot(a, b, transA, transB, res, accumulate);
+			return out.set(res);
+		}
+		
+		// views with a unit stride in either dimension can be used directly
+		// a transposed view is the original data with the transpose flag flipped
+		if(a.strides[1] != 1 && a.strides[0] != 1)
+			a = a.clone();
+		if(b.strides[1] != 1 && b.strides[0] != 1)
+			b = b.clone();
+		boolean rowsA = a.strides[1] == 1 || a.shape[1] == 1;
+		boolean rowsB = b.strides[1] == 1 || b.shape[1] == 1;
+		
+		// sparse matrices only visit their nonzero values
+		// for example, one hot inputs multiplied by the weights of a layer
+		int sparseA = a.sparseRow();
+		int sparseB = b.sparseRow();
+		if(sparseA >= 0 || sparseB >= 0){
+			if(!accumulate)
+				out.fill(0.0);
+			
+			if(sparseB >= 0){
+				((SparseStorage)b.storage).multiplyLeft(transB != b.sparseTransposed(), sparseB, m, n, k,
+						rowsA ? transA : !transA, a.storage, a.offset, rowsA ? a.strides[0] : a.strides[1],
+						out.storage, out.offset, out.strides[0]);
+			}else{
+				((SparseStorage)a.storage).multiplyRight(transA != a.sparseTransposed(), sparseA, m, n, k,
+						rowsB ? transB : !transB, b.storage, b.offset, rowsB ? b.strides[0] : b.strides[1],
+						out.storage, out.offset, out.strides[0]);
 			}
+			return out;
 		}
 		
-		// transpose because the array is column-wise, not row-wise
-		return new Tensor(new int[]{shape[1], o.shape[0]}, res).T();
+		GEMM.gemm(rowsB ? transB : !transB, rowsA ? transA : !transA, m, n, k,
+				b.storage, b.offset, rowsB ? b.strides[0] : b.strides[1],
+				a.storage, a.offset, rowsA ? a.strides[0] : a.strides[1],
+				out.storage, out.offset, out.strides[0], accumulate);
+		
+		return out;
 	}
 	
-	public Tensor T(){ // transposes 2D matrix
+	// transposes 2D matrix
+	// the result is a view that shares data with this tensor, so call contiguous() on it to get a copy
+	public Tensor T(){
 		if(shape.length < 2)
 			return this;
 		
-		double[] res = new double[size];
-		int idx = 0;
-		for(int i = 0; i < shape[1]; i++){
-			for(int j = 0; j < shape[0]; j++){
-				res[idx] = data[j * shape[1] + i];
-				idx++;
-			}
-		}
-		return new Tensor(new int[]{shape[1], shape[0]}, res);
+		return new Tensor(new int[]{shape[1], shape[0]}, storage, offset, new int[]{strides[1], strides[0]});
 	}
 	
+	// views if this tensor is contiguous, otherwise the data is copied first
 	public Tensor flatten(){
-		return new Tensor(new int[]{1, size}, data);
+		return reshape(1, size);
 	}
 	
 	public Tensor reshape(int... s){
-		return new Tensor(s, data);
+		if(!contiguous)
+			return clone().reshape(s);
+		
+		return new Tensor(s, storage, offset, null);
 	}
 	
 	public Tensor map(Function f){
-		double[] res = new double[size];
-		for(int i = 0; i < size; i++){
-			res[i] = f.apply(data[i]);
-		}
-		return new Tensor(shape, res);
+		return map(this, f, empty());
 	}
 	
 	public double reduce(double init, Function2 f){
 		double res = init;
 		for(int i = 0; i < size; i++){
-			res = f.apply(res, data[i]);
+			res = f.apply(res, flatGet(i));
 		}
 		return res;
 	}
 	
-	// reduce only the last dimension
-	public Tensor reduceLast(double init, Function2 f){
-		double[] res = new double[size / shape[shape.length - 1]];
-		for(int i = 0; i < res.length; i++){
-			res[i] = init;
+	public double sum(){
+		double[] d = doubles();
+		float[] f = floats();
+		SIMD.Kernels k = SIMD.kernels();
+		
+		if(k != null && d != null)
+			return k.sum(d, offset, size);
+		else if(k != null && f != null)
+			return k.sum(f, offset, size);
+		
+		double res = 0.0;
+		double[] s = blocks.get()[0];
+		for(int i = 0; i < size; i += BLOCK){
+			int len = Math.min(BLOCK, size - i);
+			read(i, s, len);
+			if(k != null){
+				res += k.sum(s, 0, len);
+			}else{
+				for(int j = 0; j < len; j++){
+					res += s[j];
+				}
+			}
 		}
+		return res;
+	}
+	
+	// sum of the last dimension, which has the same shape as reduceLast
+	public Tensor sumLast(){
+		double[] d = doubles();
+		float[] f = floats();
+		SIMD.Kernels k = SIMD.kernels();
+		if(k == null || (d == null && f == null))
+			return reduceLast(0.0, (a, b) -> a + b);
 		
-		for(int i = 0; i < size; i++){
-			int idx = i / shape[shape.length - 1];
-			res[idx] = f.apply(res[idx], data[i]);
+		Tensor res = new Tensor(reducedLastShape(), dtype(), false);
+		int last = shape[shape.length - 1];
+		for(int i = 0; i < res.size; i++){
+			res.storage.set(i, d != null ? k.sum(d, offset + i * last, last) : k.sum(f, offset + i * last, last));
 		}
+		return res;
+	}
+	
+	// reduce only the last dimension
+	public Tensor reduceLast(double init, Function2 f){
+		Tensor res = new Tensor(reducedLastShape(), dtype(), false);
 		
+		int last = shape[shape.length - 1];
+		for(int i = 0; i < res.size; i++){
+			double val = init;
+			for(int j = 0; j < last; j++){
+				val = f.apply(val, flatGet(i * last + j));
+			}
+			res.storage.set(i, val);
+		}
+		return res;
+	}
+	
+	private int[] reducedLastShape(){
 		int[] newShape;
 		if(shape.length == 2){
 			newShape = new int[]{1, shape[0]};
@@ -276,16 +973,34 @@ public class Tensor{
 				newShape[i] = shape[i];
 			}
 		}
-		return new Tensor(newShape, res);
+		return newShape;
 	}
 	
-	// duplicate along last dimension + 1
-	public Tensor dupLast(int length){
-		double[] res = new double[size * length];
-		for(int i = 0; i < res.length; i++){
-			res[i] = data[i / length];
+	// reduce only the first dimension
+	public Tensor reduceFirst(double init, Function2 f){
+		int[] newShape;
+		if(shape.length == 2){
+			newShape = new int[]{1, shape[1]};
+		}else{
+			newShape = new int[shape.length - 1];
+			for(int i = 1; i < shape.length; i++){
+				newShape[i - 1] = shape[i];
+			}
 		}
+		Tensor res = new Tensor(newShape, dtype(), false);
 		
+		for(int i = 0; i < mult[0]; i++){
+			double val = init;
+			for(int j = 0; j < shape[0]; j++){
+				val = f.apply(val, flatGet(j * mult[0] + i));
+			}
+			res.storage.set(i, val);
+		}
+		return res;
+	}
+	
+	// duplicate along last dimension + 1
+	public Tensor dupLast(int length){
 		int[] newShape;
 		if(shape[0] == 1 && shape.length == 2){
 			newShape = new int[]{shape[1], length};
@@ -297,17 +1012,15 @@ public class Tensor{
 			newShape[shape.length] = length;
 		}
 		
-		return new Tensor(newShape, res);
+		Tensor res = new Tensor(newShape, dtype(), false);
+		for(int i = 0; i < res.size; i++){
+			res.storage.set(i, flatGet(i / length));
+		}
+		return res;
 	}
 	
 	// stack copies of the tensor
 	public Tensor dupFirst(int length){
-		double[] res = new double[length * size];
-		for(int i = 0; i < res.length; i++){
-			int idx = i % size;
-			res[i] = data[idx];
-		}
-		
 		int[] newShape;
 		if(shape[0] == 1 && shape.length == 2){
 			newShape = new int[]{length, shape[1]};
@@ -319,30 +1032,67 @@ public class Tensor{
 			newShape[0] = length;
 		}
 		
-		return new Tensor(newShape, res);
+		Tensor res = new Tensor(newShape, dtype(), false);
+		for(int i = 0; i < res.size; i++){
+			res.storage.set(i, flatGet(i % size));
+		}
+		return res;
+	}
+	
+	// copies len values starting at flat index idx into dst
+	// contiguous tensors are copied in bulk, which is much faster for storage that is not an array, like off heap storage
+	private void read(int idx, double[] dst, int len){
+		if(contiguous){
+			storage.get(offset + idx, dst, 0, len);
+		}else{
+			for(int i = 0; i < len; i++){
+				dst[i] = flatGet(idx + i);
+			}
+		}
+	}
+	
+	private void write(int idx, double[] src, int len){
+		if(contiguous){
+			storage.set(offset + idx, src, 0, len);
+		}else{
+			for(int i = 0; i < len; i++){
+				flatSet(idx + i, src[i]);
+			}
+		}
 	}
 	
 	public double flatGet(int idx){
-		return data[idx];
+		return storage.get(index(idx));
+	}
+	
+	public void flatSet(int idx, double val){
+		storage.set(index(idx), val);
 	}
 	
+	// view of one slice along the first dimension, which shares data with this tensor
 	public Tensor get(int idx){
-		double[] res = new double[mult[0]];
-		for(int i = 0; i < mult[0]; i++){
-			res[i] = data[idx * mult[0] + i];
-		}
-		
 		int[] newShape;
+		int[] newStrides;
 		if(shape.length == 2){
 			newShape = new int[]{1, shape[1]};
+			newStrides = new int[]{shape[1] * strides[1], strides[1]};
 		}else{
 			newShape = new int[shape.length - 1];
+			newStrides = new int[shape.length - 1];
 			for(int i = 1; i < shape.length; i++){
 				newShape[i - 1] = shape[i];
+				newStrides[i - 1] = strides[i];
 			}
 		}
 		
-		return new Tensor(newShape, res);
+		return new Tensor(newShape, storage, offset + idx * strides[0], newStrides);
+	}
+	
+	// view of the slices from start (inclusive) to end (exclusive) along the first dimension
+	public Tensor slice(int start, int end){
+		int[] newShape = shape.clone();
+		newShape[0] = end - start;
+		return new Tensor(newShape, storage, offset + start * strides[0], strides);
 	}
 	
 	public interface Function{
@@ -361,11 +1111,14 @@ public class Tensor{
 			mult[i] = mult[i + 1] * shape[i + 1];
 			size *= shape[i];
 		}
+		strides = mult;
+		contiguous = true;
 	}
 	
+	// copies the data, because in place operations should not affect the clone
 	@Override
 	public Tensor clone(){
-		return new Tensor(shape, data);
+		return empty().set(this);
 	}
 	
 	// toString returns a string that is in column major format!
@@ -379,7 +1132,7 @@ public class Tensor{
 			StringBuilder b = new StringBuilder();
 			b.append('[');
 			for(int i = start; i < end; i += mult[depth]){
-				b.append(Utils.format(data[i]) + ", ");
+				b.append(Utils.format(flatGet(i)) + ", ");
 			}
 			if(b.length() > 1)
 				b.delete(b.length() - 2, b.length());
@@ -20,6 +20,33 @@ public class TensorUtils{
 		return stack(res);
 	}
 	
+	// the same as oneHot, but only the single nonzero value is stored
+	// good for inputs, since multiplying by the weights only uses one row of the weights
+	public static Tensor sparseOneHot(int idx, int size){
+		return Tensor.sparse(1, size, new int[]{0, 1}, new int[]{idx}, new double[]{1.0});
+	}
+	
+	public static Tensor sparseOneHotString(String s, String alphabet){
+		int[] rowPtr = new int[s.length() + 1];
+		int[] colIdx = new int[s.length()];
+		double[] values = new double[s.length()];
+		for(int i = 0; i < s.length(); i++){
+			rowPtr[i + 1] = i + 1;
+			colIdx[i] = alphabet.indexOf(s.charAt(i));
+			values[i] = 1.0;
+		}
+		return Tensor.sparse(s.length(), alphabet.length(), rowPtr, colIdx, values);
+	}
+	
+	// the index of each character in the alphabet, one in each row, for embedding layers
+	public static Tensor indexString(String s, String alphabet){
+		Tensor res = new Tensor(new int[]{s.length(), 1}, false);
+		for(int i = 0; i < s.length(); i++){
+			res.flatSet(i, alphabet.indexOf(s.charAt(i)));
+		}
+		return res;
+	}
+	
 	// decode a one hot string
 	public static String decodeString(Tensor val, boolean rand, String alphabet){
 		char[] res = new char[val.shape()[0]];
@@ -56,6 +83,68 @@ public class TensorUtils{
 		return maxIndex;
 	}
 	
+	// stacks the tensors from start to end along a new first dimension, for propagating a mini batch at once
+	// unlike stack, this always adds a dimension
+	// sparse matrices stay sparse
+	public static Tensor batch(Tensor[] tensors, int start, int end){
+		int[] sampleShape = tensors[start].shape();
+		int[] shape = new int[sampleShape.length + 1];
+		shape[0] = end - start;
+		System.arraycopy(sampleShape, 0, shape, 1, sampleShape.length);
+		
+		boolean sparse = true;
+		for(int i = start; i < end; i++){
+			Tensor t = tensors[i];
+			if(!t.isSparse() || t.offset() != 0 || t.size() != t.storage().length()){
+				sparse = false;
+				break;
+			}
+		}
+		if(sparse){
+			SparseStorage[] parts = new SparseStorage[end - start];
+			for(int i = start; i < end; i++){
+				parts[i - start] = (SparseStorage)tensors[i].storage();
+			}
+			return new Tensor(shape, SparseStorage.concat(parts));
+		}
+		
+		Tensor res = new Tensor(shape, tensors[start].dtype(), false);
+		for(int i = start; i < end; i++){
+			res.get(i - start).set(tensors[i]);
+		}
+		return res;
+	}
+	
+	// like batch, but the tensors can have different lengths along their first dimension, like sequences
+	// the shorter tensors are padded with zeros at the end, up to the longest one
+	public static Tensor padBatch(Tensor[] tensors, int start, int end){
+		int[] sampleShape = tensors[start].shape();
+		int[] shape = new int[sampleShape.length + 1];
+		shape[0] = end - start;
+		System.arraycopy(sampleShape, 0, shape, 1, sampleShape.length);
+		for(int i = start; i < end; i++){
+			shape[1] = Math.max(shape[1], tensors[i].shape()[0]);
+		}
+		
+		Tensor res = new Tensor(shape, tensors[start].dtype(), false);
+		for(int i = start; i < end; i++){
+			res.get(i - start).slice(0, tensors[i].shape()[0]).set(tensors[i]);
+		}
+		return res;
+	}
+	
+	// the lengths of the tensors from start to end along their first dimension
+	// null if they all have the same length, so they do not need to be padded
+	public static int[] lengths(Tensor[] tensors, int start, int end){
+		int[] res = new int[end - start];
+		boolean same = true;
+		for(int i = start; i < end; i++){
+			res[i - start] = tensors[i].shape()[0];
+			same &= res[i - start] == res[0];
+		}
+		return same ? null : res;
+	}
+	
 	public static Tensor stack(Tensor... tensors){
 		int[] shape;
 		if(tensors[0].shape()[0] == 1 && tensors[0].shape().length == 2){
@@ -77,6 +166,6 @@ public class TensorUtils{
 				idx++;
 			}
 		}
-		return new Tensor(shape, res);
+		return new Tensor(shape, res).to(tensors[0].dtype());
 	}
 }
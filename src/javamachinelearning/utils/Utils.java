@@ -203,6 +203,42 @@ public class Utils{
 		}
 	}
 	
+	// orders the samples so that each mini batch has sequences of about the same length, which keeps the padding small
+	// the samples with the same length keep their order, so they should be shuffled first
+	// the order of the mini batches is shuffled, except that a last smaller batch stays last, so the batches
+	// still start at multiples of the batch size
+	public static void bucketByLength(Tensor[] x, Tensor[] y, int batchSize){
+		Integer[] idx = new Integer[x.length];
+		for(int i = 0; i < idx.length; i++){
+			idx[i] = i;
+		}
+		Arrays.sort(idx, (a, b) -> x[a].shape()[0] - x[b].shape()[0]);
+		
+		int batches = (x.length + batchSize - 1) / batchSize;
+		int[] batchOrder = new int[batches];
+		for(int i = 0; i < batches; i++){
+			batchOrder[i] = i;
+		}
+		Random r = new Random();
+		for(int i = x.length / batchSize - 1; i > 0; i--){
+			int j = r.nextInt(i + 1);
+			int temp = batchOrder[i];
+			batchOrder[i] = batchOrder[j];
+			batchOrder[j] = temp;
+		}
+		
+		Tensor[] xSorted = x.clone();
+		Tensor[] ySorted = y.clone();
+		int pos = 0;
+		for(int i = 0; i < batches; i++){
+			for(int j = batchOrder[i] * batchSize; j < Math.min((batchOrder[i] + 1) * batchSize, x.length); j++){
+				x[pos] = xSorted[idx[j]];
+				y[pos] = ySorted[idx[j]];
+				pos++;
+			}
+		}
+	}
+	
 	// slides a window across a string and returns all of the substrings covered by the window
 	public static String[] slide(String s, int winSize){
 		String[] res = new String[s.length() - winSize + 1];
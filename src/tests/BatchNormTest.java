@@ -0,0 +1,69 @@
+package tests;
+
+import java.util.Random;
+
+import javamachinelearning.layers.feedforward.BatchNormLayer;
+import javamachinelearning.layers.feedforward.ConvLayer;
+import javamachinelearning.layers.feedforward.FCLayer;
+import javamachinelearning.layers.feedforward.FlattenLayer;
+import javamachinelearning.networks.SequentialNN;
+import javamachinelearning.optimizers.MomentumOptimizer;
+import javamachinelearning.utils.Activation;
+import javamachinelearning.utils.Loss;
+import javamachinelearning.utils.Tensor;
+import javamachinelearning.utils.TensorUtils;
+
+public class BatchNormTest{
+	// checks the batch normalization gradients, and that folding it into the layers before does not change the outputs
+	public static void main(String[] args){
+		Random r = new Random(0);
+		
+		// the input gradients are checked with finite differences of sum(output * error)
+		BatchNormLayer layer = new BatchNormLayer();
+		layer.init(new int[]{4, 4, 3});
+		layer.setWeights(TestUtils.random(r, new int[]{1, 3}));
+		layer.setBias(TestUtils.random(r, new int[]{1, 3}));
+		Tensor input = TestUtils.random(r, new int[]{2, 4, 4, 3});
+		Tensor error = TestUtils.random(r, input.shape());
+		Tensor grad = layer.backPropagateBatch(input, layer.forwardPropagateBatch(input, true), error);
+		
+		double maxError = 0.0;
+		for(int i = 0; i < input.size(); i++){
+			double x = input.flatGet(i);
+			input.flatSet(i, x + 1e-6);
+			double plus = layer.forwardPropagateBatch(input, true).mul(error).sum();
+			input.flatSet(i, x - 1e-6);
+			double minus = layer.forwardPropagateBatch(input, true).mul(error).sum();
+			input.flatSet(i, x);
+			maxError = Math.max(maxError, Math.abs((plus - minus) / 2e-6 - grad.flatGet(i)));
+		}
+		TestUtils.report("input gradients", maxError <= 1e-6, maxError);
+		
+		SequentialNN nn = new SequentialNN(8, 8, 2);
+		nn.add(new ConvLayer(3, 4, ConvLayer.PaddingType.SAME));
+		nn.add(new BatchNormLayer());
+		nn.add(new ConvLayer(2, 2, 4, 0).activation(Activation.relu));
+		nn.add(new BatchNormLayer());
+		nn.add(new FlattenLayer());
+		nn.add(new FCLayer(5));
+		nn.add(new BatchNormLayer());
+		nn.add(new FCLayer(2));
+		
+		Tensor[] x = new Tensor[32];
+		Tensor[] y = new Tensor[32];
+		for(int i = 0; i < x.length; i++){
+			x[i] = TestUtils.random(r, new int[]{8, 8, 2});
+			y[i] = new Tensor(new double[]{x[i].flatGet(0), x[i].flatGet(1) * x[i].flatGet(2)});
+		}
+		nn.train(x, y, 20, 8, Loss.squared, new MomentumOptimizer(0.01), null, true);
+		
+		Tensor expected = nn.predictBatch(TensorUtils.stack(x));
+		// the batch normalization after the relu cannot be folded
+		int folded = nn.foldBatchNorm();
+		Tensor actual = nn.predictBatch(TensorUtils.stack(x));
+		
+		maxError = TestUtils.maxError(expected, actual);
+		TestUtils.report("folded " + folded + " layers", folded == 2 && maxError <= 1e-10, maxError);
+		System.out.println(nn);
+	}
+}
@@ -0,0 +1,156 @@
+package tests;
+
+import java.util.Random;
+
+import javamachinelearning.layers.feedforward.ConvLayer;
+import javamachinelearning.layers.feedforward.DepthwiseSeparableConvLayer;
+import javamachinelearning.optimizers.SGDOptimizer;
+import javamachinelearning.utils.Tensor;
+
+public class ConvTest{
+	// checks that the im2col, Winograd, and FFT convolutions give the same results as the direct loops
+	public static void main(String[] args){
+		Random r = new Random(0);
+		
+		// input shape, window size, stride, filter count, padding
+		int[][] configs = {
+				{8, 8, 1, 3, 1, 4, 1},
+				{9, 7, 3, 3, 2, 5, 0},
+				{10, 10, 2, 5, 1, 6, 2},
+				{6, 6, 4, 2, 2, 3, 0},
+				{5, 5, 1, 5, 1, 2, 0}
+		};
+		
+		for(int[] c : configs){
+			for(int batchSize : new int[]{1, 3}){
+				ConvLayer a = new ConvLayer(c[3], c[4], c[5], c[6]).im2col(true);
+				ConvLayer b = new ConvLayer(c[3], c[4], c[5], c[6]).im2col(false);
+				int[] inputShape = {c[0], c[1], c[2]};
+				a.init(inputShape);
+				b.init(inputShape);
+				b.setWeights(a.weights().clone());
+				b.setBias(TestUtils.random(r, a.bias().shape()));
+				a.setBias(b.bias().clone());
+				
+				Tensor input = TestUtils.random(r, batchSize == 1 ? inputShape : new int[]{batchSize, c[0], c[1], c[2]});
+				Tensor outA = batchSize == 1 ? a.forwardPropagate(input, true) : a.forwardPropagateBatch(input, true);
+				Tensor outB = batchSize == 1 ? b.forwardPropagate(input, true) : b.forwardPropagateBatch(input, true);
+				
+				Tensor error = TestUtils.random(r, outA.shape());
+				Tensor gradA = batchSize == 1 ? a.backPropagate(input, outA, error) : a.backPropagateBatch(input, outA, error);
+				Tensor gradB = batchSize == 1 ? b.backPropagate(input, outB, error) : b.backPropagateBatch(input, outB, error);
+				
+				// the weights after a step of plain gradient descent only differ if the gradients do
+				a.update(new SGDOptimizer(1.0), null);
+				b.update(new SGDOptimizer(1.0), null);
+				
+				System.out.println("input " + c[0] + "x" + c[1] + "x" + c[2] + ", window " + c[3] + ", stride " + c[4]
+						+ ", filters " + c[5] + ", padding " + c[6] + ", batch " + batchSize);
+				compare("output", outA, outB);
+				compare("input gradients", gradA, gradB);
+				compare("weights", a.weights(), b.weights());
+				compare("bias", a.bias(), b.bias());
+			}
+		}
+		
+		// input shape, window size, stride, filter count, padding for the other algorithms
+		int[][] fastConfigs = {
+				{16, 16, 3, 3, 1, 8, 1},
+				{7, 9, 2, 3, 1, 4, 1},
+				{6, 6, 5, 3, 1, 3, 0},
+				{12, 12, 4, 5, 1, 6, 2},
+				{20, 18, 3, 7, 1, 5, 3},
+				{15, 15, 2, 5, 2, 4, 1}
+		};
+		
+		for(int[] c : fastConfigs){
+			ConvLayer direct = new ConvLayer(c[3], c[4], c[5], c[6]).algorithm(ConvLayer.Algorithm.DIRECT);
+			int[] inputShape = {c[0], c[1], c[2]};
+			direct.init(inputShape);
+			direct.setBias(TestUtils.random(r, direct.bias().shape()));
+			
+			Tensor input = TestUtils.random(r, new int[]{2, c[0], c[1], c[2]});
+			Tensor expected = direct.forwardPropagateBatch(input, false);
+			
+			System.out.println("input " + c[0] + "x" + c[1] + "x" + c[2] + ", window " + c[3] + ", stride " + c[4]
+					+ ", filters " + c[5] + ", padding " + c[6]);
+			for(ConvLayer.Algorithm algorithm : ConvLayer.Algorithm.values()){
+				// Winograd only works with 3x3 windows and a stride of 1
+				if((algorithm == ConvLayer.Algorithm.WINOGRAD_2X2 || algorithm == ConvLayer.Algorithm.WINOGRAD_4X4) && (c[3] != 3 || c[4] != 1))
+					continue;
+				
+				ConvLayer layer = new ConvLayer(c[3], c[4], c[5], c[6]).algorithm(algorithm);
+				layer.init(inputShape);
+				layer.setWeights(direct.weights().clone());
+				layer.setBias(direct.bias().clone());
+				compare(algorithm.toString(), expected, layer.forwardPropagateBatch(input, false));
+				compare(algorithm + " single", expected.get(1), layer.forwardPropagate(input.get(1), false));
+			}
+		}
+		
+		// a depthwise separable convolution is the same as a convolution where each filter only uses its own depth slice,
+		// followed by a 1x1 convolution
+		for(int[] c : configs){
+			int[] inputShape = {c[0], c[1], c[2]};
+			DepthwiseSeparableConvLayer separable = new DepthwiseSeparableConvLayer(c[3], c[4], c[5], c[6]);
+			separable.init(inputShape);
+			separable.setBias(TestUtils.random(r, separable.bias().shape()));
+			
+			ConvLayer depthwise = new ConvLayer(c[3], c[4], c[2], c[6]);
+			depthwise.noBias();
+			depthwise.init(inputShape);
+			Tensor w = new Tensor(depthwise.weights().shape(), false);
+			for(int i = 0; i < c[3]; i++){
+				for(int j = 0; j < c[3]; j++){
+					for(int k = 0; k < c[2]; k++){
+						w.flatSet(((i * c[3] + j) * c[2] + k) * c[2] + k, separable.depthwiseWeights().flatGet((i * c[3] + j) * c[2] + k));
+					}
+				}
+			}
+			depthwise.setWeights(w);
+			
+			ConvLayer pointwise = new ConvLayer(1, c[5], 0);
+			pointwise.init(depthwise.outputShape());
+			pointwise.setWeights(separable.weights().reshape(1, 1, c[2], c[5]).clone());
+			pointwise.setBias(separable.bias().clone());
+			
+			Tensor input = TestUtils.random(r, new int[]{3, c[0], c[1], c[2]});
+			Tensor mid = depthwise.forwardPropagateBatch(input, true);
+			Tensor expected = pointwise.forwardPropagateBatch(mid, true);
+			Tensor actual = separable.forwardPropagateBatch(input, true);
+			
+			Tensor error = TestUtils.random(r, expected.shape());
+			Tensor expectedGrad = depthwise.backPropagateBatch(input, mid, pointwise.backPropagateBatch(mid, expected, error));
+			Tensor actualGrad = separable.backPropagateBatch(input, actual, error);
+			
+			separable.update(new SGDOptimizer(1.0), null);
+			depthwise.update(new SGDOptimizer(1.0), null);
+			pointwise.update(new SGDOptimizer(1.0), null);
+			Tensor expectedDepthWeights = separable.depthwiseWeights().zerosLike();
+			for(int i = 0; i < c[3]; i++){
+				for(int j = 0; j < c[3]; j++){
+					for(int k = 0; k < c[2]; k++){
+						expectedDepthWeights.flatSet((i * c[3] + j) * c[2] + k, depthwise.weights().flatGet(((i * c[3] + j) * c[2] + k) * c[2] + k));
+					}
+				}
+			}
+			
+			System.out.println("depthwise separable, input " + c[0] + "x" + c[1] + "x" + c[2] + ", window " + c[3] + ", stride " + c[4]
+					+ ", filters " + c[5] + ", padding " + c[6]);
+			compare("output", expected, actual);
+			compare("input gradients", expectedGrad, actualGrad);
+			compare("depthwise weights", expectedDepthWeights, separable.depthwiseWeights());
+			compare("pointwise weights", pointwise.weights(), separable.weights());
+			compare("bias", pointwise.bias(), separable.bias());
+		}
+		
+		// multiplies for each output position of a 3x3 convolution from 32 depth slices to 64 filters
+		System.out.println("multiplies for 3x3x32 to 64: " + 3 * 3 * 32 * 64 + " vs. " + (3 * 3 * 32 + 32 * 64) + " depthwise separable");
+	}
+	
+	private static void compare(String name, Tensor expected, Tensor actual){
+		// only the order of the additions can differ
+		double maxError = TestUtils.maxError(expected, actual);
+		TestUtils.report("\t" + name, maxError <= 1e-10, maxError);
+	}
+}
@@ -12,6 +12,7 @@ import javamachinelearning.layers.feedforward.FCLayer;
 import javamachinelearning.layers.feedforward.ScalingLayer;
 import javamachinelearning.layers.recurrent.GRUCell;
 import javamachinelearning.layers.recurrent.RecurrentLayer;
+import javamachinelearning.networks.RecurrentSession;
 import javamachinelearning.networks.SequentialNN;
 import javamachinelearning.optimizers.AdamOptimizer;
 import javamachinelearning.utils.Activation;
@@ -70,7 +71,8 @@ public class GRUTest{
 		ArrayList<Tensor> xArr = new ArrayList<>();
 		ArrayList<Tensor> tArr = new ArrayList<>();
 		for(int i = 0; i < str.length - 1; i += winStep){
-			xArr.add(TensorUtils.oneHotString(str[i], alphabet));
+			// the inputs are sparse, so multiplying them by the weights skips the zeros
+			xArr.add(TensorUtils.sparseOneHotString(str[i], alphabet));
 			tArr.add(TensorUtils.oneHotString(str[i + 1], alphabet));
 		}
 		
@@ -97,18 +99,21 @@ public class GRUTest{
 		StringBuilder gen = new StringBuilder();
 		gen.append(seed);
 		
+		// the session keeps its own states, and only propagates one time step at a time
+		RecurrentSession session = nn.session();
+		
 		// warms up the model with the seed string
 		if(seed.length() > 1){
-			Tensor seedInput = TensorUtils.oneHotString(seed.substring(0, seed.length() - 1), alphabet);
-			nn.predict(seedInput, seed.length() - 1);
+			Tensor seedInput = TensorUtils.sparseOneHotString(seed.substring(0, seed.length() - 1), alphabet);
+			session.step(seedInput);
 		}
 		
 		// for each iteration, the previous character is plugged in as one time step
 		// and the next character is predicted
 		// the previous states persists throughout the entire generation process
 		for(int i = 0; i < genIter; i++){
-			Tensor inputStr = TensorUtils.oneHotString(gen.charAt(gen.length() - 1) + "", alphabet);
-			String outputStr = TensorUtils.decodeString(nn.predict(inputStr, 1), true, alphabet);
+			Tensor inputStr = TensorUtils.sparseOneHotString(gen.charAt(gen.length() - 1) + "", alphabet);
+			String outputStr = TensorUtils.decodeString(session.step(inputStr), true, alphabet);
 			gen.append(outputStr);
 		}
 		
@@ -0,0 +1,73 @@
+package tests;
+
+import java.util.Random;
+
+import javamachinelearning.utils.DType;
+import javamachinelearning.utils.SIMD;
+import javamachinelearning.utils.Tensor;
+
+public class SIMDTest{
+	// checks that the vectorized kernels give the same results as the scalar loops
+	// compile src-simd and run with --add-modules jdk.incubator.vector, otherwise only the scalar loops are available
+	public static void main(String[] args){
+		System.out.println("Vector API available: " + SIMD.available());
+		if(!SIMD.available())
+			return;
+		
+		Random r = new Random(0);
+		
+		for(DType dtype : DType.values()){
+			// odd sizes to check the scalar tails
+			Tensor a = TestUtils.random(r, new int[]{37, 53}, dtype);
+			Tensor b = TestUtils.random(r, new int[]{37, 53}, dtype);
+			Tensor c = TestUtils.random(r, new int[]{61, 37}, dtype);
+			Tensor big1 = TestUtils.random(r, new int[]{150, 170}, dtype);
+			Tensor big2 = TestUtils.random(r, new int[]{190, 150}, dtype);
+			
+			System.out.println(dtype);
+			compare("add", () -> a.add(b));
+			compare("sub", () -> a.sub(b));
+			compare("mul", () -> a.mul(b));
+			compare("div", () -> a.div(b.add(10.0)));
+			compare("scalar", () -> a.mul(3.0).add(0.5).div(7.0));
+			compare("axpy", () -> a.clone().axpy(0.3, b));
+			compare("fma", () -> a.clone().fma(0.3, a, b));
+			compare("sum", () -> new Tensor(new double[]{a.sum()}));
+			compare("sum last", () -> a.sumLast());
+			compare("small dot", () -> a.dot(c));
+			compare("small dot transposed", () -> a.dot(b, true, false));
+			compare("blocked dot", () -> big1.dot(big2));
+		}
+		
+		// rough timing of the blocked matrix multiply
+		Tensor x = TestUtils.random(r, new int[]{512, 512}, DType.FLOAT64);
+		Tensor y = TestUtils.random(r, new int[]{512, 512}, DType.FLOAT64);
+		for(boolean enabled : new boolean[]{false, true}){
+			SIMD.setEnabled(enabled);
+			long start = 0;
+			for(int i = 0; i < 10; i++){
+				// the first few iterations are warm up
+				if(i == 5)
+					start = System.nanoTime();
+				x.dot(y);
+			}
+			System.out.println((enabled ? "SIMD" : "Scalar") + " 512x512 dot: " + (System.nanoTime() - start) / 5 / 1000000.0 + " ms");
+		}
+	}
+	
+	private static void compare(String name, Op op){
+		SIMD.setEnabled(false);
+		Tensor expected = op.run();
+		SIMD.setEnabled(true);
+		Tensor actual = op.run();
+		
+		// only the order of the additions can differ
+		double maxError = TestUtils.maxRelativeError(expected, actual);
+		double tolerance = expected.dtype() == DType.FLOAT32 ? 1e-5 : 1e-12;
+		TestUtils.report("\t" + name, maxError <= tolerance, maxError);
+	}
+	
+	private interface Op{
+		public Tensor run();
+	}
+}
@@ -0,0 +1,43 @@
+package tests;
+
+import java.util.Random;
+
+import javamachinelearning.utils.DType;
+import javamachinelearning.utils.Tensor;
+
+// fixtures and checks that are shared by the tests
+public class TestUtils{
+	// tensor of the default type with random normal values, which are the same for the same seed
+	public static Tensor random(Random r, int[] shape){
+		return random(r, shape, Tensor.defaultDType());
+	}
+	
+	public static Tensor random(Random r, int[] shape, DType dtype){
+		Tensor t = new Tensor(shape, dtype, false);
+		for(int i = 0; i < t.size(); i++){
+			t.flatSet(i, r.nextGaussian());
+		}
+		return t;
+	}
+	
+	public static double maxError(Tensor expected, Tensor actual){
+		double res = 0.0;
+		for(int i = 0; i < expected.size(); i++){
+			res = Math.max(res, Math.abs(expected.flatGet(i) - actual.flatGet(i)));
+		}
+		return res;
+	}
+	
+	// the errors of values that are larger than 1 are relative to the values
+	public static double maxRelativeError(Tensor expected, Tensor actual){
+		double res = 0.0;
+		for(int i = 0; i < expected.size(); i++){
+			res = Math.max(res, Math.abs(expected.flatGet(i) - actual.flatGet(i)) / Math.max(1.0, Math.abs(expected.flatGet(i))));
+		}
+		return res;
+	}
+	
+	public static void report(String name, boolean ok, double maxError){
+		System.out.println(name + ": " + (ok ? "OK" : "FAILED") + " (max error " + maxError + ")");
+	}
+}